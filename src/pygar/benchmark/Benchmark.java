@@ -0,0 +1,92 @@
+	/****************************************************************CopyrightNotice
+	 * Copyright (c) 2013 WWN Software LLC 
+	 * All rights reserved. This program and the accompanying materials
+	 * are made available under the terms of the Pygar Public License v1.0
+	 * which accompanies this distribution, and is available at
+	 * http://ectn.typepad.com/pygar/pygar-public-license.html
+	 *
+	 * Contributors:
+	 *    Paul Baker, WWN Software LLC
+	 *******************************************************************************/
+
+package pygar.benchmark;
+
+/**
+ * A Benchmark is one operation with one choice of parameters, for example the encryption of
+ * a field of 16 characters. The runner calls setUp once, then calls run repeatedly on 
+ * each of its threads, and calls tearDown at the end. Therefore, run must be safe to call 
+ * from several threads at once; state that cannot be shared belongs in a ThreadLocal.
+ * <p>
+ * A benchmark whose fixture cannot be prepared, for example because a private key cannot
+ * be unlocked, calls skip in setUp and is reported without being run.
+ * </p>
+ * 
+ * @author pbaker
+ *
+ */
+public abstract class Benchmark {
+
+	private final String name;
+	private final String params;
+	private String skipReason;
+
+	/**
+	 * @param name the name of the operation
+	 * @param params a description of the parameters, e.g. "len=16"
+	 */
+	protected Benchmark(String name, String params) {
+		this.name = name;
+		this.params = params;
+		this.skipReason = null;
+	}
+
+	/** @return the name of the operation */
+	public String getName() {
+		return name;
+	}
+
+	/** @return the description of the parameters */
+	public String getParams() {
+		return params;
+	}
+
+	/**
+	 * Prepare the fixture. The default does nothing.
+	 * @throws Exception if the fixture cannot be prepared
+	 */
+	public void setUp() throws Exception {
+	}
+
+	/**
+	 * Perform the operation once.
+	 * @return the result of the operation, which the runner consumes
+	 * @throws Exception if the operation fails, which ends the benchmark
+	 */
+	public abstract Object run() throws Exception;
+
+	/**
+	 * Release the fixture. The default does nothing.
+	 * @throws Exception
+	 */
+	public void tearDown() throws Exception {
+	}
+
+	/**
+	 * Mark the benchmark as one that cannot run.
+	 * @param reason the explanation reported in place of the results
+	 */
+	protected void skip(String reason) {
+		skipReason = reason;
+	}
+
+	/** @return the reason the benchmark cannot run or null if it can */
+	public String getSkipReason() {
+		return skipReason;
+	}
+
+	@Override
+	public String toString() {
+		return params.length() > 0 ? name + " " + params : name;
+	}
+
+}
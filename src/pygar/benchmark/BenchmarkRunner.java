@@ -0,0 +1,252 @@
+	/****************************************************************CopyrightNotice
+	 * Copyright (c) 2013 WWN Software LLC 
+	 * All rights reserved. This program and the accompanying materials
+	 * are made available under the terms of the Pygar Public License v1.0
+	 * which accompanies this distribution, and is available at
+	 * http://ectn.typepad.com/pygar/pygar-public-license.html
+	 *
+	 * Contributors:
+	 *    Paul Baker, WWN Software LLC
+	 *******************************************************************************/
+
+package pygar.benchmark;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * The BenchmarkRunner runs a Benchmark on a number of threads. It runs a number of warm-up
+ * iterations and then a number of measured iterations, each for a fixed time. During an 
+ * iteration, every thread calls the operation in a loop and records the time of each call
+ * in a histogram. At the end, the runner reports:
+ * <ul>
+ * <li>the throughput in operations per second for all threads together,
+ * <li>the mean, median, 99th and 99.9th percentile of the latency of one operation, 
+ * which includes the cost of reading the clock, about 20 to 30 ns,
+ * <li>the bytes allocated for each operation and the allocation rate, when the JVM
+ * counts the bytes allocated by each thread as HotSpot does.
+ * </ul>
+ * 
+ * @author pbaker
+ *
+ */
+public class BenchmarkRunner {
+
+	private final int warmupIterations;
+	private final int iterations;
+	private final long iterationMillis;
+	private final PrintStream out;
+	private final com.sun.management.ThreadMXBean allocationBean;
+	// the results of the operations are folded into this field so that they are used
+	private volatile int sink;
+
+	/**
+	 * @param warmupIterations the number of iterations whose results are discarded
+	 * @param iterations the number of measured iterations
+	 * @param iterationMillis the length of an iteration in milliseconds
+	 * @param out the stream that receives the report
+	 */
+	public BenchmarkRunner(int warmupIterations, int iterations, long iterationMillis, PrintStream out) {
+		this.warmupIterations = warmupIterations;
+		this.iterations = iterations;
+		this.iterationMillis = iterationMillis;
+		this.out = out;
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+			allocationBean = (com.sun.management.ThreadMXBean) bean;
+			allocationBean.setThreadAllocatedMemoryEnabled(true);
+		} else {
+			allocationBean = null;
+		}
+	}
+
+	/** Print the heading of the report. */
+	public void printHeading() {
+		out.printf("%-28s %-14s %3s %14s %10s %10s %10s %10s %10s %10s%n", "benchmark", "params", 
+				"thr", "ops/s", "mean ns", "p50 ns", "p99 ns", "p99.9 ns", "B/op", "MB/s alloc");
+	}
+
+	/**
+	 * A LatencyHistogram counts latencies in buckets whose width is one eighth of a power of
+	 * two, so a percentile is accurate to about 12 percent at any scale.
+	 */
+	static final class LatencyHistogram {
+		private static final int SUB = 8;
+		final long[] counts = new long[64 * SUB];
+		long total;
+		long sum;
+
+		void record(long nanos) {
+			counts[bucket(nanos)]++;
+			total++;
+			sum += nanos;
+		}
+
+		static int bucket(long nanos) {
+			if (nanos < SUB) {
+				return (int) Math.max(0, nanos);
+			}
+			int exp = 63 - Long.numberOfLeadingZeros(nanos);
+			int sub = (int) (nanos >>> (exp - 3)) & (SUB - 1);
+			return (exp - 2) * SUB + sub;
+		}
+
+		/* the smallest latency that falls in a bucket */
+		static long lowerBound(int bucket) {
+			if (bucket < SUB) {
+				return bucket;
+			}
+			int exp = bucket / SUB + 2;
+			long sub = bucket % SUB;
+			return (1L << exp) + (sub << (exp - 3));
+		}
+
+		void add(LatencyHistogram other) {
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] += other.counts[i];
+			}
+			total += other.total;
+			sum += other.sum;
+		}
+
+		long percentile(double p) {
+			long rank = (long) Math.ceil(p * total);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank && counts[i] > 0) {
+					return lowerBound(i);
+				}
+			}
+			return 0;
+		}
+	}
+
+	/** The work of one thread during one iteration. */
+	private final class Worker extends Thread {
+		final Benchmark benchmark;
+		final CountDownLatch start;
+		final LatencyHistogram histogram = new LatencyHistogram();
+		volatile boolean stop;
+		long allocated;
+		Exception failure;
+
+		Worker(Benchmark benchmark, CountDownLatch start) {
+			this.benchmark = benchmark;
+			this.start = start;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			int h = 0;
+			try {
+				start.await();
+				long before = allocatedBytes();
+				while (!stop) {
+					long t0 = System.nanoTime();
+					Object result = benchmark.run();
+					long t1 = System.nanoTime();
+					histogram.record(t1 - t0);
+					h += (result == null) ? 0 : System.identityHashCode(result);
+				}
+				allocated = allocatedBytes() - before;
+			} catch (Exception e) {
+				failure = e;
+			}
+			sink += h;
+		}
+	}
+
+	private long allocatedBytes() {
+		return allocationBean == null ? 0 : 
+			allocationBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/* run one iteration and return the histogram of all threads and the bytes allocated */
+	private LatencyHistogram iteration(Benchmark benchmark, int threads, long[] allocated) 
+			throws Exception {
+		CountDownLatch start = new CountDownLatch(1);
+		Worker[] workers = new Worker[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Worker(benchmark, start);
+			workers[i].start();
+		}
+		start.countDown();
+		Thread.sleep(iterationMillis);
+		for (Worker w : workers) {
+			w.stop = true;
+		}
+		LatencyHistogram all = new LatencyHistogram();
+		for (Worker w : workers) {
+			w.join();
+			if (w.failure != null) {
+				throw w.failure;
+			}
+			all.add(w.histogram);
+			allocated[0] += w.allocated;
+		}
+		return all;
+	}
+
+	/**
+	 * Run a benchmark and print one line of results.
+	 * @param benchmark the benchmark
+	 * @param threads the number of threads that call the operation at once
+	 * @return true if the benchmark ran, false if it was skipped or failed
+	 */
+	public boolean run(Benchmark benchmark, int threads) {
+		String label = String.format("%-28s %-14s %3d", benchmark.getName(), benchmark.getParams(), threads);
+		try {
+			benchmark.setUp();
+			if (benchmark.getSkipReason() != null) {
+				out.printf("%s skipped: %s%n", label, benchmark.getSkipReason());
+				return false;
+			}
+			long[] allocated = new long[1];
+			for (int i = 0; i < warmupIterations; i++) {
+				iteration(benchmark, threads, allocated);
+			}
+			allocated[0] = 0;
+			LatencyHistogram all = new LatencyHistogram();
+			long elapsed = 0;
+			for (int i = 0; i < iterations; i++) {
+				long t0 = System.nanoTime();
+				all.add(iteration(benchmark, threads, allocated));
+				elapsed += System.nanoTime() - t0;
+			}
+			double seconds = elapsed / 1e9;
+			double ops = all.total / seconds;
+			double mean = all.total == 0 ? 0.0 : (double) all.sum / all.total;
+			String bytesPerOp = "n/a";
+			String allocRate = "n/a";
+			if (allocationBean != null && all.total > 0) {
+				bytesPerOp = String.format("%.0f", (double) allocated[0] / all.total);
+				allocRate = String.format("%.1f", allocated[0] / seconds / (1024.0 * 1024.0));
+			}
+			out.printf("%s %14.0f %10.0f %10d %10d %10d %10s %10s%n", label, ops, mean, 
+					all.percentile(0.5), all.percentile(0.99), all.percentile(0.999), 
+					bytesPerOp, allocRate);
+			return true;
+		} catch (Exception e) {
+			out.printf("%s failed: %s%n", label, e);
+			e.printStackTrace();
+			return false;
+		} finally {
+			try {
+				benchmark.tearDown();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/** @return a value computed from the results of the operations */
+	public int getSink() {
+		return sink;
+	}
+
+}
@@ -0,0 +1,490 @@
+	/****************************************************************CopyrightNotice
+	 * Copyright (c) 2013 WWN Software LLC 
+	 * All rights reserved. This program and the accompanying materials
+	 * are made available under the terms of the Pygar Public License v1.0
+	 * which accompanies this distribution, and is available at
+	 * http://ectn.typepad.com/pygar/pygar-public-license.html
+	 *
+	 * Contributors:
+	 *    Paul Baker, WWN Software LLC
+	 *******************************************************************************/
+
+package pygar.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import pygar.cryptography.CryptoEngine;
+import pygar.demo0P.ProfileDemo0;
+import pygar.documents.EncryptedFieldTable;
+import pygar.documents.EncryptedFieldTable.EFTYPE;
+import pygar.documents.EncryptedFieldTable.Row;
+import pygar.zoneable.FieldCryptoXmlTxt0;
+import pygar.zoneable.NumberConceal;
+
+/**
+ * CryptoBenchmarks measures the operations that dominate the cost of preparing and matching
+ * a negotiation position: the encryption, decryption and concealment of fields, the
+ * encryption of documents for a receiver, the signature of texts and the hexadecimal codecs.
+ * Each operation is measured for several field lengths, payload sizes or column lengths and 
+ * for each number of threads requested.
+ * <p>
+ * The fixtures come from the configuration of Demonstration 0: the profile of GreenTeam
+ * supplies the CryptoEngine, the session key and the public key of the BAN. The signature
+ * and decryption benchmarks need the private key of GreenTeam; they are skipped unless the
+ * password given with -password unlocks it.
+ * </p>
+ * <pre>
+ * java pygar.benchmark.CryptoBenchmarks [-data demodata/demo0] [-threads 1,2,4]
+ *      [-warmup 2] [-iterations 5] [-time 1000] [-filter text] [-password secret]
+ * </pre>
+ * 
+ * @author pbaker
+ *
+ */
+public class CryptoBenchmarks {
+
+	/** The lengths in characters of the field values. A value whose length is a multiple of
+	 * the block size is encrypted without a padding block, as it always has been, and cannot
+	 * be decrypted, so the lengths fall between the multiples. */
+	public static final int[] FIELD_LENGTHS = {8, 24, 40, 120};
+	/** The sizes in bytes of the documents encrypted as streams. */
+	public static final int[] PAYLOAD_SIZES = {1024, 65536, 1048576};
+	/** The number of values in a column concealed by one call. */
+	public static final int[] COLUMN_LENGTHS = {1024, 65536};
+	/** The lengths in bytes of the arrays converted to and from hexadecimal. */
+	public static final int[] HEX_LENGTHS = {16, 256, 4096};
+	/** The lengths in characters of the signed texts. */
+	public static final int[] TEXT_LENGTHS = {64, 4096};
+
+	// the number of distinct values of a field; a power of two
+	private static final int POOL = 1024;
+	private static final String ENTITY = "GreenTeam";
+	private static final String RECEIVER = "BAN";
+
+	private final CryptoEngine crypto;
+	private final SecretKeySpec sessionKey;
+	private final FieldCryptoXmlTxt0 fieldCrypto;
+	private final Row wordRow;
+	private final Row priceRow;
+	private final Row rangeRow;
+	private final NumberConceal numberConceal;
+	private final boolean privateKeyReady;
+	private final Random random;
+
+	// each thread walks through the values of a fixture in turn
+	private final ThreadLocal<int[]> cursor = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[1];
+		}
+	};
+
+	/**
+	 * Prepare the fixtures.
+	 * @param dataDir the directory of Demonstration 0, which holds the config directory
+	 * @param password the password of the private key of GreenTeam or null
+	 * @throws Exception if the configuration cannot be read
+	 */
+	public CryptoBenchmarks(String dataDir, String password) throws Exception {
+		ProfileDemo0 profile = new ProfileDemo0(ENTITY, dataDir);
+		crypto = profile.getCrypto();
+		sessionKey = profile.sessionKeyStore.getKey(ProfileDemo0.sessionID);
+		random = new Random(20130601L);
+
+		EncryptedFieldTable table = new EncryptedFieldTable(EFTYPE.F_CLEAR);
+		wordRow = new Row("word", EFTYPE.F_STRING, "a word of the text");
+		priceRow = new Row("price", EFTYPE.F_REAL, "a price with an estimated range", 0.0, 1.0e6);
+		rangeRow = new Row("interval", EFTYPE.F_REAL_RANGE, "a range of prices", 0.0, 1.0e6);
+		table.addRow(wordRow);
+		table.addRow(priceRow);
+		table.addRow(rangeRow);
+		fieldCrypto = new FieldCryptoXmlTxt0(crypto, sessionKey, table);
+
+		Cipher cipher = Cipher.getInstance(crypto.crypt_algorithm);
+		cipher.init(Cipher.ENCRYPT_MODE, sessionKey);
+		numberConceal = new NumberConceal(cipher, null, 16, -1.0e6, 1.0e6, 1.0e5);
+		numberConceal.addName("price", 0.0, 1000.0);
+
+		boolean ready = false;
+		if (password != null) {
+			crypto.setPassword(password);
+			String probe = crypto.signText("probe");
+			ready = probe != null && probe.length() > 0;
+		}
+		privateKeyReady = ready;
+	}
+
+	/* the next position in a pool of n values, n a power of two */
+	private int next(int n) {
+		int[] c = cursor.get();
+		return c[0]++ & (n - 1);
+	}
+
+	private String[] words(int length) {
+		String[] values = new String[POOL];
+		for (int i = 0; i < POOL; i++) {
+			char[] chars = new char[length];
+			for (int k = 0; k < length; k++) {
+				chars[k] = (char) ('a' + random.nextInt(26));
+			}
+			values[i] = new String(chars);
+		}
+		return values;
+	}
+
+	private double[] numbers(int n, double max) {
+		double[] values = new double[n];
+		for (int i = 0; i < n; i++) {
+			values[i] = max * random.nextDouble();
+		}
+		return values;
+	}
+
+	private byte[] payload(int size) {
+		byte[] b = new byte[size];
+		random.nextBytes(b);
+		return b;
+	}
+
+	/** @return the benchmarks in the order they are run */
+	public List<Benchmark> benchmarks() {
+		List<Benchmark> list = new ArrayList<Benchmark>();
+		addFieldBenchmarks(list);
+		addConcealBenchmarks(list);
+		addStreamBenchmarks(list);
+		addSignatureBenchmarks(list);
+		addHexBenchmarks(list);
+		return list;
+	}
+
+	private void addFieldBenchmarks(List<Benchmark> list) {
+		for (final int len : FIELD_LENGTHS) {
+			list.add(new Benchmark("field.encodeString", "len=" + len) {
+				String[] values;
+				public void setUp() {
+					values = words(len);
+				}
+				public Object run() throws Exception {
+					return fieldCrypto.encodeField(wordRow, values[next(POOL)]);
+				}
+			});
+		}
+		for (final int len : FIELD_LENGTHS) {
+			list.add(new Benchmark("field.decodeString", "len=" + len) {
+				String[] coded;
+				public void setUp() throws Exception {
+					String[] values = words(len);
+					coded = new String[POOL];
+					for (int i = 0; i < POOL; i++) {
+						coded[i] = fieldCrypto.encodeField(wordRow, values[i]);
+					}
+				}
+				public Object run() throws Exception {
+					return fieldCrypto.decodeField(wordRow, coded[next(POOL)]);
+				}
+			});
+		}
+		list.add(new Benchmark("field.concealReal", "") {
+			String[] values;
+			public void setUp() {
+				values = new String[POOL];
+				for (int i = 0; i < POOL; i++) {
+					values[i] = Double.toString(1.0e6 * random.nextDouble());
+				}
+			}
+			public Object run() throws Exception {
+				return fieldCrypto.encodeField(priceRow, values[next(POOL)]);
+			}
+		});
+		list.add(new Benchmark("field.concealRange", "") {
+			String[] values;
+			public void setUp() {
+				values = new String[POOL];
+				for (int i = 0; i < POOL; i++) {
+					double low = 5.0e5 * random.nextDouble();
+					values[i] = low + "," + (low + 1.0e5 * random.nextDouble());
+				}
+			}
+			public Object run() throws Exception {
+				return fieldCrypto.encodeField(rangeRow, values[next(POOL)]);
+			}
+		});
+	}
+
+	private void addConcealBenchmarks(List<Benchmark> list) {
+		list.add(new Benchmark("numberConceal.conceal", "") {
+			double[] values;
+			public void setUp() {
+				values = numbers(POOL, 1000.0);
+			}
+			public Object run() throws Exception {
+				return numberConceal.conceal("price", values[next(POOL)]);
+			}
+		});
+		list.add(new Benchmark("numberConceal.reveal", "") {
+			double[] concealed;
+			public void setUp() throws Exception {
+				double[] values = numbers(POOL, 1000.0);
+				concealed = new double[POOL];
+				numberConceal.conceal("price", values, 0, POOL, concealed, 0);
+			}
+			public Object run() throws Exception {
+				return numberConceal.reveal("price", concealed[next(POOL)]);
+			}
+		});
+		for (final int len : COLUMN_LENGTHS) {
+			list.add(new Benchmark("numberConceal.concealColumn", "len=" + len) {
+				double[] values;
+				final ThreadLocal<double[]> out = new ThreadLocal<double[]>() {
+					@Override
+					protected double[] initialValue() {
+						return new double[len];
+					}
+				};
+				public void setUp() {
+					values = numbers(len, 1000.0);
+				}
+				public Object run() throws Exception {
+					double[] result = out.get();
+					numberConceal.conceal("price", values, 0, len, result, 0);
+					return result;
+				}
+			});
+			list.add(new Benchmark("numberConceal.revealColumn", "len=" + len) {
+				double[] concealed;
+				final ThreadLocal<double[]> out = new ThreadLocal<double[]>() {
+					@Override
+					protected double[] initialValue() {
+						return new double[len];
+					}
+				};
+				public void setUp() throws Exception {
+					concealed = new double[len];
+					numberConceal.conceal("price", numbers(len, 1000.0), 0, len, concealed, 0);
+				}
+				public Object run() throws Exception {
+					double[] result = out.get();
+					numberConceal.reveal("price", concealed, 0, len, result, 0);
+					return result;
+				}
+			});
+		}
+	}
+
+	/* a buffer of a thread that is emptied before each use */
+	private static final class OutputBuffer extends ThreadLocal<ByteArrayOutputStream> {
+		@Override
+		protected ByteArrayOutputStream initialValue() {
+			return new ByteArrayOutputStream();
+		}
+
+		ByteArrayOutputStream reset() {
+			ByteArrayOutputStream b = get();
+			b.reset();
+			return b;
+		}
+	}
+
+	private void addStreamBenchmarks(List<Benchmark> list) {
+		for (final int size : PAYLOAD_SIZES) {
+			list.add(new Benchmark("crypto.crypt", "size=" + size) {
+				byte[] data;
+				final OutputBuffer out = new OutputBuffer();
+				final ThreadLocal<Cipher> cipher = new ThreadLocal<Cipher>();
+				public void setUp() {
+					data = payload(size);
+				}
+				public Object run() throws Exception {
+					Cipher c = cipher.get();
+					if (c == null) {
+						c = Cipher.getInstance(crypto.crypt_algorithm);
+						c.init(Cipher.ENCRYPT_MODE, sessionKey);
+						cipher.set(c);
+					}
+					ByteArrayOutputStream b = out.reset();
+					crypto.crypt(new ByteArrayInputStream(data), b, c);
+					return b;
+				}
+			});
+		}
+		for (final int size : PAYLOAD_SIZES) {
+			list.add(new Benchmark("crypto.encryptStream", "size=" + size) {
+				byte[] data;
+				final OutputBuffer out = new OutputBuffer();
+				public void setUp() {
+					data = payload(size);
+				}
+				public Object run() throws Exception {
+					ByteArrayOutputStream b = out.reset();
+					crypto.encryptStream(RECEIVER, new ByteArrayInputStream(data), new DataOutputStream(b));
+					return b;
+				}
+			});
+		}
+		for (final int size : PAYLOAD_SIZES) {
+			list.add(new Benchmark("crypto.decryptStream", "size=" + size) {
+				byte[] coded;
+				final OutputBuffer out = new OutputBuffer();
+				public void setUp() throws Exception {
+					if (!privateKeyReady) {
+						skip("the private key of " + ENTITY + " is not unlocked, see -password");
+						return;
+					}
+					ByteArrayOutputStream b = new ByteArrayOutputStream();
+					crypto.encryptStream(ENTITY, new ByteArrayInputStream(payload(size)), 
+							new DataOutputStream(b));
+					coded = b.toByteArray();
+				}
+				public Object run() throws Exception {
+					ByteArrayOutputStream b = out.reset();
+					crypto.decryptStream(new DataInputStream(new ByteArrayInputStream(coded)), b);
+					return b;
+				}
+			});
+		}
+	}
+
+	private void addSignatureBenchmarks(List<Benchmark> list) {
+		for (final int len : TEXT_LENGTHS) {
+			list.add(new Benchmark("crypto.signText", "len=" + len) {
+				String[] texts;
+				public void setUp() {
+					if (!privateKeyReady) {
+						skip("the private key of " + ENTITY + " is not unlocked, see -password");
+						return;
+					}
+					texts = words(len);
+				}
+				public Object run() throws Exception {
+					return crypto.signText(texts[next(POOL)]);
+				}
+			});
+			list.add(new Benchmark("crypto.verifySignedText", "len=" + len) {
+				String text;
+				String signature;
+				public void setUp() {
+					if (!privateKeyReady) {
+						skip("no signature without the private key of " + ENTITY + ", see -password");
+						return;
+					}
+					text = words(len)[0];
+					signature = crypto.signText(text);
+				}
+				public Object run() throws Exception {
+					return crypto.verifySignedText(ENTITY, text, signature);
+				}
+			});
+		}
+	}
+
+	private void addHexBenchmarks(List<Benchmark> list) {
+		for (final int len : HEX_LENGTHS) {
+			list.add(new Benchmark("hex.byteArrayToHex", "len=" + len) {
+				byte[] data;
+				final ThreadLocal<char[]> out = new ThreadLocal<char[]>() {
+					@Override
+					protected char[] initialValue() {
+						return new char[2 * len];
+					}
+				};
+				public void setUp() {
+					data = payload(len);
+				}
+				public Object run() throws Exception {
+					char[] chars = out.get();
+					CryptoEngine.byteArrayToHex(data, 0, len, chars, 0);
+					return chars;
+				}
+			});
+			list.add(new Benchmark("hex.hexToByteArray", "len=" + len) {
+				String hex;
+				final ThreadLocal<byte[]> out = new ThreadLocal<byte[]>() {
+					@Override
+					protected byte[] initialValue() {
+						return new byte[len];
+					}
+				};
+				public void setUp() {
+					hex = CryptoEngine.byteArrayToHex(payload(len));
+				}
+				public Object run() throws Exception {
+					byte[] bytes = out.get();
+					CryptoEngine.hexToByteArray(hex, 0, hex.length(), bytes, 0);
+					return bytes;
+				}
+			});
+		}
+	}
+
+	private static int[] parseList(String s) {
+		String[] parts = s.split(",");
+		int[] values = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			values[i] = Integer.parseInt(parts[i].trim());
+		}
+		return values;
+	}
+
+	/**
+	 * Run the benchmarks and print the report on System.out.
+	 * @param args the options described in the class comment
+	 * @throws Exception if the fixtures cannot be prepared
+	 */
+	public static void main(String[] args) throws Exception {
+		String dataDir = "demodata" + File.separator + "demo0";
+		int[] threads = {1};
+		int warmup = 2;
+		int iterations = 5;
+		long millis = 1000;
+		String filter = null;
+		String password = null;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			String option = args[i];
+			String value = args[i + 1];
+			if (option.equals("-data")) {
+				dataDir = value;
+			} else if (option.equals("-threads")) {
+				threads = parseList(value);
+			} else if (option.equals("-warmup")) {
+				warmup = Integer.parseInt(value);
+			} else if (option.equals("-iterations")) {
+				iterations = Integer.parseInt(value);
+			} else if (option.equals("-time")) {
+				millis = Long.parseLong(value);
+			} else if (option.equals("-filter")) {
+				filter = value;
+			} else if (option.equals("-password")) {
+				password = value;
+			} else {
+				System.err.printf("Unknown option %s %n", option);
+				System.exit(1);
+			}
+		}
+
+		CryptoBenchmarks suite = new CryptoBenchmarks(dataDir, password);
+		BenchmarkRunner runner = new BenchmarkRunner(warmup, iterations, millis, System.out);
+		System.out.printf("%nJava %s, %d processors, %d warm-up and %d measured iterations of %d ms%n",
+				System.getProperty("java.version"), Runtime.getRuntime().availableProcessors(), 
+				warmup, iterations, millis);
+		runner.printHeading();
+		for (Benchmark b : suite.benchmarks()) {
+			if (filter != null && !b.toString().contains(filter)) {
+				continue;
+			}
+			for (int t : threads) {
+				runner.run(b, t);
+			}
+		}
+	}
+
+}
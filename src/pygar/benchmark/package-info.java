@@ -0,0 +1,28 @@
+	/****************************************************************CopyrightNotice
+	 * Copyright (c) 2011 WWN Software LLC 
+	 * All rights reserved. This program and the accompanying materials
+	 * are made available under the terms of the Pygar Public License v1.0
+	 * which accompanies this distribution, and is available at
+	 * http://ectn.typepad.com/pygar/pygar-public-license.html
+	 *
+	 * Contributors:
+	 *    Paul Baker, WWN Software LLC
+	 *******************************************************************************/
+
+
+/**
+* This package measures the speed of the cryptographic and concealment operations on which
+* the rest of pygar depends. The class CryptoBenchmarks is run as a program. It builds its 
+* fixtures from the configuration of Demonstration 0, runs each operation on one or more 
+* threads for a series of timed iterations, and reports the throughput, the distribution of
+* the latency and the bytes allocated for each operation.
+* <p>
+* The measurements are made with the same method as a microbenchmark harness: warm-up
+* iterations whose results are discarded, a result of every operation that is consumed so 
+* that the compiler cannot remove the work, and the allocation counters of the HotSpot JVM.
+* The package has no dependencies outside the JDK so that it can be run wherever pygar 
+* is built.
+* </p>
+*/
+
+package pygar.benchmark;
@@ -0,0 +1,522 @@
+	/****************************************************************CopyrightNotice
+	 * Copyright (c) 2013 WWN Software LLC 
+	 * All rights reserved. This program and the accompanying materials
+	 * are made available under the terms of the Pygar Public License v1.0
+	 * which accompanies this distribution, and is available at
+	 * http://ectn.typepad.com/pygar/pygar-public-license.html
+	 *
+	 * Contributors:
+	 *    Paul Baker, WWN Software LLC
+	 *******************************************************************************/
+
+package pygar.cryptography;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+
+import net.jcip.annotations.ThreadSafe;
+
+/** The ChunkedEnvelope is the second version of the envelope written by encryptStream.
+ * The first version is a wrapped key followed by one AES stream, which must be decrypted
+ * from start to end. In the second version the clear text is divided into chunks of a
+ * fixed size and each chunk is encrypted and authenticated on its own with AES-GCM.
+ * Consequently, the chunks can be encrypted and decrypted by several threads, any range of
+ * the clear text can be decrypted without the rest, and a change to the envelope is
+ * detected in the chunk where it occurs.
+ * <p>
+ * The envelope is written as follows. All numbers are big endian as written by
+ * DataOutputStream.
+ * </p>
+ * <pre>
+ *   int     MAGIC, the characters "PGV2"
+ *   int     length of the wrapped key
+ *   byte[]  the wrapped key
+ *   int     chunk size
+ *   byte[4] nonce prefix
+ *   chunk records, one for each chunk:
+ *     int     length of the encrypted chunk
+ *     byte    1 for the final chunk, otherwise 0
+ *     byte[]  the encrypted chunk followed by the 16 byte tag
+ *   the chunk index:
+ *     int     INDEX_MAGIC, the characters "PGIX"
+ *     int     number of chunks
+ *     long    length of the clear text
+ *     long[]  position of each chunk record
+ *   long    position of the chunk index
+ *   int     INDEX_MAGIC
+ * </pre>
+ * <p>
+ * The nonce of a chunk is the nonce prefix followed by the chunk number in 8 bytes. The
+ * chunk size, the nonce prefix, the chunk number and the final flag are authenticated as
+ * additional data, so chunks cannot be reordered, the envelope cannot be truncated at a 
+ * chunk boundary and the header cannot be altered without detection. Every chunk except
+ * the final chunk holds exactly chunk size bytes of clear text, which a reader checks, so
+ * the position of a byte of clear text always determines its chunk. An envelope always 
+ * holds at least one chunk, which is empty for empty text.
+ * </p>
+ *
+ * @author pbaker
+ *
+ */
+@ThreadSafe
+public class ChunkedEnvelope {
+
+	/** The first four bytes of a version 2 envelope, "PGV2". The first four bytes of a
+	 * version 1 envelope are the length of the wrapped key, which is never this large. */
+	public static final int MAGIC = 0x50475632;
+	/** The marker of the chunk index, "PGIX". */
+	static final int INDEX_MAGIC = 0x50474958;
+	/** The default number of bytes of clear text in a chunk. */
+	public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+	static final int MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+	static final int MAX_WRAPPED_KEY = 64 * 1024;
+
+	static final String TRANSFORMATION = "AES/GCM/NoPadding";
+	static final int TAG_BYTES = 16;
+	static final int PREFIX_BYTES = 4;
+	static final int RECORD_HEADER_BYTES = 5;
+	static final int TRAILER_BYTES = 12;
+	// chunk size, nonce prefix, chunk number and final flag
+	static final int AAD_BYTES = 4 + PREFIX_BYTES + 8 + 1;
+
+	private static final SecureRandom random = new SecureRandom();
+	private static final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>();
+
+	/** The fields at the start of an envelope. */
+	public static final class Header {
+		final byte[] wrappedKey;
+		final int chunkSize;
+		final byte[] noncePrefix;
+
+		Header(byte[] wrappedKey, int chunkSize, byte[] noncePrefix) {
+			this.wrappedKey = wrappedKey;
+			this.chunkSize = chunkSize;
+			this.noncePrefix = noncePrefix;
+		}
+
+		/** @return the symmetric key of the envelope wrapped with the public key of the receiver */
+		public byte[] getWrappedKey() {
+			return wrappedKey;
+		}
+
+		/** @return the number of bytes of clear text in a chunk */
+		public int getChunkSize() {
+			return chunkSize;
+		}
+	}
+
+	/** The index at the end of an envelope. */
+	static final class Index {
+		final long textLength;
+		final long[] positions;
+
+		Index(long textLength, long[] positions) {
+			this.textLength = textLength;
+			this.positions = positions;
+		}
+	}
+
+	/** A ChunkTask encrypts or decrypts one chunk. */
+	private static final class ChunkTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		final int mode;
+		final Key key;
+		final int chunkSize;
+		final byte[] prefix;
+		final long number;
+		final boolean last;
+		// the input and then the output of the cipher
+		byte[] data;
+		int length;
+		GeneralSecurityException failure;
+
+		ChunkTask(int mode, Key key, int chunkSize, byte[] prefix, long number, boolean last,
+				byte[] data, int length) {
+			this.mode = mode;
+			this.key = key;
+			this.chunkSize = chunkSize;
+			this.prefix = prefix;
+			this.number = number;
+			this.last = last;
+			this.data = data;
+			this.length = length;
+		}
+
+		protected void compute() {
+			try {
+				data = crypt(mode, key, chunkSize, prefix, number, last, data, 0, length);
+				length = data.length;
+			} catch (GeneralSecurityException e) {
+				failure = e;
+			}
+		}
+	}
+
+	/**
+	 * Encrypt the text of the input stream into an envelope on the output stream. The
+	 * streams are not closed.
+	 * @param key the symmetric key, which must be used for one envelope only
+	 * @param wrappedKey the symmetric key wrapped for the receiver
+	 * @param in the clear text
+	 * @param out receives the envelope
+	 * @param chunkSize the number of bytes of clear text in a chunk
+	 * @param pool the pool that encrypts the chunks or null to encrypt on the calling thread
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 */
+	public static void encrypt(Key key, byte[] wrappedKey, InputStream in, OutputStream out,
+			int chunkSize, ForkJoinPool pool) throws IOException, GeneralSecurityException {
+		if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+			throw new IllegalArgumentException("chunk size " + chunkSize);
+		}
+		byte[] prefix = new byte[PREFIX_BYTES];
+		random.nextBytes(prefix);
+
+		DataOutputStream dout = new DataOutputStream(out);
+		dout.writeInt(MAGIC);
+		dout.writeInt(wrappedKey.length);
+		dout.write(wrappedKey);
+		dout.writeInt(chunkSize);
+		dout.write(prefix);
+		long[] position = { 4 + 4 + wrappedKey.length + 4 + PREFIX_BYTES };
+
+		long[] positions = new long[16];
+		int nchunks = 0;
+		long textLength = 0;
+		ArrayDeque<ChunkTask> pending = new ArrayDeque<ChunkTask>();
+		int window = pool == null ? 0 : 2 * pool.getParallelism();
+
+		byte[] data = new byte[chunkSize];
+		int n = readFully(in, data);
+		boolean last = false;
+		while (!last) {
+			// read ahead to learn whether this chunk is the final chunk
+			byte[] next = null;
+			int m = 0;
+			last = n < chunkSize;
+			if (!last) {
+				next = new byte[chunkSize];
+				m = readFully(in, next);
+				last = m == 0;
+			}
+			ChunkTask task = new ChunkTask(Cipher.ENCRYPT_MODE, key, chunkSize, prefix, nchunks, last,
+					data, n);
+			if (nchunks == positions.length) {
+				positions = Arrays.copyOf(positions, 2 * nchunks);
+			}
+			nchunks++;
+			textLength += n;
+			submit(task, pool, pending, window, dout, positions, position);
+			data = next;
+			n = m;
+		}
+		submit(null, pool, pending, 0, dout, positions, position);
+
+		dout.writeInt(INDEX_MAGIC);
+		dout.writeInt(nchunks);
+		dout.writeLong(textLength);
+		for (int i = 0; i < nchunks; i++) {
+			dout.writeLong(positions[i]);
+		}
+		dout.writeLong(position[0]);
+		dout.writeInt(INDEX_MAGIC);
+		dout.flush();
+	}
+
+	/* start a task and then write the oldest finished chunks until no more than window
+	 * tasks are waiting. The positions of the chunk records are saved as they are written. */
+	private static void submit(ChunkTask task, ForkJoinPool pool, ArrayDeque<ChunkTask> pending,
+			int window, DataOutputStream dout, long[] positions, long[] position)
+			throws IOException, GeneralSecurityException {
+		if (task != null) {
+			if (pool == null) {
+				task.compute();
+			} else {
+				pool.execute(task);
+			}
+			pending.addLast(task);
+		}
+		while (pending.size() > window) {
+			ChunkTask done = pending.removeFirst();
+			if (pool != null) {
+				done.join();
+			}
+			if (done.failure != null) {
+				throw done.failure;
+			}
+			positions[(int) done.number] = position[0];
+			dout.writeInt(done.length);
+			dout.writeByte(done.last ? 1 : 0);
+			dout.write(done.data, 0, done.length);
+			position[0] += RECORD_HEADER_BYTES + done.length;
+		}
+	}
+
+	/**
+	 * Read the header of an envelope from a stream whose first four bytes, the MAGIC,
+	 * have already been read to recognize the version.
+	 * @param in the envelope
+	 * @return the header
+	 * @throws IOException if the header is not valid
+	 */
+	public static Header readHeader(DataInputStream in) throws IOException {
+		int keyLength = in.readInt();
+		if (keyLength <= 0 || keyLength > MAX_WRAPPED_KEY) {
+			throw new IOException("invalid envelope header");
+		}
+		byte[] wrappedKey = new byte[keyLength];
+		in.readFully(wrappedKey);
+		int chunkSize = in.readInt();
+		if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+			throw new IOException("invalid envelope header");
+		}
+		byte[] prefix = new byte[PREFIX_BYTES];
+		in.readFully(prefix);
+		return new Header(wrappedKey, chunkSize, prefix);
+	}
+
+	/**
+	 * Decrypt the chunks of an envelope from start to end. The stream must be positioned
+	 * after the header and the chunk index at the end is not read. The streams are not closed.
+	 * @param header the header of the envelope
+	 * @param key the unwrapped symmetric key
+	 * @param in the envelope
+	 * @param out receives the clear text
+	 * @param pool the pool that decrypts the chunks or null to decrypt on the calling thread
+	 * @throws IOException if the envelope ends before the final chunk or a chunk that is
+	 * not final does not hold chunk size bytes
+	 * @throws GeneralSecurityException if a chunk fails authentication
+	 */
+	public static void decrypt(Header header, Key key, DataInputStream in, OutputStream out,
+			ForkJoinPool pool) throws IOException, GeneralSecurityException {
+		ArrayDeque<ChunkTask> pending = new ArrayDeque<ChunkTask>();
+		int window = pool == null ? 0 : 2 * pool.getParallelism();
+		long number = 0;
+		boolean last = false;
+		while (!last) {
+			int length = in.readInt();
+			last = in.readByte() != 0;
+			if (length < TAG_BYTES || length > header.chunkSize + TAG_BYTES) {
+				throw new IOException("invalid chunk record");
+			}
+			byte[] data = new byte[length];
+			in.readFully(data);
+			ChunkTask task = new ChunkTask(Cipher.DECRYPT_MODE, key, header.chunkSize,
+					header.noncePrefix, number++, last, data, length);
+			if (pool == null) {
+				task.compute();
+			} else {
+				pool.execute(task);
+			}
+			pending.addLast(task);
+			writeFinished(pending, pool, window, out);
+		}
+		writeFinished(pending, pool, 0, out);
+		out.flush();
+	}
+
+	private static void writeFinished(ArrayDeque<ChunkTask> pending, ForkJoinPool pool,
+			int window, OutputStream out) throws IOException, GeneralSecurityException {
+		while (pending.size() > window) {
+			ChunkTask done = pending.removeFirst();
+			if (pool != null) {
+				done.join();
+			}
+			if (done.failure != null) {
+				throw done.failure;
+			}
+			if (!done.last && done.length != done.chunkSize) {
+				throw new IOException("invalid chunk record");
+			}
+			out.write(done.data, 0, done.length);
+		}
+	}
+
+	/**
+	 * @param ch a file
+	 * @return true if the file starts with the MAGIC of a version 2 envelope
+	 * @throws IOException
+	 */
+	public static boolean isChunked(FileChannel ch) throws IOException {
+		if (ch.size() < 4) {
+			return false;
+		}
+		ByteBuffer buf = ByteBuffer.allocate(4);
+		readFully(ch, buf, 0);
+		return buf.getInt(0) == MAGIC;
+	}
+
+	/**
+	 * Read the header of an envelope file.
+	 * @param ch the envelope
+	 * @return the header
+	 * @throws IOException if the file is not a version 2 envelope
+	 */
+	public static Header readHeader(FileChannel ch) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(8);
+		readFully(ch, buf, 0);
+		int keyLength = buf.getInt(4);
+		if (buf.getInt(0) != MAGIC || keyLength <= 0 || keyLength > MAX_WRAPPED_KEY) {
+			throw new IOException("not a version 2 envelope");
+		}
+		buf = ByteBuffer.allocate(keyLength + 4 + PREFIX_BYTES);
+		readFully(ch, buf, 8);
+		byte[] wrappedKey = Arrays.copyOfRange(buf.array(), 0, keyLength);
+		int chunkSize = buf.getInt(keyLength);
+		if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+			throw new IOException("invalid envelope header");
+		}
+		byte[] prefix = Arrays.copyOfRange(buf.array(), keyLength + 4, keyLength + 4 + PREFIX_BYTES);
+		return new Header(wrappedKey, chunkSize, prefix);
+	}
+
+	/* read the chunk index from the end of an envelope file */
+	static Index readIndex(FileChannel ch) throws IOException {
+		long size = ch.size();
+		ByteBuffer buf = ByteBuffer.allocate(TRAILER_BYTES);
+		readFully(ch, buf, size - TRAILER_BYTES);
+		long start = buf.getLong(0);
+		if (buf.getInt(8) != INDEX_MAGIC || start < 0 || start + 16 > size - TRAILER_BYTES) {
+			throw new IOException("invalid chunk index");
+		}
+		buf = ByteBuffer.allocate(16);
+		readFully(ch, buf, start);
+		int nchunks = buf.getInt(4);
+		long textLength = buf.getLong(8);
+		if (buf.getInt(0) != INDEX_MAGIC || nchunks <= 0
+				|| start + 16 + 8L * nchunks != size - TRAILER_BYTES) {
+			throw new IOException("invalid chunk index");
+		}
+		buf = ByteBuffer.allocate(8 * nchunks);
+		readFully(ch, buf, start + 16);
+		long[] positions = new long[nchunks];
+		buf.flip();
+		buf.asLongBuffer().get(positions);
+		return new Index(textLength, positions);
+	}
+
+	/**
+	 * Decrypt a range of the clear text of an envelope file. Only the chunks that hold
+	 * the range are read and decrypted.
+	 * @param ch the envelope
+	 * @param header the header of the envelope
+	 * @param key the unwrapped symmetric key
+	 * @param offset the position of the first byte of the range in the clear text
+	 * @param length the number of bytes in the range
+	 * @return the clear text of the range
+	 * @throws IOException if the envelope is not valid or the range is not in the clear text
+	 * @throws GeneralSecurityException if a chunk fails authentication
+	 */
+	public static byte[] decryptRange(FileChannel ch, Header header, Key key, long offset,
+			int length) throws IOException, GeneralSecurityException {
+		Index index = readIndex(ch);
+		if (offset < 0 || length < 0 || offset + length > index.textLength) {
+			throw new IOException("range outside of the clear text");
+		}
+		byte[] result = new byte[length];
+		if (length == 0) {
+			return result;
+		}
+		int nchunks = index.positions.length;
+		long first = offset / header.chunkSize;
+		long end = (offset + length - 1) / header.chunkSize;
+		int filled = 0;
+		ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+		for (long c = first; c <= end; c++) {
+			if (c >= nchunks) {
+				throw new IOException("invalid chunk index");
+			}
+			long position = index.positions[(int) c];
+			recordHeader.clear();
+			readFully(ch, recordHeader, position);
+			int recordLength = recordHeader.getInt(0);
+			if (recordLength < TAG_BYTES || recordLength > header.chunkSize + TAG_BYTES) {
+				throw new IOException("invalid chunk record");
+			}
+			ByteBuffer record = ByteBuffer.allocate(recordLength);
+			readFully(ch, record, position + RECORD_HEADER_BYTES);
+			// the final flag is authenticated, so a chunk that is final in the index
+			// must have been the final chunk when the envelope was written
+			boolean last = c == nchunks - 1;
+			byte[] text = crypt(Cipher.DECRYPT_MODE, key, header.chunkSize, header.noncePrefix,
+					c, last, record.array(), 0, recordLength);
+			// the clear text of chunk c starts at c * chunkSize only if every chunk
+			// before the final chunk is full
+			if (!last && text.length != header.chunkSize) {
+				throw new IOException("invalid chunk record");
+			}
+			long chunkStart = c * header.chunkSize;
+			int from = (int) Math.max(0, offset - chunkStart);
+			int to = (int) Math.min(text.length, offset + length - chunkStart);
+			if (to < from) {
+				throw new IOException("invalid chunk index");
+			}
+			System.arraycopy(text, from, result, filled, to - from);
+			filled += to - from;
+		}
+		if (filled != length) {
+			throw new IOException("invalid chunk index");
+		}
+		return result;
+	}
+
+	/* encrypt or decrypt one chunk */
+	static byte[] crypt(int mode, Key key, int chunkSize, byte[] prefix, long number,
+			boolean last, byte[] data, int off, int len) throws GeneralSecurityException {
+		Cipher cipher = ciphers.get();
+		if (cipher == null) {
+			cipher = Cipher.getInstance(TRANSFORMATION);
+			ciphers.set(cipher);
+		}
+		byte[] nonce = new byte[PREFIX_BYTES + 8];
+		System.arraycopy(prefix, 0, nonce, 0, PREFIX_BYTES);
+		ByteBuffer.wrap(nonce, PREFIX_BYTES, 8).putLong(number);
+		cipher.init(mode, key, new GCMParameterSpec(8 * TAG_BYTES, nonce));
+		byte[] aad = new byte[AAD_BYTES];
+		ByteBuffer.wrap(aad).putInt(chunkSize).put(prefix, 0, PREFIX_BYTES).putLong(number)
+				.put((byte) (last ? 1 : 0));
+		cipher.updateAAD(aad);
+		return cipher.doFinal(data, off, len);
+	}
+
+	private static int readFully(InputStream in, byte[] b) throws IOException {
+		int n = 0;
+		while (n < b.length) {
+			int m = in.read(b, n, b.length - n);
+			if (m < 0) {
+				break;
+			}
+			n += m;
+		}
+		return n;
+	}
+
+	private static void readFully(FileChannel ch, ByteBuffer buf, long position)
+			throws IOException {
+		while (buf.hasRemaining()) {
+			int m = ch.read(buf, position);
+			if (m < 0) {
+				throw new EOFException();
+			}
+			position += m;
+		}
+	}
+
+}
@@ -0,0 +1,153 @@
+	/****************************************************************CopyrightNotice
+	 * Copyright (c) 2013 WWN Software LLC 
+	 * All rights reserved. This program and the accompanying materials
+	 * are made available under the terms of the Pygar Public License v1.0
+	 * which accompanies this distribution, and is available at
+	 * http://ectn.typepad.com/pygar/pygar-public-license.html
+	 *
+	 * Contributors:
+	 *    Paul Baker, WWN Software LLC
+	 *******************************************************************************/
+
+package pygar.cryptography;
+
+import java.util.Arrays;
+
+/** The CiphertextEncoding selects how the encrypted value of a field is written as text
+ * in a partially encrypted document. The encodings are deterministic, so equal encrypted
+ * values have equal text and a matcher may compare the text without decoding it.
+ * <ul>
+ * <li>HEX writes two lower case hexadecimal digits for each byte. It is the original 
+ * encoding and the default.</li>
+ * <li>BASE64URL writes four characters for each three bytes with the URL and file name 
+ * safe alphabet of RFC 4648 and no padding. The text is two thirds of the length of HEX
+ * and needs no escaping in XML.</li>
+ * </ul>
+ * <p>
+ * Both parties to a negotiation must use the same encoding for a field, so the encoding
+ * is a property of the EncryptedFieldTable.
+ * </p>
+ *
+ * @author pbaker
+ *
+ */
+public enum CiphertextEncoding {
+	HEX, BASE64URL;
+
+	private static final char[] BASE64_DIGITS = 
+			"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+	// the value of each base 64 digit indexed by its character or -1
+	private static final byte[] BASE64_VALUES = new byte[128];
+
+	static {
+		Arrays.fill(BASE64_VALUES, (byte) -1);
+		for (int i = 0; i < BASE64_DIGITS.length; i++) {
+			BASE64_VALUES[BASE64_DIGITS[i]] = (byte) i;
+		}
+	}
+
+	/**
+	 * @param len a number of bytes
+	 * @return the number of characters in the encoding of len bytes
+	 */
+	public int encodedLength(int len) {
+		switch (this) {
+		case BASE64URL:
+			return (len / 3) * 4 + (len % 3 == 0 ? 0 : len % 3 + 1);
+		default:
+			return 2 * len;
+		}
+	}
+
+	/**
+	 * @param len a number of characters
+	 * @return the largest number of bytes that len characters can encode
+	 */
+	public int decodedLength(int len) {
+		switch (this) {
+		case BASE64URL:
+			return (len * 3) / 4;
+		default:
+			return len / 2;
+		}
+	}
+
+	/**
+	 * Write the encoding of a range of bytes into a character array supplied by the caller.
+	 * @param ba the bytes
+	 * @param off the first byte
+	 * @param len the number of bytes
+	 * @param out receives encodedLength(len) characters
+	 * @param outOff the position of the first character in out
+	 * @return the number of characters written
+	 */
+	public int encode(byte[] ba, int off, int len, char[] out, int outOff) {
+		if (this == HEX) {
+			return CryptoEngine.byteArrayToHex(ba, off, len, out, outOff);
+		}
+		int j = outOff;
+		int end = off + len;
+		int i = off;
+		for (; i + 3 <= end; i += 3) {
+			int v = ((ba[i] & 0xff) << 16) | ((ba[i + 1] & 0xff) << 8) | (ba[i + 2] & 0xff);
+			out[j++] = BASE64_DIGITS[v >>> 18];
+			out[j++] = BASE64_DIGITS[(v >>> 12) & 0x3f];
+			out[j++] = BASE64_DIGITS[(v >>> 6) & 0x3f];
+			out[j++] = BASE64_DIGITS[v & 0x3f];
+		}
+		int rem = end - i;
+		if (rem == 1) {
+			int v = ba[i] & 0xff;
+			out[j++] = BASE64_DIGITS[v >>> 2];
+			out[j++] = BASE64_DIGITS[(v << 4) & 0x3f];
+		} else if (rem == 2) {
+			int v = ((ba[i] & 0xff) << 8) | (ba[i + 1] & 0xff);
+			out[j++] = BASE64_DIGITS[v >>> 10];
+			out[j++] = BASE64_DIGITS[(v >>> 4) & 0x3f];
+			out[j++] = BASE64_DIGITS[(v << 2) & 0x3f];
+		}
+		return j - outOff;
+	}
+
+	/**
+	 * Convert a range of encoded text into bytes written to an array supplied by the caller.
+	 * Only the canonical encoding is accepted, so a byte array has exactly one encoding.
+	 * @param s the encoded text
+	 * @param off the first character
+	 * @param len the number of characters
+	 * @param out receives decodedLength(len) bytes
+	 * @param outOff the position of the first byte in out
+	 * @return the number of bytes written or -1 if the text is not a valid encoding
+	 */
+	public int decode(CharSequence s, int off, int len, byte[] out, int outOff) {
+		if (this == HEX) {
+			return CryptoEngine.hexToByteArray(s, off, len, out, outOff);
+		}
+		if (len % 4 == 1) {
+			return -1;
+		}
+		int j = outOff;
+		int bits = 0;
+		int v = 0;
+		for (int i = off; i < off + len; i++) {
+			char c = s.charAt(i);
+			int d = c < 128 ? BASE64_VALUES[c] : -1;
+			if (d < 0) {
+				return -1;
+			}
+			v = (v << 6) | d;
+			bits += 6;
+			if (bits >= 8) {
+				bits -= 8;
+				out[j++] = (byte) (v >>> bits);
+				v &= (1 << bits) - 1;
+			}
+		}
+		// the bits left over must be zero in the canonical encoding
+		if (v != 0) {
+			return -1;
+		}
+		return j - outOff;
+	}
+
+}
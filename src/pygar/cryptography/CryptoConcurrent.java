@@ -0,0 +1,361 @@
+	/****************************************************************CopyrightNotice
+	 * Copyright (c) 2013 WWN Software LLC 
+	 * All rights reserved. This program and the accompanying materials
+	 * are made available under the terms of the Pygar Public License v1.0
+	 * which accompanies this distribution, and is available at
+	 * http://ectn.typepad.com/pygar/pygar-public-license.html
+	 *
+	 * Contributors:
+	 *    Paul Baker, WWN Software LLC
+	 *******************************************************************************/
+
+package pygar.cryptography;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.UnrecoverableKeyException;
+import java.security.KeyStore.PasswordProtection;
+import java.security.KeyStore.PrivateKeyEntry;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import net.jcip.annotations.ThreadSafe;
+
+import pygar.configuration.Profile;
+import pygar.identity_authority.KeyNotFound;
+import pygar.identity_authority.KeyStoreType;
+
+/** CryptoConcurrent provides the same services as CryptoDefault and produces the same
+ * encrypted streams, wrapped keys and signatures, but it does not hold a lock on the engine
+ * while it works. Each thread receives its own Cipher, Signature and KeyGenerator objects,
+ * which are created on the first call from that thread and reused afterwards. Therefore,
+ * several envelopes can be encrypted, decrypted, signed or verified at the same time.
+ * <p>
+ * The public keys are read without a lock from the cache of CryptoDefault. The private
+ * key store is loaded on first use and reading an entry locks only the key store
+ * because the KeyStore class does not promise to be safe for concurrent use.
+ * </p>
+ *
+ * @author pbaker
+ *
+ */
+@ThreadSafe
+public class CryptoConcurrent extends CryptoDefault {
+
+	private static final String PKE_ALGORITHM = "RSA";
+	private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+
+	/** The cryptographic objects of one thread. */
+	static final class Context {
+		final Cipher symmetric;
+		final Cipher pke;
+		final Signature signer;
+		final KeyGenerator keygen;
+
+		Context(String algorithm, SecureRandom random) throws GeneralSecurityException {
+			symmetric = Cipher.getInstance(algorithm);
+			pke = Cipher.getInstance(PKE_ALGORITHM);
+			signer = Signature.getInstance(SIGNATURE_ALGORITHM);
+			keygen = KeyGenerator.getInstance(algorithm);
+			keygen.init(random);
+		}
+	}
+
+	private final Profile profile;
+	private final Object keyStoreLock;
+	private final SecureRandom random;
+	private final ThreadLocal<Context> contexts;
+
+	public CryptoConcurrent(String name, Profile p, String password) {
+		super(name, p, password);
+		profile = p;
+		keyStoreLock = new Object();
+		random = new SecureRandom();
+		contexts = new ThreadLocal<Context>();
+	}
+
+	/**
+	 * Return the cryptographic objects of the calling thread, creating them on first use.
+	 * @return the context
+	 * @throws GeneralSecurityException if an algorithm is not available
+	 */
+	Context context() throws GeneralSecurityException {
+		Context ctx = contexts.get();
+		if (ctx == null) {
+			ctx = new Context(crypt_algorithm, random);
+			contexts.set(ctx);
+		}
+		return ctx;
+	}
+
+	/* load the private key store on first use, the public keys are cached by CryptoDefault */
+	private KeyStore privateKeyStore() throws Exception {
+		synchronized (keyStoreLock) {
+			if (privateKeyStore == null) {
+				privateKeyStore = profile.getKeyStoreAccess().getKeyStore(KeyStoreType.PRIVATE);
+			}
+			return privateKeyStore;
+		}
+	}
+
+	@Override
+	protected PrivateKey unlockPrivateKey() throws Exception {
+		PrivateKeyEntry entry;
+		try {
+			KeyStore ks = privateKeyStore();
+			synchronized (ks) {
+				entry = (KeyStore.PrivateKeyEntry) ks.getEntry(entityAlias,
+						new PasswordProtection(privateEntryPass));
+			}
+		} catch (KeyStoreException e) {
+			e.printStackTrace();
+			throw new KeyNotFound(entityAlias);
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+			throw new KeyNotFound(entityAlias);
+		} catch (UnrecoverableKeyException e) {
+			e.printStackTrace();
+			throw new KeyNotFound(entityAlias);
+		}
+		if (entry == null) {
+			throw new KeyNotFound(entityAlias);
+		}
+		return entry.getPrivateKey();
+	}
+
+	/** The cipher belongs to the caller, so no lock is needed. */
+	@Override
+	public void crypt(InputStream in, OutputStream out, Cipher cipher) throws IOException,
+	GeneralSecurityException {
+		cryptBlocks(in, out, cipher);
+	}
+
+	@Override
+	public SecretKey randomKey() {
+		try {
+			return context().keygen.generateKey();
+		} catch (GeneralSecurityException ex) {
+			Logger.getLogger(CryptoConcurrent.class.getName()).log(Level.SEVERE, null, ex);
+		}
+		return null;
+	}
+
+	@Override
+	public byte[] wrapSecretKey(Key spec, String name) {
+		try {
+			PublicKey key = getPublicKey(name);
+			Cipher cipher = context().pke;
+			cipher.init(Cipher.ENCRYPT_MODE, key);
+			return cipher.doFinal(spec.getEncoded());
+		} catch (KeyNotFound e) {
+			Logger.getLogger(CryptoConcurrent.class.getName()).log(Level.SEVERE,
+					"wrapSecretKey did not find key for: " + name, e);
+		} catch (GeneralSecurityException e) {
+			Logger.getLogger(CryptoConcurrent.class.getName()).log(Level.SEVERE,
+					"wrapSecretKey exceptional exception " + name, e);
+		}
+		return null;
+	}
+
+	@Override
+	public SecretKey unwrapSecretKey(byte[] wrappedKey) {
+		try {
+			PrivateKey key = getPrivateKey();
+			Cipher cipher = context().pke;
+			cipher.init(Cipher.DECRYPT_MODE, key);
+			return new SecretKeySpec(cipher.doFinal(wrappedKey), crypt_algorithm);
+		} catch (KeyNotFound e) {
+			Logger.getLogger(CryptoConcurrent.class.getName()).log(Level.SEVERE,
+					"wrapSecretKey did not find private key for: " + this.entityAlias, e);
+		} catch (Exception e) {
+			Logger.getLogger(CryptoConcurrent.class.getName()).log(Level.SEVERE,
+					"wrapSecretKey exceptional exception " + this.entityAlias, e);
+		}
+		return null;
+	}
+
+	@Override
+	public void encryptStream(String name, InputStream in,
+			DataOutputStream out) throws Exception {
+		try {
+			PublicKey key = getPublicKey(name);
+			Context ctx = context();
+			SecretKey tkey = ctx.keygen.generateKey();
+
+			ctx.pke.init(Cipher.WRAP_MODE, key);
+			byte[] wrappedKey = ctx.pke.wrap(tkey);
+			out.writeInt(wrappedKey.length);
+			out.write(wrappedKey);
+
+			ctx.symmetric.init(Cipher.ENCRYPT_MODE, tkey);
+			cryptBlocks(in, out, ctx.symmetric);
+			in.close();
+			out.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw e;
+		}
+	}
+
+	@Override
+	public void decryptStream(DataInputStream in,
+			OutputStream out) throws Exception {
+		try {
+			PrivateKey key = getPrivateKey();
+			Context ctx = context();
+
+			int length = in.readInt();
+			if (length == ChunkedEnvelope.MAGIC) {
+				decryptChunked(in, out);
+				in.close();
+				out.close();
+				return;
+			}
+			if (length == MultiRecipientEnvelope.MAGIC) {
+				cryptBlocks(in, out, multiRecipientCipher(in));
+				in.close();
+				out.close();
+				return;
+			}
+			if (length == KeySessionEnvelope.MAGIC) {
+				decryptKeySession(in, out);
+				in.close();
+				out.close();
+				return;
+			}
+			byte[] wrappedKey = new byte[length];
+			in.readFully(wrappedKey);
+
+			ctx.pke.init(Cipher.UNWRAP_MODE, key);
+			Key tkey = ctx.pke.unwrap(wrappedKey, crypt_algorithm, Cipher.SECRET_KEY);
+
+			ctx.symmetric.init(Cipher.DECRYPT_MODE, tkey);
+			cryptBlocks(in, out, ctx.symmetric);
+			in.close();
+			out.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw e;
+		}
+	}
+
+	@Override
+	public void encryptFile(String name, File in, File out) throws Exception {
+		FileInputStream fin = null;
+		FileOutputStream fout = null;
+		try {
+			PublicKey key = getPublicKey(name);
+			Context ctx = context();
+			SecretKey tkey = ctx.keygen.generateKey();
+
+			ctx.pke.init(Cipher.WRAP_MODE, key);
+			byte[] wrappedKey = ctx.pke.wrap(tkey);
+			ctx.symmetric.init(Cipher.ENCRYPT_MODE, tkey);
+
+			fin = new FileInputStream(in);
+			fout = new FileOutputStream(out);
+			writeEnvelopeHeader(fout.getChannel(), wrappedKey);
+			cryptChannel(fin.getChannel(), fout.getChannel(), ctx.symmetric);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw e;
+		} finally {
+			if (fin != null) fin.close();
+			if (fout != null) fout.close();
+		}
+	}
+
+	@Override
+	public void decryptFile(File in, File out) throws Exception {
+		FileInputStream fin = null;
+		FileOutputStream fout = null;
+		try {
+			PrivateKey key = getPrivateKey();
+			Context ctx = context();
+
+			fin = new FileInputStream(in);
+			if (ChunkedEnvelope.isChunked(fin.getChannel())) {
+				fout = new FileOutputStream(out);
+				DataInputStream din = new DataInputStream(
+						new BufferedInputStream(fin, CRYPT_BUFFER_SIZE));
+				din.readInt();
+				decryptChunked(din, fout);
+				return;
+			}
+			if (MultiRecipientEnvelope.isMultiRecipient(fin.getChannel())) {
+				fout = new FileOutputStream(out);
+				decryptMultiRecipientFile(fin.getChannel(), fout.getChannel());
+				return;
+			}
+			if (KeySessionEnvelope.isKeySession(fin.getChannel())) {
+				fout = new FileOutputStream(out);
+				DataInputStream din = new DataInputStream(
+						new BufferedInputStream(fin, CRYPT_BUFFER_SIZE));
+				din.readInt();
+				decryptKeySession(din, fout);
+				return;
+			}
+			byte[] wrappedKey = readEnvelopeHeader(fin.getChannel());
+			ctx.pke.init(Cipher.UNWRAP_MODE, key);
+			Key tkey = ctx.pke.unwrap(wrappedKey, crypt_algorithm, Cipher.SECRET_KEY);
+			ctx.symmetric.init(Cipher.DECRYPT_MODE, tkey);
+
+			fout = new FileOutputStream(out);
+			cryptChannel(fin.getChannel(), fout.getChannel(), ctx.symmetric);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw e;
+		} finally {
+			if (fin != null) fin.close();
+			if (fout != null) fout.close();
+		}
+	}
+
+	@Override
+	public String signText(String text) {
+		try {
+			Signature signer = context().signer;
+			signer.initSign(getPrivateKey());
+			signer.update(text.getBytes());
+			return byteArrayToHex(signer.sign());
+		} catch (Exception ex) {
+			Logger.getLogger(CryptoConcurrent.class.getName()).log(Level.SEVERE, null, ex);
+		}
+		return new String();
+	}
+
+	@Override
+	public boolean verifySignedText(String name, String text, String signature) {
+		byte[] inBytes = CryptoEngine.hexStringToByteArray(signature);
+		try {
+			Signature signer = context().signer;
+			signer.initVerify(getPublicKey(name));
+			signer.update(text.getBytes());
+			return signer.verify(inBytes);
+		} catch (Exception ex) {
+			Logger.getLogger(CryptoConcurrent.class.getName()).log(Level.SEVERE, null, ex);
+		}
+		return false;
+	}
+}
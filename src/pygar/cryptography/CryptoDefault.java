@@ -11,13 +11,24 @@
 
 package pygar.cryptography;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.KeyStore;
@@ -34,9 +45,19 @@ import java.security.NoSuchProviderException;
 import java.security.Provider;
 import java.security.Security;
 import java.security.cert.Certificate;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.security.Signature;
@@ -77,6 +98,51 @@ public class CryptoDefault extends CryptoEngine {
 	
 	private Profile profile;
 	
+	// the public keys, replaced as a whole when the public keystore changes
+	private volatile PublicKeyCache publicKeyCache;
+	private final Object publicKeyLock = new Object();
+	// the time, by System.nanoTime, at which the version of the public keystore is next checked
+	private volatile long publicKeyCheckDue;
+	private volatile long publicKeyCheckInterval = DEFAULT_PUBLIC_KEY_CHECK_INTERVAL;
+	
+	/** The time in milliseconds between checks for a new version of the public keystore. */
+	public static final long DEFAULT_PUBLIC_KEY_CHECK_INTERVAL = 1000;
+	
+	// the private key of the entity after it has been read with the entry password
+	private volatile UnlockedPrivateKey unlockedKey;
+	private final Object privateKeyLock = new Object();
+	private volatile long privateKeyLifetime = DEFAULT_PRIVATE_KEY_LIFETIME;
+	// the task that destroys the key that is held when its lifetime ends; 
+	// guarded by privateKeyLock
+	private ScheduledFuture<?> privateKeyExpiry;
+	
+	// destroys each private key at the end of its lifetime, whether or not it is used again
+	private static final ScheduledThreadPoolExecutor keyExpiryTimer = newKeyExpiryTimer();
+	
+	/** The time in milliseconds for which a private key is kept after it is read. */
+	public static final long DEFAULT_PRIVATE_KEY_LIFETIME = 10L * 60 * 1000;
+	
+	// the current key session of each destination and the keys received in key sessions
+	private final ConcurrentHashMap<String, KeySession> keySessions = 
+			new ConcurrentHashMap<String, KeySession>();
+	private final KeySessionEnvelope.ReceivedKeys receivedKeys = 
+			new KeySessionEnvelope.ReceivedKeys(256, 60L * 60 * 1000);
+	private volatile int keySessionUses = DEFAULT_KEY_SESSION_USES;
+	private volatile long keySessionLifetime = DEFAULT_KEY_SESSION_LIFETIME;
+	
+	/** The number of envelopes that share the data key of a key session. */
+	public static final int DEFAULT_KEY_SESSION_USES = 1000;
+	/** The time in milliseconds for which the data key of a key session is used. */
+	public static final long DEFAULT_KEY_SESSION_LIFETIME = 10L * 60 * 1000;
+	
+	// the texts of a batch are signed in this encoding, whatever the platform default
+	private static final String BATCH_CHARSET = "UTF-8";
+	
+	// the size of the buffers of crypt and cryptChannel
+	static final int CRYPT_BUFFER_SIZE = 64 * 1024;
+	// the largest part of a file that cryptChannel maps at one time
+	static final long MAP_WINDOW_SIZE = 64L * 1024 * 1024;
+	
     public CryptoDefault(String name, Profile p, String password) {
         super();
         profile = p;
@@ -96,6 +162,7 @@ public class CryptoDefault extends CryptoEngine {
         privateEntryPassword = password;
         privateEntryPass = password.toCharArray();
         fullyConfigured = true;
+        lockPrivateKey();
 
     }
 
@@ -103,23 +170,109 @@ public class CryptoDefault extends CryptoEngine {
         privateEntryPass = password;
         privateEntryPassword = new String(password);
         fullyConfigured = true;
+        lockPrivateKey();
 
     }
+    
+    /**
+     * Set the time for which the private key is kept after it is read from the keystore.
+     * A key that is already held keeps the lifetime it was given.
+     * @param millis the lifetime in milliseconds, zero or less to read the keystore every time
+     */
+    public void setPrivateKeyLifetime(long millis) {
+    	privateKeyLifetime = millis;
+    }
+    
+    /**
+     * Set the time between checks for a new version of the public keystore. Asking 
+     * KeyStoreAccess for the version may touch the file system, so the cache of public keys
+     * is used without a check until the time has passed.
+     * @param millis the interval in milliseconds, zero or less to check on every lookup
+     */
+    public void setPublicKeyCheckInterval(long millis) {
+    	publicKeyCheckInterval = millis;
+    	publicKeyCheckDue = System.nanoTime();
+    }
+    
+    /**
+     * Check the version of the public keystore on the next lookup of a public key, 
+     * whatever the interval. Call this after a change to the keystore that must be seen
+     * at once.
+     */
+    public void invalidatePublicKeys() {
+    	publicKeyCheckDue = System.nanoTime();
+    }
+    
+    /**
+     * Set the limits of the key sessions of encryptSessionStream. Sessions that have already
+     * started keep the limits they were given.
+     * @param uses the number of envelopes that share a data key
+     * @param millis the time in milliseconds for which a data key is used
+     */
+    public void setKeySessionLimits(int uses, long millis) {
+    	keySessionUses = uses;
+    	keySessionLifetime = millis;
+    }
+    
+    /**
+     * End every key session so that the next envelope to each destination has a new 
+     * data key, and forget the keys received in key sessions.
+     */
+    public void endKeySessions() {
+    	keySessions.clear();
+    	receivedKeys.clear();
+    }
+    
+    /**
+     * Destroy the private key that is held, if any. The next use of the private key reads 
+     * the keystore again.
+     */
+    public void lockPrivateKey() {
+    	synchronized (privateKeyLock) {
+    		dropPrivateKey();
+    	}
+    }
+    
+    /* destroy the key that is held and cancel its expiry; the caller holds privateKeyLock */
+    private void dropPrivateKey() {
+    	UnlockedPrivateKey holder = unlockedKey;
+    	unlockedKey = null;
+    	if (holder != null) {
+    		holder.destroy();
+    	}
+    	if (privateKeyExpiry != null) {
+    		privateKeyExpiry.cancel(false);
+    		privateKeyExpiry = null;
+    	}
+    }
+    
+    /* called by the timer when the lifetime of a key ends */
+    private void expirePrivateKey(UnlockedPrivateKey holder) {
+    	synchronized (privateKeyLock) {
+    		if (unlockedKey == holder) {
+    			unlockedKey = null;
+    			privateKeyExpiry = null;
+    		}
+    	}
+    	holder.destroy();
+    }
+    
+    private static ScheduledThreadPoolExecutor newKeyExpiryTimer() {
+    	ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+    		public Thread newThread(Runnable r) {
+    			Thread t = new Thread(r, "private key expiry");
+    			t.setDaemon(true);
+    			return t;
+    		}
+    	});
+    	// a key that is locked early leaves no task behind
+    	timer.setRemoveOnCancelPolicy(true);
+    	return timer;
+    }
 
 
-    private synchronized void verifyPublicKeystore() throws Exception {
-		if (publicKeyStore == null) {
-//			Profile profile = Profile.getProfile();
-			KeyStoreAccess ksa = profile.getKeyStoreAccess();
-			publicKeyStore = ksa.getKeyStore(KeyStoreType.PUBLIC);
-		}
-	}
-
 	private synchronized void verifyPrivateKeystore() throws Exception {
-        System.out.println("IN verifyPrivateKeystore password string is:" + privateEntryPassword);
-        System.out.println("IN verifyPrivateKeystore password char[] is:" + new String(privateEntryPass));
 		if (privateKeyStore == null) {
-            System.out.println("IN verifyPrivateKeystore get keystore" + privateEntryPassword);
 
 			KeyStoreAccess ksa = profile.getKeyStoreAccess();
 			privateKeyStore = ksa.getKeyStore(KeyStoreType.PRIVATE);
@@ -135,19 +288,48 @@ public class CryptoDefault extends CryptoEngine {
 	}
 
 
-	public synchronized PublicKey getPublicKey(String entityName) throws KeyNotFound {
-		Certificate ct;
+	/* Return the cache of the public keystore. The version that KeyStoreAccess reports is
+	 * checked no more often than the check interval, or on the next lookup after 
+	 * invalidatePublicKeys, and the keystore is read again when the version is new. Readers 
+	 * of the cache never wait: a new cache is built under the lock and then replaces the 
+	 * old one in a single write.
+	 */
+	private PublicKeyCache publicKeys() throws Exception {
+		PublicKeyCache cache = publicKeyCache;
+		long now = System.nanoTime();
+		if (cache != null && now - publicKeyCheckDue < 0) {
+			return cache;
+		}
+		// set before the version is read, so that an invalidation during the check is kept
+		publicKeyCheckDue = now + TimeUnit.MILLISECONDS.toNanos(publicKeyCheckInterval);
+		KeyStoreAccess ksa = profile.getKeyStoreAccess();
+		long version = ksa.getKeyStoreVersion(KeyStoreType.PUBLIC);
+		if (cache != null && cache.getVersion() == version) {
+			return cache;
+		}
+		synchronized (publicKeyLock) {
+			cache = publicKeyCache;
+			if (cache == null || cache.getVersion() != version) {
+				KeyStore ks = ksa.getKeyStore(KeyStoreType.PUBLIC);
+				cache = new PublicKeyCache(ks, version);
+				publicKeyStore = ks;
+				publicKeyCache = cache;
+			}
+		}
+		return cache;
+	}
+	
+	/** Read the public keystore into the cache of public keys now rather than on the
+	 * first call of getPublicKey. */
+	public void preloadPublicKeys() throws Exception {
+		PublicKeyCache cache = publicKeys();
+		System.out.printf("CryptoDefault for %s holds %d public keys%n", entityAlias, cache.size());
+	}
 
+	public PublicKey getPublicKey(String entityName) throws KeyNotFound {
+		PublicKey key;
 		try {
-			verifyPublicKeystore();
-			Enumeration<String> aliases = publicKeyStore.aliases();
-			// TODO remove
-			System.out.printf("Aliases from keystore %s%n", this.entityAlias);
-			while( aliases.hasMoreElements()) {
-				System.out.printf("    alias:%s:%n", aliases.nextElement());
-			}
-			
-			ct = publicKeyStore.getCertificate(entityName);
+			key = publicKeys().getPublicKey(entityName);
 		} catch (KeyStoreException e) {
 			System.err.println(" Crypto.getPublicKey cannot find entry: " + entityName);
 			e.printStackTrace();
@@ -156,39 +338,82 @@ public class CryptoDefault extends CryptoEngine {
 			e.printStackTrace();
 			throw new KeyNotFound(entityName);
 		}
-		if (ct == null) {
+		if (key == null) {
 			System.out.printf("CryptoDefault.getPublicKey failed for %s%n", entityName);
 			throw new KeyNotFound(entityName);
 		}
-		// TODO simplify
-		PublicKey kkk = ct.getPublicKey();
-		if (kkk == null) {
-			System.out.printf("CryptoDefault.getPublicKey pt t failed for %s%n", entityName);
+		return key;
+	}
+	
+	/** Return the certificate of an entity from the cache of the public keystore.
+	 * @param entityName the alias of the entity
+	 * @return the certificate
+	 * @throws KeyNotFound
+	 */
+	public Certificate getCertificate(String entityName) throws KeyNotFound {
+		Certificate ct;
+		try {
+			ct = publicKeys().getCertificate(entityName);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new KeyNotFound(entityName);
+		}
+		if (ct == null) {
+			throw new KeyNotFound(entityName);
 		}
-		return kkk;
+		return ct;
 	}
 
-	public synchronized PrivateKey getPrivateKey() throws Exception {
+	/** Return the private key of the entity. The key is read from the keystore with the 
+	 * entry password on first use and then kept for the private key lifetime, so signing
+	 * and decryption do not touch the keystore while the key is held. A timer destroys the
+	 * key when its lifetime ends, so an expired key does not stay in memory until the 
+	 * next use.
+	 */
+	public PrivateKey getPrivateKey() throws Exception {
+		UnlockedPrivateKey holder = unlockedKey;
+		PrivateKey pkey = holder == null ? null : holder.get();
+		if (pkey != null) {
+			return pkey;
+		}
+		synchronized (privateKeyLock) {
+			holder = unlockedKey;
+			pkey = holder == null ? null : holder.get();
+			if (pkey == null) {
+				dropPrivateKey();
+				pkey = unlockPrivateKey();
+				long lifetime = privateKeyLifetime;
+				if (lifetime > 0) {
+					final UnlockedPrivateKey created = new UnlockedPrivateKey(pkey, lifetime);
+					unlockedKey = created;
+					privateKeyExpiry = keyExpiryTimer.schedule(new Runnable() {
+						public void run() {
+							expirePrivateKey(created);
+						}
+					}, lifetime, TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+		return pkey;
+	}
+
+	/** Read the private key of the entity from the keystore with the entry password.
+	 * @return the private key
+	 * @throws Exception
+	 */
+	protected PrivateKey unlockPrivateKey() throws Exception {
 		PrivateKey pkey;
-        
-        System.out.println("   in getPrivateKey for entity:" + entityAlias);
 		try {
 			verifyPrivateKeystore();
-            
-            Enumeration<String> aliases = privateKeyStore.aliases();
-            String alias;
-            while (aliases.hasMoreElements()) {
-                alias = aliases.nextElement();
-                System.out.println("     " + "owner=" + entityAlias + "   alias=" + alias);
-            }
-
-            PrivateKeyEntry entry = (KeyStore.PrivateKeyEntry) privateKeyStore.getEntry(entityAlias,
-					new PasswordProtection(privateEntryPass));
-
-            
+			PrivateKeyEntry entry;
+			synchronized (privateKeyStore) {
+				entry = (KeyStore.PrivateKeyEntry) privateKeyStore.getEntry(entityAlias,
+						new PasswordProtection(privateEntryPass));
+			}
+			if (entry == null) {
+				throw new KeyNotFound(entityAlias);
+			}
 			pkey = entry.getPrivateKey();
-
-
 		} catch (KeyStoreException e) {
 			e.printStackTrace();
 			throw new KeyNotFound(entityAlias);
@@ -205,32 +430,201 @@ public class CryptoDefault extends CryptoEngine {
 	public synchronized void crypt(InputStream in, OutputStream out, Cipher cipher) throws IOException,
 	GeneralSecurityException
 	{
-		int blockSize = cipher.getBlockSize();
-        
-        System.out.println("debug2 --- cypher name||" + cipher.getAlgorithm() + "|| block Size of =" + blockSize);
-        
-		int outputSize = cipher.getOutputSize(blockSize);
-		byte[] inBytes = new byte[blockSize];
-		byte[] outBytes = new byte[outputSize];
-
-		int inLength = 0;
-		boolean more = true;
-        
-		while (more )
-		{
-            
-			inLength = in.read(inBytes);
-			if (inLength == blockSize)
+        cryptBlocks(in, out, cipher);
+	}
+	
+	/** Pass the input stream through the cipher in large buffers until the end of the 
+	 * stream. The method uses only its arguments, so it needs no lock when the caller owns 
+	 * the cipher.
+	 */
+	protected static void cryptBlocks(InputStream in, OutputStream out, Cipher cipher) 
+	throws IOException, GeneralSecurityException
+	{
+		CryptBuffers buffers = CryptBuffers.acquire();
+		try {
+			byte[] inBytes = buffers.inBytes();
+			int inLength;
+			while ((inLength = in.read(inBytes)) >= 0)
 			{
-				int outLength = cipher.update(inBytes, 0, blockSize, outBytes);
-				out.write(outBytes, 0, outLength);
-//                System.out.println("crypt step " + debugstop + " inLength=" + inLength + " outlength=" + outLength);
+				if (inLength > 0) {
+					byte[] outBytes = buffers.outBytes(cipher.getOutputSize(inLength));
+					int outLength = cipher.update(inBytes, 0, inLength, outBytes);
+					out.write(outBytes, 0, outLength);
+				}
+			}
+			byte[] outBytes = buffers.outBytes(cipher.getOutputSize(0));
+			out.write(outBytes, 0, cipher.doFinal(outBytes, 0));
+		} finally {
+			buffers.release();
+		}
+	}
+	
+	/** Pass the input channel through the cipher until the end of the input and write the
+	 * result on the output channel. A FileChannel is read through a memory map from its 
+	 * current position, other channels through a direct buffer. The result is identical 
+	 * to the result of crypt. 
+	 */
+	protected static void cryptChannel(ReadableByteChannel in, WritableByteChannel out, 
+			Cipher cipher) throws IOException, GeneralSecurityException
+	{
+		CryptBuffers buffers = CryptBuffers.acquire();
+		try {
+			if (in instanceof FileChannel) {
+				FileChannel fc = (FileChannel) in;
+				long position = fc.position();
+				long end = fc.size();
+				while (position < end) {
+					long length = Math.min(MAP_WINDOW_SIZE, end - position);
+					MappedByteBuffer window = fc.map(FileChannel.MapMode.READ_ONLY, position, length);
+					int limit = window.limit();
+					while (window.position() < limit) {
+						window.limit(Math.min(limit, window.position() + CRYPT_BUFFER_SIZE));
+						cryptBuffer(window, buffers, out, cipher);
+						window.limit(limit);
+					}
+					position += length;
+				}
+				fc.position(end);
+			} else {
+				ByteBuffer inBuf = buffers.inDirect();
+				while (in.read(inBuf) >= 0) {
+					inBuf.flip();
+					cryptBuffer(inBuf, buffers, out, cipher);
+					inBuf.clear();
+				}
+			}
+			ByteBuffer outBuf = buffers.outDirect(cipher.getOutputSize(0));
+			cipher.doFinal(buffers.empty, outBuf);
+			outBuf.flip();
+			while (outBuf.hasRemaining()) {
+				out.write(outBuf);
+			}
+		} finally {
+			buffers.release();
+		}
+	}
+	
+	/* pass the remaining bytes of inBuf through the cipher and write the result */
+	private static void cryptBuffer(ByteBuffer inBuf, CryptBuffers buffers, 
+			WritableByteChannel out, Cipher cipher) throws IOException, GeneralSecurityException
+	{
+		ByteBuffer outBuf = buffers.outDirect(cipher.getOutputSize(inBuf.remaining()));
+		cipher.update(inBuf, outBuf);
+		outBuf.flip();
+		while (outBuf.hasRemaining()) {
+			out.write(outBuf);
+		}
+	}
+	
+	/** The buffers of cryptBlocks and cryptChannel. Each thread keeps one set, so that an
+	 * envelope, however small, does not allocate them; direct buffers in particular are 
+	 * slow to allocate and their memory is freed only by the garbage collector. A buffer is
+	 * allocated on first use and an output buffer grows when the cipher needs more room.
+	 * A call nested within another on the same thread receives a set of its own.
+	 */
+	private static final class CryptBuffers {
+		private static final ThreadLocal<CryptBuffers> buffers = new ThreadLocal<CryptBuffers>() {
+			@Override
+			protected CryptBuffers initialValue() {
+				return new CryptBuffers();
+			}
+		};
+		
+		// the input of the final call of the cipher
+		final ByteBuffer empty = ByteBuffer.allocate(0);
+		private byte[] inBytes;
+		private byte[] outBytes;
+		private ByteBuffer inDirect;
+		private ByteBuffer outDirect;
+		private boolean inUse;
+		
+		// an output buffer holds the output of a full input buffer and a block of padding
+		private static final int OUTPUT_SIZE = CRYPT_BUFFER_SIZE + 64;
+		
+		static CryptBuffers acquire() {
+			CryptBuffers b = buffers.get();
+			if (b.inUse) {
+				return new CryptBuffers();
+			}
+			b.inUse = true;
+			return b;
+		}
+		
+		void release() {
+			inUse = false;
+		}
+		
+		byte[] inBytes() {
+			if (inBytes == null) {
+				inBytes = new byte[CRYPT_BUFFER_SIZE];
+			}
+			return inBytes;
+		}
+		
+		byte[] outBytes(int need) {
+			if (outBytes == null || outBytes.length < need) {
+				outBytes = new byte[Math.max(need, OUTPUT_SIZE)];
+			}
+			return outBytes;
+		}
+		
+		/* an empty buffer of CRYPT_BUFFER_SIZE */
+		ByteBuffer inDirect() {
+			if (inDirect == null) {
+				inDirect = ByteBuffer.allocateDirect(CRYPT_BUFFER_SIZE);
+			}
+			inDirect.clear();
+			return inDirect;
+		}
+		
+		/* an empty buffer of at least need bytes */
+		ByteBuffer outDirect(int need) {
+			if (outDirect == null || outDirect.capacity() < need) {
+				outDirect = ByteBuffer.allocateDirect(Math.max(need, OUTPUT_SIZE));
+			}
+			outDirect.clear();
+			return outDirect;
+		}
+	}
+	
+	/** Write the header of an envelope, which is the length of the wrapped key followed 
+	 * by the wrapped key, in the format of encryptStream. 
+	 */
+	protected static void writeEnvelopeHeader(WritableByteChannel out, byte[] wrappedKey) 
+	throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate(4 + wrappedKey.length);
+		header.putInt(wrappedKey.length);
+		header.put(wrappedKey);
+		header.flip();
+		while (header.hasRemaining()) {
+			out.write(header);
+		}
+	}
+	
+	/** Read the wrapped key from the header of an envelope and leave the channel at the
+	 * first byte of the encrypted text. 
+	 */
+	protected static byte[] readEnvelopeHeader(ReadableByteChannel in) throws IOException
+	{
+		ByteBuffer length = ByteBuffer.allocate(4);
+		readFully(in, length);
+		int n = length.getInt(0);
+		if (n < 0) {
+			throw new IOException("invalid envelope header");
+		}
+		ByteBuffer wrappedKey = ByteBuffer.allocate(n);
+		readFully(in, wrappedKey);
+		return wrappedKey.array();
+	}
+	
+	private static void readFully(ReadableByteChannel in, ByteBuffer buf) throws IOException
+	{
+		while (buf.hasRemaining()) {
+			if (in.read(buf) < 0) {
+				throw new EOFException();
 			}
-			else more = false;
 		}
-		if (inLength > 0) outBytes = cipher.doFinal(inBytes, 0, inLength);
-		else outBytes = cipher.doFinal();
-		out.write(outBytes);
 	}
 
     /**
@@ -499,6 +893,24 @@ public class CryptoDefault extends CryptoEngine {
 			key = this.getPrivateKey();
 
 			int length = in.readInt();
+			if (length == ChunkedEnvelope.MAGIC) {
+				decryptChunked(in, out);
+				in.close();
+				out.close();
+				return;
+			}
+			if (length == MultiRecipientEnvelope.MAGIC) {
+				cryptBlocks(in, out, multiRecipientCipher(in));
+				in.close();
+				out.close();
+				return;
+			}
+			if (length == KeySessionEnvelope.MAGIC) {
+				decryptKeySession(in, out);
+				in.close();
+				out.close();
+				return;
+			}
 			System.out.printf("  decryptStream claimed key length %d%n", length);
 			byte[] wrappedKey = new byte[length];
 			in.read(wrappedKey, 0, length);
@@ -527,6 +939,319 @@ public class CryptoDefault extends CryptoEngine {
 		}
 	}
 
+	public synchronized void encryptFile(String name, File in, File out) throws Exception {
+		FileInputStream fin = null;
+		FileOutputStream fout = null;
+		try {
+			Key key = this.getPublicKey(name);
+			
+			KeyGenerator keygen = KeyGenerator.getInstance("AES");
+			SecureRandom random = new SecureRandom();
+			keygen.init(random);
+			SecretKey tkey = keygen.generateKey();
+
+			Cipher cipher = Cipher.getInstance("RSA");
+			cipher.init(Cipher.WRAP_MODE, key);
+			byte[] wrappedKey = cipher.wrap(tkey);
+
+			cipher = Cipher.getInstance("AES");
+			cipher.init(Cipher.ENCRYPT_MODE, tkey);
+			
+			fin = new FileInputStream(in);
+			fout = new FileOutputStream(out);
+			writeEnvelopeHeader(fout.getChannel(), wrappedKey);
+			cryptChannel(fin.getChannel(), fout.getChannel(), cipher);
+		} 
+		catch (Exception e) {
+			e.printStackTrace();
+			throw e;
+		}
+		finally {
+			if (fin != null) fin.close();
+			if (fout != null) fout.close();
+		}
+	}
+
+	public synchronized void decryptFile(File in, File out) throws Exception {
+		FileInputStream fin = null;
+		FileOutputStream fout = null;
+		try {
+			Key key = this.getPrivateKey();
+			
+			fin = new FileInputStream(in);
+			if (ChunkedEnvelope.isChunked(fin.getChannel())) {
+				fout = new FileOutputStream(out);
+				DataInputStream din = new DataInputStream(
+						new BufferedInputStream(fin, CRYPT_BUFFER_SIZE));
+				din.readInt();
+				decryptChunked(din, fout);
+				return;
+			}
+			if (MultiRecipientEnvelope.isMultiRecipient(fin.getChannel())) {
+				fout = new FileOutputStream(out);
+				decryptMultiRecipientFile(fin.getChannel(), fout.getChannel());
+				return;
+			}
+			if (KeySessionEnvelope.isKeySession(fin.getChannel())) {
+				fout = new FileOutputStream(out);
+				DataInputStream din = new DataInputStream(
+						new BufferedInputStream(fin, CRYPT_BUFFER_SIZE));
+				din.readInt();
+				decryptKeySession(din, fout);
+				return;
+			}
+			byte[] wrappedKey = readEnvelopeHeader(fin.getChannel());
+
+			Cipher cipher = Cipher.getInstance("RSA");
+			cipher.init(Cipher.UNWRAP_MODE, key);
+			Key tkey = cipher.unwrap(wrappedKey, "AES", Cipher.SECRET_KEY);
+
+			cipher = Cipher.getInstance("AES");
+			cipher.init(Cipher.DECRYPT_MODE, tkey);
+
+			fout = new FileOutputStream(out);
+			cryptChannel(fin.getChannel(), fout.getChannel(), cipher);
+		} 
+		catch (Exception e) {
+			e.printStackTrace();
+			throw e;
+		}
+		finally {
+			if (fin != null) fin.close();
+			if (fout != null) fout.close();
+		}
+	}
+
+	/** The key is generated and wrapped with randomKey and wrapSecretKey, so this method
+	 * needs no lock of its own. */
+	public List<String> encryptStream(List<String> names, InputStream in, 
+			DataOutputStream out) throws Exception {
+		try {
+			SecretKey tkey = randomKey();
+			List<String> addressed = new ArrayList<String>(names.size());
+			out.write(multiRecipientHeader(names, tkey, addressed));
+			Cipher cipher = Cipher.getInstance(crypt_algorithm);
+			cipher.init(Cipher.ENCRYPT_MODE, tkey);
+			cryptBlocks(in, out, cipher);
+			in.close();
+			out.close();
+			return addressed;
+		} 
+		catch (Exception e) {
+			e.printStackTrace();
+			throw e;
+		}
+	}
+	
+	/** The key is generated and wrapped with randomKey and wrapSecretKey, so this method
+	 * needs no lock of its own. */
+	public List<String> encryptFile(List<String> names, File in, File out) throws Exception {
+		FileInputStream fin = null;
+		FileOutputStream fout = null;
+		try {
+			SecretKey tkey = randomKey();
+			List<String> addressed = new ArrayList<String>(names.size());
+			ByteBuffer header = ByteBuffer.wrap(multiRecipientHeader(names, tkey, addressed));
+			Cipher cipher = Cipher.getInstance(crypt_algorithm);
+			cipher.init(Cipher.ENCRYPT_MODE, tkey);
+			
+			fin = new FileInputStream(in);
+			fout = new FileOutputStream(out);
+			while (header.hasRemaining()) {
+				fout.getChannel().write(header);
+			}
+			cryptChannel(fin.getChannel(), fout.getChannel(), cipher);
+			return addressed;
+		} 
+		catch (Exception e) {
+			e.printStackTrace();
+			throw e;
+		}
+		finally {
+			if (fin != null) fin.close();
+			if (fout != null) fout.close();
+		}
+	}
+	
+	/* wrap the key for each receiver and return the header of a multi-recipient envelope.
+	 * A receiver whose key cannot be wrapped is reported and left out of the envelope; the 
+	 * receivers that remain are added to addressed. */
+	private byte[] multiRecipientHeader(List<String> names, SecretKey tkey, 
+			List<String> addressed) throws Exception {
+		if (tkey == null) {
+			throw new CryptoException();
+		}
+		List<byte[]> wrappedKeys = new ArrayList<byte[]>(names.size());
+		for (String name : names) {
+			// wrapSecretKey logs the reason for a failure
+			byte[] wrappedKey = wrapSecretKey(tkey, name);
+			if (wrappedKey == null) {
+				System.err.printf("The envelope is not addressed to %s, whose key cannot be wrapped%n",
+						name);
+				continue;
+			}
+			addressed.add(name);
+			wrappedKeys.add(wrappedKey);
+		}
+		if (addressed.isEmpty()) {
+			throw new KeyNotFound(names.isEmpty() ? "" : names.get(0));
+		}
+		return MultiRecipientEnvelope.header(addressed, wrappedKeys);
+	}
+	
+	/** Read the rest of the header of a multi-recipient envelope after its MAGIC and
+	 * return a cipher that decrypts the text that follows. */
+	protected Cipher multiRecipientCipher(DataInputStream in) throws Exception {
+		byte[] wrappedKey = MultiRecipientEnvelope.readWrappedKey(in, entityAlias);
+		if (wrappedKey == null) {
+			System.err.printf("The envelope is not addressed to %s%n", entityAlias);
+			throw new KeyNotFound(entityAlias);
+		}
+		SecretKey tkey = unwrapSecretKey(wrappedKey);
+		if (tkey == null) {
+			throw new KeyNotFound(entityAlias);
+		}
+		Cipher cipher = Cipher.getInstance(crypt_algorithm);
+		cipher.init(Cipher.DECRYPT_MODE, tkey);
+		return cipher;
+	}
+	
+	/** Decrypt a multi-recipient envelope file. The header is read through an unbuffered
+	 * stream, so the channel is left at the first byte of the encrypted text. */
+	protected void decryptMultiRecipientFile(FileChannel in, FileChannel out) throws Exception {
+		DataInputStream din = new DataInputStream(Channels.newInputStream(in));
+		din.readInt();
+		Cipher cipher = multiRecipientCipher(din);
+		cryptChannel(in, out, cipher);
+	}
+
+	/** The session is found in a concurrent map and the key is generated and wrapped with 
+	 * randomKey and wrapSecretKey, so this method needs no lock of its own. */
+	public void encryptSessionStream(String name, InputStream in, 
+			DataOutputStream out) throws Exception {
+		try {
+			Cipher cipher = KeySessionEnvelope.writeHeader(out, keySession(name));
+			cryptBlocks(in, out, cipher);
+			in.close();
+			out.close();
+		} 
+		catch (Exception e) {
+			e.printStackTrace();
+			throw e;
+		}
+	}
+	
+	/* return the current key session of a destination, starting a new one if the current
+	 * session has ended. The new session is made within compute, so when senders to one 
+	 * destination find the session ended at the same time, only one of them wraps a key. */
+	private KeySession keySession(final String name) throws Exception {
+		KeySession session = keySessions.get(name);
+		if (session != null && session.acquire()) {
+			return session;
+		}
+		final KeySession[] acquired = new KeySession[1];
+		final Exception[] failure = new Exception[1];
+		keySessions.compute(name, new BiFunction<String, KeySession, KeySession>() {
+			public KeySession apply(String key, KeySession current) {
+				if (current != null && current.acquire()) {
+					acquired[0] = current;
+					return current;
+				}
+				try {
+					KeySession created = newKeySession(name);
+					created.acquire();
+					acquired[0] = created;
+					return created;
+				} catch (Exception e) {
+					failure[0] = e;
+					return current;
+				}
+			}
+		});
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+		return acquired[0];
+	}
+	
+	/* start a key session with a new data key wrapped for the destination */
+	private KeySession newKeySession(String name) throws Exception {
+		SecretKey tkey = randomKey();
+		if (tkey == null) {
+			throw new CryptoException();
+		}
+		byte[] wrappedKey = wrapSecretKey(tkey, name);
+		if (wrappedKey == null) {
+			throw new KeyNotFound(name);
+		}
+		return new KeySession(tkey, KeySessionEnvelope.newKeyId(), wrappedKey, 
+				keySessionUses, keySessionLifetime);
+	}
+	
+	/** Decrypt the rest of a key session envelope after its MAGIC has been read. The 
+	 * data key is unwrapped only if it is not already held. */
+	protected void decryptKeySession(DataInputStream in, OutputStream out) throws Exception {
+		KeySessionEnvelope.Header header = KeySessionEnvelope.readHeader(in);
+		SecretKey tkey = receivedKeys.get(header);
+		if (tkey == null) {
+			tkey = unwrapSecretKey(header.getWrappedKey());
+			if (tkey == null) {
+				throw new KeyNotFound(entityAlias);
+			}
+			receivedKeys.put(header, tkey);
+		}
+		cryptBlocks(in, out, KeySessionEnvelope.decryptCipher(header, tkey));
+	}
+
+	/** The key is generated and wrapped with randomKey and wrapSecretKey, so this method
+	 * needs no lock of its own. */
+	public void encryptChunkedStream(String name, InputStream in, 
+			DataOutputStream out) throws Exception {
+		try {
+			SecretKey tkey = randomKey();
+			if (tkey == null) {
+				throw new CryptoException();
+			}
+			byte[] wrappedKey = wrapSecretKey(tkey, name);
+			if (wrappedKey == null) {
+				throw new KeyNotFound(name);
+			}
+			ChunkedEnvelope.encrypt(tkey, wrappedKey, in, out, 
+					ChunkedEnvelope.DEFAULT_CHUNK_SIZE, ForkJoinPool.commonPool());
+			in.close();
+			out.close();
+		} 
+		catch (Exception e) {
+			e.printStackTrace();
+			throw e;
+		}
+	}
+	
+	/** Decrypt the rest of a version 2 envelope after its MAGIC has been read. */
+	protected void decryptChunked(DataInputStream in, OutputStream out) throws Exception {
+		ChunkedEnvelope.Header header = ChunkedEnvelope.readHeader(in);
+		SecretKey tkey = unwrapSecretKey(header.getWrappedKey());
+		if (tkey == null) {
+			throw new KeyNotFound(entityAlias);
+		}
+		ChunkedEnvelope.decrypt(header, tkey, in, out, ForkJoinPool.commonPool());
+	}
+	
+	public byte[] decryptRange(File in, long offset, int length) throws Exception {
+		FileInputStream fin = new FileInputStream(in);
+		try {
+			ChunkedEnvelope.Header header = ChunkedEnvelope.readHeader(fin.getChannel());
+			SecretKey tkey = unwrapSecretKey(header.getWrappedKey());
+			if (tkey == null) {
+				throw new KeyNotFound(entityAlias);
+			}
+			return ChunkedEnvelope.decryptRange(fin.getChannel(), header, tkey, offset, length);
+		}
+		finally {
+			fin.close();
+		}
+	}
+
     /**
      * Sign a text string by computing its encrypted value under this entities
      * private key. The signature is generated by the SHA1withRSA algorithm.
@@ -567,6 +1292,108 @@ public class CryptoDefault extends CryptoEngine {
         return new String();
     }
 
+    /**
+     * Sign a batch of texts with one private key operation. Each text is a leaf of a 
+     * MerkleBatch and the root of the tree is signed with SHA256withRSA. The signature of
+     * each text is the hexadecimal form written by MerkleBatch.encode: the MAGIC "PGMT",
+     * the position of the text, the number of texts, the signature of the root and the 
+     * hashes that lead from the leaf of the text to the root. The texts are converted to 
+     * bytes in UTF-8.
+     * <p>
+     * The private key is held by getPrivateKey and the Signature is local, so this 
+     * method needs no lock of its own.
+     * </p>
+     * 
+     * @param texts the texts to be signed
+     * @return the batch signature of each text in the order of the texts, or an empty 
+     * string for each text if the batch cannot be signed
+     */
+    public List<String> signTexts(List<String> texts) {
+        List<String> signatures = new ArrayList<String>(texts.size());
+        if (texts.isEmpty()) {
+            return signatures;
+        }
+        try {
+            List<byte[]> leaves = new ArrayList<byte[]>(texts.size());
+            for (String text : texts) {
+                leaves.add(text.getBytes(BATCH_CHARSET));
+            }
+            MerkleBatch batch = new MerkleBatch(leaves);
+            
+            // sign the root of the tree
+            Signature signer = Signature.getInstance(MerkleBatch.SIGNATURE_ALGORITHM);
+            signer.initSign(this.getPrivateKey());
+            signer.update(batch.signedData());
+            byte[] signatureBytes = signer.sign();
+            
+            for (int k = 0; k < texts.size(); k++) {
+                signatures.add(batch.encode(k, signatureBytes));
+            }
+            return signatures;
+        } catch (Exception ex) {
+            Logger.getLogger(CryptoDefault.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        signatures.clear();
+        for (int k = 0; k < texts.size(); k++) {
+            signatures.add(new String());
+        }
+        return signatures;
+    }
+    
+    /**
+     * Check the batch signatures made by signTexts. The hashes of the proof of each 
+     * signature lead from the text to a root, which must match the number of texts and the
+     * position given in the signature. The signature of each distinct root is checked 
+     * with the public key of the declared name once, however many texts share it. The
+     * texts may come from several batches and in any order.
+     * 
+     * @param name the entity that signed the texts
+     * @param texts the texts
+     * @param signatures the batch signature of each text in the order of the texts
+     * @return true for each text whose signature is valid; every result is false if the 
+     * lists differ in size or the public key cannot be found
+     */
+    public boolean[] verifySignedTexts(String name, List<String> texts, List<String> signatures) {
+        boolean[] valid = new boolean[texts.size()];
+        if (signatures.size() != texts.size()) {
+            return valid;
+        }
+        // the result of checking each distinct signed root
+        Map<String, Boolean> roots = new HashMap<String, Boolean>();
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            Signature signer = null;
+            for (int k = 0; k < valid.length; k++) {
+                MerkleBatch.Proof proof = MerkleBatch.Proof.decode(signatures.get(k));
+                if (proof == null) {
+                    continue;
+                }
+                byte[] root = proof.root(md, texts.get(k).getBytes(BATCH_CHARSET));
+                if (root == null) {
+                    continue;
+                }
+                byte[] data = MerkleBatch.signedData(root, proof.getCount());
+                byte[] signatureBytes = proof.getSignature();
+                String id = byteArrayToHex(data) + byteArrayToHex(signatureBytes);
+                Boolean ok = roots.get(id);
+                if (ok == null) {
+                    if (signer == null) {
+                        signer = Signature.getInstance(MerkleBatch.SIGNATURE_ALGORITHM);
+                    }
+                    signer.initVerify(this.getPublicKey(name));
+                    signer.update(data);
+                    ok = signer.verify(signatureBytes);
+                    roots.put(id, ok);
+                }
+                valid[k] = ok;
+            }
+        } catch (Exception ex) {
+            Logger.getLogger(CryptoDefault.class.getName()).log(Level.SEVERE, null, ex);
+            Arrays.fill(valid, false);
+        }
+        return valid;
+    }
+    
     /**
      * Check a signature by decrypting it with the public key of the declared name and
      * comparing the decrypted text with the provided original text. The signature
@@ -18,6 +18,7 @@ import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.io.*;
 import java.security.Key;
+import java.util.List;
 import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
@@ -82,6 +83,12 @@ public abstract class CryptoEngine {
 	 */
 	abstract public PublicKey getPublicKey(String entityName) throws KeyNotFound;
 	
+	/** Read the public keys of all entities now so that the first call of getPublicKey
+	 * does not wait for the KeyStore.
+	 * @throws Exception if the KeyStore cannot be read
+	 */
+	abstract public void preloadPublicKeys() throws Exception;
+	
 	/**
 	 * Return the private key of the current entity from the KeyStore
 	 * @return PrivateKey
@@ -141,6 +148,98 @@ public abstract class CryptoEngine {
 	abstract public void decryptStream(DataInputStream in, 
 			OutputStream out) throws NoSuchAlgorithmException, Exception;
 	
+	/** 
+	 * Encrypt a file in the manner of encryptStream. The result is identical to the
+	 * result of encryptStream, but the file is read through a memory map and the
+	 * cipher works on large buffers.
+	 * @param name the destination
+	 * @param in the clear file
+	 * @param out the encrypted file
+	 * @throws KeyNotFound 
+	 * @throws Exception 
+	 */
+	abstract public void encryptFile(String name, File in, File out) 
+			throws KeyNotFound, Exception;
+	
+	/** 
+	 * Decrypt a file written by encryptStream or encryptFile in the manner of 
+	 * decryptStream, reading the file through a memory map.
+	 * @param in the encrypted file
+	 * @param out the clear file
+	 * @throws Exception 
+	 */
+	abstract public void decryptFile(File in, File out) throws Exception;
+	
+	/** 
+	 * Encrypt clear text from an input stream once for several destinations. The text is
+	 * encrypted under one symmetric key, which is wrapped with the public key of each 
+	 * destination, as described by MultiRecipientEnvelope. decryptStream and decryptFile 
+	 * recognize the envelope. A destination whose public key cannot be found or used is 
+	 * reported and left out of the envelope, so it does not prevent delivery to the others.
+	 * @param names the destinations
+	 * @param in the clear text
+	 * @param out receives the envelope
+	 * @return the destinations to which the envelope is addressed
+	 * @throws KeyNotFound if the key cannot be wrapped for any of the destinations
+	 * @throws Exception 
+	 */
+	abstract public List<String> encryptStream(List<String> names, InputStream in, 
+			DataOutputStream out) throws KeyNotFound, Exception;
+	
+	/** 
+	 * Encrypt a file once for several destinations in the manner of 
+	 * encryptStream(List, InputStream, DataOutputStream), reading the file through a 
+	 * memory map.
+	 * @param names the destinations
+	 * @param in the clear file
+	 * @param out the encrypted file
+	 * @return the destinations to which the envelope is addressed
+	 * @throws KeyNotFound if the key cannot be wrapped for any of the destinations
+	 * @throws Exception 
+	 */
+	abstract public List<String> encryptFile(List<String> names, File in, File out) 
+			throws KeyNotFound, Exception;
+	
+	/** 
+	 * Encrypt clear text from an input stream with the data key of the current key session
+	 * of the destination, as described by KeySessionEnvelope. The session starts with a new
+	 * key and ends after a limited number of envelopes or a limited time, so the public key
+	 * operations are shared by the envelopes of a session. decryptStream and decryptFile 
+	 * recognize the envelope and hold the unwrapped keys for later envelopes.
+	 * @param name the destination
+	 * @param in the clear text
+	 * @param out receives the envelope
+	 * @throws KeyNotFound 
+	 * @throws Exception 
+	 */
+	abstract public void encryptSessionStream(String name, InputStream in, 
+			DataOutputStream out) throws KeyNotFound, Exception;
+	
+	/** 
+	 * Encrypt clear text from an input stream into a version 2 envelope, which is described
+	 * by ChunkedEnvelope. The text is divided into chunks that are encrypted and 
+	 * authenticated separately by several threads. decryptStream and decryptFile 
+	 * recognize both versions of the envelope.
+	 * @param name the destination
+	 * @param in the clear text
+	 * @param out receives the envelope
+	 * @throws KeyNotFound 
+	 * @throws Exception 
+	 */
+	abstract public void encryptChunkedStream(String name, InputStream in, 
+			DataOutputStream out) throws KeyNotFound, Exception;
+	
+	/** 
+	 * Decrypt a range of the clear text of a version 2 envelope file without 
+	 * decrypting the rest of the file.
+	 * @param in the envelope
+	 * @param offset the position of the first byte of the range in the clear text
+	 * @param length the number of bytes in the range
+	 * @return the clear text of the range
+	 * @throws Exception 
+	 */
+	abstract public byte[] decryptRange(File in, long offset, int length) throws Exception;
+	
 	/** Perform a symmetric key encryption or decryption on stream.
 	 * In this system, unencrypted data is text but encrypted data is
 	 * a byte stream. 
@@ -173,6 +272,41 @@ public abstract class CryptoEngine {
      * @return 
      */
     abstract public boolean verifySignedText(String name, String text, String signature);
+    
+    /**
+     * Sign a batch of texts with one private key operation. The texts are the leaves of
+     * a hash tree whose root is signed, as described by MerkleBatch. The signature of 
+     * each text holds the signature of the root and the proof that the text belongs to
+     * the batch, so each text can be verified on its own.
+     * 
+     * @param texts the texts to be signed
+     * @return the signature of each text as a hexadecimal string representation
+     */
+    abstract public List<String> signTexts(List<String> texts);
+    
+    /**
+     * Check the batch signatures of several texts. The signature of the root of a batch 
+     * is checked once for all the texts of that batch. 
+     * 
+     * @param name the entity that signed the texts
+     * @param texts the texts
+     * @param signatures the signature of each text made by signTexts
+     * @return the result for each text
+     */
+    abstract public boolean[] verifySignedTexts(String name, List<String> texts, 
+    		List<String> signatures);
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	// the value of each hexadecimal digit indexed by its character or -1
+	private static final byte[] HEX_VALUES = new byte[128];
+	
+	static {
+		java.util.Arrays.fill(HEX_VALUES, (byte) -1);
+		for (int i = 0; i < 16; i++) {
+			HEX_VALUES[HEX_DIGITS[i]] = (byte) i;
+			HEX_VALUES[Character.toUpperCase(HEX_DIGITS[i])] = (byte) i;
+		}
+	}
 
 	/** 
 	 * A function to convert a string containing a byte array written
@@ -186,14 +320,13 @@ public abstract class CryptoEngine {
 	 */
 	public static byte[] hexStringToByteArray(String s) {
 		int len = s.length();
-		String subs;
-		byte [] ba = new byte[ (len + 1) / 2 ];
-		
-		for (int i = 0; i < len; i = i + 2) {
-			subs = s.substring(i, i + 2);
-			ba[ i/2] = (byte) Integer.parseInt(subs, 16);
+		if (len % 2 != 0) {
+			throw new StringIndexOutOfBoundsException(len);
+		}
+		byte [] ba = new byte[ len / 2 ];
+		if (hexToByteArray(s, 0, len, ba, 0) < 0) {
+			throw new NumberFormatException("not hexadecimal: " + s);
 		}
-		
 		return ba;
 		
 	}
@@ -206,25 +339,61 @@ public abstract class CryptoEngine {
 	 * hexadecimal equivalent of the byte. 
 	 */
 	public static String byteArrayToHex(byte[] ba) {
-		StringBuilder sb = new StringBuilder();
-		int ib;
-		int n16;
-		int r16;
-
-		for ( int k = 0; k < ba.length; ++k) {
-			ib = ba[k];
-			if (ib < 0) {
-				ib += 256;
+		char[] chars = new char[2 * ba.length];
+		byteArrayToHex(ba, 0, ba.length, chars, 0);
+		return new String(chars);
+	}
+	
+	/**
+	 * Write the hexadecimal representation of a range of bytes into a character
+	 * array supplied by the caller. The digits are lower case as in byteArrayToHex(byte[]).
+	 * @param ba the bytes
+	 * @param off the first byte
+	 * @param len the number of bytes
+	 * @param out receives 2 * len characters 
+	 * @param outOff the position of the first character in out
+	 * @return the number of characters written
+	 */
+	public static int byteArrayToHex(byte[] ba, int off, int len, char[] out, int outOff) {
+		int j = outOff;
+		for (int k = off; k < off + len; ++k) {
+			int ib = ba[k] & 0xff;
+			out[j++] = HEX_DIGITS[ib >>> 4];
+			out[j++] = HEX_DIGITS[ib & 0x0f];
+		}
+		return j - outOff;
+	}
+	
+	/**
+	 * Convert a range of hexadecimal characters into bytes placed in an array supplied
+	 * by the caller. Upper and lower case digits are accepted. 
+	 * @param s the characters
+	 * @param off the first character
+	 * @param len the number of characters which must be even
+	 * @param out receives len / 2 bytes
+	 * @param outOff the position of the first byte in out
+	 * @return the number of bytes written or -1 if the characters are not an even 
+	 * number of hexadecimal digits. Bytes may have been written when -1 is returned.
+	 */
+	public static int hexToByteArray(CharSequence s, int off, int len, byte[] out, int outOff) {
+		if (len % 2 != 0) {
+			return -1;
+		}
+		int j = outOff;
+		for (int i = off; i < off + len; i += 2) {
+			char c1 = s.charAt(i);
+			char c2 = s.charAt(i + 1);
+			if (c1 >= 128 || c2 >= 128) {
+				return -1;
 			}
-			n16 = ib / 16;
-			r16 = ib % 16;
-
-			sb.append( Integer.toHexString(n16));
-			sb.append( Integer.toHexString(r16));
+			int hi = HEX_VALUES[c1];
+			int lo = HEX_VALUES[c2];
+			if ((hi | lo) < 0) {
+				return -1;
+			}
+			out[j++] = (byte) ((hi << 4) | lo);
 		}
-		return sb.toString();
-
-
+		return j - outOff;
 	}
 	
 }
@@ -0,0 +1,505 @@
+	/****************************************************************CopyrightNotice
+	 * Copyright (c) 2013 WWN Software LLC 
+	 * All rights reserved. This program and the accompanying materials
+	 * are made available under the terms of the Pygar Public License v1.0
+	 * which accompanies this distribution, and is available at
+	 * http://ectn.typepad.com/pygar/pygar-public-license.html
+	 *
+	 * Contributors:
+	 *    Paul Baker, WWN Software LLC
+	 *******************************************************************************/
+
+package pygar.cryptography;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+
+import net.jcip.annotations.ThreadSafe;
+
+/** A FieldCodec encrypts and decrypts the short values found in the fields of a
+ * document using a symmetric key. The methods work on buffers supplied by the caller
+ * and each thread receives its own cipher context with reusable buffers. Consequently,
+ * after a thread has warmed up, the encryption of a field does not allocate memory
+ * except for a String result when one is requested.
+ * <p>
+ * The encrypted value is identical to the value produced by the original field
+ * encryption in FieldCryptoXmlTxt0. That procedure passed the complete blocks of a value
+ * through Cipher.update and called Cipher.doFinal only for a partial final block.
+ * Therefore, a value whose length is a multiple of the block size is encrypted
+ * without a padding block. We preserve this property because documents that have already
+ * been encrypted must continue to match newly encrypted documents.
+ * </p><p>
+ * When the cipher encrypts each block on its own and pads the final block, as the
+ * default AES/ECB/PKCS5Padding does, encodeStrings encrypts the values of a whole record
+ * with one call to Cipher.update. Each value is padded to the block boundary in the
+ * manner of Cipher.doFinal, so the result is identical to the encryption of each value
+ * alone.
+ * </p>
+ *
+ * @author pbaker
+ *
+ */
+@ThreadSafe
+public class FieldCodec {
+
+	/** The cipher context of one thread. */
+	public static final class Context {
+		final Cipher encrypt;
+		final Cipher decrypt;
+		final CharsetEncoder encoder;
+		byte[] plain;
+		byte[] coded;
+		char[] chars;
+		int[] lengths;
+
+		Context(String algorithm, Key key, Charset charset) throws GeneralSecurityException {
+			encrypt = Cipher.getInstance(algorithm);
+			encrypt.init(Cipher.ENCRYPT_MODE, key);
+			decrypt = Cipher.getInstance(algorithm);
+			decrypt.init(Cipher.DECRYPT_MODE, key);
+			encoder = charset.newEncoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			plain = new byte[256];
+			coded = new byte[256];
+			chars = new char[512];
+			lengths = new int[32];
+		}
+
+		/** @return a byte buffer of this thread with at least n bytes, which keeps its
+		 * content when it grows */
+		public byte[] plainBuffer(int n) {
+			if (plain.length < n) {
+				plain = Arrays.copyOf(plain, Math.max(n, 2 * plain.length));
+			}
+			return plain;
+		}
+
+		/** @return a second byte buffer of this thread with at least n bytes */
+		public byte[] codedBuffer(int n) {
+			if (coded.length < n) {
+				coded = new byte[Math.max(n, 2 * coded.length)];
+			}
+			return coded;
+		}
+
+		/** @return a character buffer of this thread with at least n characters */
+		public char[] charBuffer(int n) {
+			if (chars.length < n) {
+				chars = new char[Math.max(n, 2 * chars.length)];
+			}
+			return chars;
+		}
+
+		int[] lengthBuffer(int n) {
+			if (lengths.length < n) {
+				lengths = new int[Math.max(n, 2 * lengths.length)];
+			}
+			return lengths;
+		}
+	}
+
+	private final String algorithm;
+	private final Key key;
+	private final Charset charset;
+	private final boolean asciiCompatible;
+	private final int blockSize;
+	private final boolean batchable;
+	private final ThreadLocal<Context> contexts;
+
+	/**
+	 * Create a codec for the algorithm and key. The text of a field is converted to
+	 * bytes with the platform default character set, as String.getBytes() does.
+	 * @param algorithm the name of the cipher, e.g. CryptoEngine.crypt_algorithm
+	 * @param key the symmetric key
+	 * @throws GeneralSecurityException if the algorithm or the key is not usable
+	 */
+	public FieldCodec(String algorithm, Key key) throws GeneralSecurityException {
+		this.algorithm = algorithm;
+		this.key = key;
+		this.charset = Charset.defaultCharset();
+		String cs = charset.name();
+		this.asciiCompatible = cs.equals("UTF-8") || cs.equals("US-ASCII") || cs.equals("ISO-8859-1");
+		this.contexts = new ThreadLocal<Context>();
+		// create the context of the calling thread now to verify the algorithm and key
+		Context ctx = new Context(algorithm, key, charset);
+		contexts.set(ctx);
+		this.blockSize = ctx.encrypt.getBlockSize();
+		this.batchable = checkBatch(ctx.encrypt, blockSize);
+	}
+
+	/* True if the cipher encrypts a run of padded values with one call to update exactly as it
+	 * encrypts each value alone. This holds for ECB with PKCS5 padding, but not for a
+	 * mode that chains the blocks or a cipher without blocks. */
+	private static boolean checkBatch(Cipher cipher, int blockSize) {
+		if (blockSize < 2 || cipher.getIV() != null) {
+			return false;
+		}
+		try {
+			int len1 = blockSize + 3;
+			int len2 = 2 * blockSize;
+			byte[] sample = new byte[len1 + len2];
+			for (int i = 0; i < sample.length; i++) {
+				sample[i] = (byte) (7 * i + 1);
+			}
+			byte[] single = new byte[3 * blockSize + len2];
+			int n = encrypt(cipher, sample, 0, len1, single, 0, blockSize);
+			n += encrypt(cipher, sample, len1, len2, single, n, blockSize);
+			byte[] padded = new byte[n];
+			System.arraycopy(sample, 0, padded, 0, len1);
+			Arrays.fill(padded, len1, 2 * blockSize, (byte) (blockSize - 3));
+			System.arraycopy(sample, len1, padded, 2 * blockSize, len2);
+			byte[] batch = new byte[n + blockSize];
+			int m = cipher.update(padded, 0, n, batch, 0);
+			return m == n && Arrays.equals(Arrays.copyOf(single, n), Arrays.copyOf(batch, m));
+		} catch (GeneralSecurityException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Return the cipher context of the calling thread, creating it on first use.
+	 * @return the context
+	 * @throws CryptoException
+	 */
+	public Context context() throws CryptoException {
+		Context ctx = contexts.get();
+		if (ctx == null) {
+			try {
+				ctx = new Context(algorithm, key, charset);
+			} catch (GeneralSecurityException e) {
+				e.printStackTrace();
+				throw new CryptoException();
+			}
+			contexts.set(ctx);
+		}
+		return ctx;
+	}
+
+	/** @return true if encodeStrings encrypts a group of values with one cipher call */
+	public boolean isBatchable() {
+		return batchable;
+	}
+
+	/** @return the block size of the cipher */
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * The length of the encryption of a value of len bytes.
+	 * @param len the length of the clear value
+	 * @return the length of the encrypted value
+	 */
+	public int encryptedLength(int len) {
+		int rem = len % blockSize;
+		return rem == 0 ? len : len - rem + blockSize;
+	}
+
+	/**
+	 * Encrypt a range of bytes with a cipher in the manner of the original field encryption.
+	 * Complete groups of stride bytes pass through Cipher.update. A final partial group
+	 * is passed to Cipher.doFinal and padded.
+	 * @param cipher a cipher in encrypt mode
+	 * @param in the clear bytes
+	 * @param off the first clear byte
+	 * @param len the number of clear bytes
+	 * @param out receives the encrypted bytes
+	 * @param outOff the position of the first encrypted byte
+	 * @param stride the length of the groups, a multiple of the block size
+	 * @return the number of encrypted bytes
+	 * @throws GeneralSecurityException
+	 */
+	public static int encrypt(Cipher cipher, byte[] in, int off, int len, byte[] out, int outOff,
+			int stride) throws GeneralSecurityException {
+		int rem = len % stride;
+		int full = len - rem;
+		int n = 0;
+		if (full > 0) {
+			n = cipher.update(in, off, full, out, outOff);
+		}
+		if (rem > 0) {
+			n += cipher.doFinal(in, off + full, rem, out, outOff + n);
+		}
+		return n;
+	}
+
+	/**
+	 * Encrypt a range of bytes into a buffer supplied by the caller.
+	 * @param in the clear bytes
+	 * @param off the first clear byte
+	 * @param len the number of clear bytes
+	 * @param out receives encryptedLength(len) bytes
+	 * @param outOff the position of the first encrypted byte
+	 * @return the number of encrypted bytes
+	 * @throws CryptoException
+	 */
+	public int encrypt(byte[] in, int off, int len, byte[] out, int outOff) throws CryptoException {
+		Context ctx = context();
+		try {
+			return encrypt(ctx.encrypt, in, off, len, out, outOff, blockSize);
+		} catch (GeneralSecurityException e) {
+			e.printStackTrace();
+			throw new CryptoException();
+		}
+	}
+
+	/**
+	 * Encrypt the remaining bytes of the input buffer into the output buffer. The
+	 * position of each buffer is advanced.
+	 * @param in the clear bytes
+	 * @param out receives encryptedLength(in.remaining()) bytes
+	 * @return the number of encrypted bytes
+	 * @throws CryptoException
+	 */
+	public int encrypt(ByteBuffer in, ByteBuffer out) throws CryptoException {
+		Context ctx = context();
+		int limit = in.limit();
+		int rem = in.remaining() % blockSize;
+		int n = 0;
+		try {
+			if (in.remaining() > rem) {
+				in.limit(limit - rem);
+				n = ctx.encrypt.update(in, out);
+				in.limit(limit);
+			}
+			if (rem > 0) {
+				n += ctx.encrypt.doFinal(in, out);
+			}
+		} catch (GeneralSecurityException e) {
+			in.limit(limit);
+			e.printStackTrace();
+			throw new CryptoException();
+		}
+		return n;
+	}
+
+	/**
+	 * Decrypt a range of bytes into a buffer supplied by the caller. The input must
+	 * end with a padded block.
+	 * @param in the encrypted bytes
+	 * @param off the first encrypted byte
+	 * @param len the number of encrypted bytes
+	 * @param out receives no more than len bytes
+	 * @param outOff the position of the first clear byte
+	 * @return the number of clear bytes
+	 * @throws CryptoException
+	 */
+	public int decrypt(byte[] in, int off, int len, byte[] out, int outOff) throws CryptoException {
+		Context ctx = context();
+		try {
+			return ctx.decrypt.doFinal(in, off, len, out, outOff);
+		} catch (GeneralSecurityException e) {
+			e.printStackTrace();
+			throw new CryptoException();
+		}
+	}
+
+	/**
+	 * Decrypt the remaining bytes of the input buffer into the output buffer. The
+	 * position of each buffer is advanced.
+	 * @param in the encrypted bytes
+	 * @param out receives no more than in.remaining() bytes
+	 * @return the number of clear bytes
+	 * @throws CryptoException
+	 */
+	public int decrypt(ByteBuffer in, ByteBuffer out) throws CryptoException {
+		Context ctx = context();
+		try {
+			return ctx.decrypt.doFinal(in, out);
+		} catch (GeneralSecurityException e) {
+			e.printStackTrace();
+			throw new CryptoException();
+		}
+	}
+
+	/**
+	 * Convert text to bytes in the plain buffer of the context, starting at position pos.
+	 * @return the number of bytes
+	 */
+	private int textBytes(Context ctx, CharSequence s, int off, int len, int pos) throws CryptoException {
+		if (asciiCompatible) {
+			byte[] b = ctx.plainBuffer(pos + len);
+			int i = 0;
+			for (; i < len; i++) {
+				char c = s.charAt(off + i);
+				if (c >= 0x80) {
+					break;
+				}
+				b[pos + i] = (byte) c;
+			}
+			if (i == len) {
+				return len;
+			}
+		}
+		CharsetEncoder encoder = ctx.encoder;
+		CharBuffer cb = CharBuffer.wrap(s, off, off + len);
+		int capacity = (int) Math.ceil(len * encoder.maxBytesPerChar());
+		ByteBuffer bb = ByteBuffer.wrap(ctx.plainBuffer(pos + capacity), pos, capacity);
+		encoder.reset();
+		CoderResult cr = encoder.encode(cb, bb, true);
+		if (!cr.isUnderflow()) {
+			throw new CryptoException();
+		}
+		encoder.flush(bb);
+		return bb.position() - pos;
+	}
+
+	/**
+	 * Encrypt a range of text and write the hexadecimal representation of the result
+	 * into a character array supplied by the caller.
+	 * @param s the clear text
+	 * @param off the first character
+	 * @param len the number of characters
+	 * @param out receives the hexadecimal characters
+	 * @param outOff the position of the first character written
+	 * @return the number of characters written
+	 * @throws CryptoException
+	 */
+	public int encodeHex(CharSequence s, int off, int len, char[] out, int outOff) throws CryptoException {
+		Context ctx = context();
+		int n = textBytes(ctx, s, off, len, 0);
+		byte[] coded = ctx.codedBuffer(encryptedLength(n));
+		int m = encrypt(ctx.plain, 0, n, coded, 0);
+		return CryptoEngine.byteArrayToHex(coded, 0, m, out, outOff);
+	}
+
+	/**
+	 * Encrypt text and return the hexadecimal representation of the result.
+	 * @param s the clear text
+	 * @return the encrypted text in hexadecimal
+	 * @throws CryptoException
+	 */
+	public String encodeString(String s) throws CryptoException {
+		return encodeString(s, CiphertextEncoding.HEX);
+	}
+
+	/**
+	 * Encrypt text and return the result written in an encoding.
+	 * @param s the clear text
+	 * @param encoding the encoding of the encrypted value
+	 * @return the encrypted text
+	 * @throws CryptoException
+	 */
+	public String encodeString(String s, CiphertextEncoding encoding) throws CryptoException {
+		Context ctx = context();
+		int n = textBytes(ctx, s, 0, s.length(), 0);
+		int m = encryptedLength(n);
+		char[] chars = ctx.charBuffer(encoding.encodedLength(m));
+		m = encrypt(ctx.plain, 0, n, ctx.codedBuffer(m), 0);
+		int k = encoding.encode(ctx.coded, 0, m, chars, 0);
+		return new String(chars, 0, k);
+	}
+
+	/**
+	 * Encrypt a group of texts, such as the fields of a record, and write each result in an
+	 * encoding. Each result is the same as the result of encodeString. If the cipher allows
+	 * it, the texts are padded to the block boundary and encrypted together with one call
+	 * to Cipher.update; otherwise they are encrypted one at a time.
+	 * @param values the clear texts
+	 * @param off the first text
+	 * @param len the number of texts
+	 * @param encoding the encoding of the encrypted values
+	 * @param out receives the encrypted texts, which may be the values array
+	 * @param outOff the position of the first encrypted text
+	 * @throws CryptoException
+	 */
+	public void encodeStrings(String[] values, int off, int len, CiphertextEncoding encoding,
+			String[] out, int outOff) throws CryptoException {
+		if (!batchable) {
+			for (int i = 0; i < len; i++) {
+				out[outOff + i] = encodeString(values[off + i], encoding);
+			}
+			return;
+		}
+		Context ctx = context();
+		int[] lengths = ctx.lengthBuffer(len);
+		int total = 0;
+		int longest = 0;
+		for (int i = 0; i < len; i++) {
+			String s = values[off + i];
+			int n = textBytes(ctx, s, 0, s.length(), total);
+			int m = encryptedLength(n);
+			// the padding that Cipher.doFinal adds to a partial final block
+			byte[] plain = ctx.plainBuffer(total + m);
+			Arrays.fill(plain, total + n, total + m, (byte) (m - n));
+			lengths[i] = m;
+			total += m;
+			longest = Math.max(longest, m);
+		}
+		byte[] coded = ctx.codedBuffer(total);
+		if (total > 0) {
+			try {
+				int n = ctx.encrypt.update(ctx.plain, 0, total, coded, 0);
+				if (n != total) {
+					System.err.println("FieldCodec.encodeStrings: cipher held back " + (total - n) + " bytes");
+					throw new CryptoException();
+				}
+			} catch (GeneralSecurityException e) {
+				e.printStackTrace();
+				throw new CryptoException();
+			}
+		}
+		char[] chars = ctx.charBuffer(encoding.encodedLength(longest));
+		int pos = 0;
+		for (int i = 0; i < len; i++) {
+			int k = encoding.encode(coded, pos, lengths[i], chars, 0);
+			out[outOff + i] = new String(chars, 0, k);
+			pos += lengths[i];
+		}
+	}
+
+	/**
+	 * Decrypt text given as the hexadecimal representation of an encrypted value.
+	 * @param hex the encrypted text in hexadecimal
+	 * @return the clear text
+	 * @throws CryptoException if the text is not hexadecimal or cannot be decrypted
+	 */
+	public String decodeString(CharSequence hex) throws CryptoException {
+		return decodeString(hex, CiphertextEncoding.HEX);
+	}
+
+	/**
+	 * Decrypt text given in an encoding of an encrypted value.
+	 * @param text the encrypted text
+	 * @param encoding the encoding of the encrypted value
+	 * @return the clear text
+	 * @throws CryptoException if the text is not in the encoding or cannot be decrypted
+	 */
+	public String decodeString(CharSequence text, CiphertextEncoding encoding) throws CryptoException {
+		Context ctx = context();
+		int len = text.length();
+		byte[] coded = ctx.codedBuffer(encoding.decodedLength(len));
+		int n = encoding.decode(text, 0, len, coded, 0);
+		if (n < 0) {
+			System.err.println("FieldCodec.decodeString given text that is not " + encoding);
+			throw new CryptoException();
+		}
+		return decodeBytes(coded, 0, n);
+	}
+
+	/**
+	 * Decrypt a range of bytes and return the clear text.
+	 * @param in the encrypted bytes
+	 * @param off the first encrypted byte
+	 * @param len the number of encrypted bytes
+	 * @return the clear text
+	 * @throws CryptoException
+	 */
+	public String decodeBytes(byte[] in, int off, int len) throws CryptoException {
+		Context ctx = context();
+		byte[] plain = ctx.plainBuffer(len);
+		int m = decrypt(in, off, len, plain, 0);
+		return new String(plain, 0, m, charset);
+	}
+
+}
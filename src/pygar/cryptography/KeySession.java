@@ -0,0 +1,86 @@
+	/****************************************************************CopyrightNotice
+	 * Copyright (c) 2013 WWN Software LLC 
+	 * All rights reserved. This program and the accompanying materials
+	 * are made available under the terms of the Pygar Public License v1.0
+	 * which accompanies this distribution, and is available at
+	 * http://ectn.typepad.com/pygar/pygar-public-license.html
+	 *
+	 * Contributors:
+	 *    Paul Baker, WWN Software LLC
+	 *******************************************************************************/
+
+package pygar.cryptography;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.SecretKey;
+
+import net.jcip.annotations.ThreadSafe;
+
+/** A KeySession is a data key that a sender uses for several envelopes to the same
+ * receiver. The key is wrapped with the public key of the receiver once, when the session
+ * starts, and the same wrapped key is placed in each envelope of the session. A receiver 
+ * that has already unwrapped the key finds it by the key id and skips the private key
+ * operation. The session ends after a number of envelopes or a time, whichever comes 
+ * first, and the sender then starts a new session with a new key.
+ *
+ * @author pbaker
+ *
+ */
+@ThreadSafe
+public final class KeySession {
+
+	/** The number of bytes in a key id. */
+	public static final int KEY_ID_BYTES = 16;
+
+	private final SecretKey key;
+	private final byte[] keyId;
+	private final byte[] wrappedKey;
+	private final int maxUses;
+	private final long expires;
+	private final AtomicInteger uses;
+
+	/**
+	 * Start a session.
+	 * @param key the data key
+	 * @param keyId a random id of the key
+	 * @param wrappedKey the data key wrapped with the public key of the receiver
+	 * @param maxUses the number of envelopes that may use the key
+	 * @param lifetime the time in milliseconds for which the key may be used
+	 */
+	public KeySession(SecretKey key, byte[] keyId, byte[] wrappedKey, int maxUses, long lifetime) {
+		this.key = key;
+		this.keyId = keyId.clone();
+		this.wrappedKey = wrappedKey.clone();
+		this.maxUses = maxUses;
+		this.expires = System.nanoTime() + lifetime * 1000000L;
+		this.uses = new AtomicInteger();
+	}
+
+	/**
+	 * Count one more envelope against the session.
+	 * @return true if the envelope may use the key, false if the session has ended
+	 */
+	public boolean acquire() {
+		if (System.nanoTime() - expires >= 0) {
+			return false;
+		}
+		return uses.incrementAndGet() <= maxUses;
+	}
+
+	/** @return the data key */
+	public SecretKey getKey() {
+		return key;
+	}
+
+	/** @return the id of the data key */
+	public byte[] getKeyId() {
+		return keyId.clone();
+	}
+
+	/** @return the data key wrapped with the public key of the receiver */
+	public byte[] getWrappedKey() {
+		return wrappedKey.clone();
+	}
+
+}
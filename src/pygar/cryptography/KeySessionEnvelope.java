@@ -0,0 +1,264 @@
+	/****************************************************************CopyrightNotice
+	 * Copyright (c) 2013 WWN Software LLC 
+	 * All rights reserved. This program and the accompanying materials
+	 * are made available under the terms of the Pygar Public License v1.0
+	 * which accompanies this distribution, and is available at
+	 * http://ectn.typepad.com/pygar/pygar-public-license.html
+	 *
+	 * Contributors:
+	 *    Paul Baker, WWN Software LLC
+	 *******************************************************************************/
+
+package pygar.cryptography;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/** The KeySessionEnvelope carries one text encrypted with the data key of a KeySession.
+ * Because the same key serves many envelopes, each envelope is encrypted with AES-GCM 
+ * under a random nonce, so equal texts give different envelopes and any change to an 
+ * envelope is detected. The envelope still holds the wrapped key, so a receiver that has
+ * not seen the session before can read it, but a receiver that has unwrapped the key 
+ * before finds it in its ReceivedKeys by the key id.
+ * <p>
+ * The envelope is written as follows. All numbers are big endian as written by
+ * DataOutputStream.
+ * </p>
+ * <pre>
+ *   int      MAGIC, the characters "PGKS"
+ *   byte[16] the key id
+ *   int      length of the wrapped key
+ *   byte[]   the wrapped key
+ *   byte[12] the nonce
+ *   byte[]   the encrypted text followed by the 16 byte tag
+ * </pre>
+ * <p>
+ * MAGIC and the key id are authenticated as additional data.
+ * </p>
+ *
+ * @author pbaker
+ *
+ */
+@ThreadSafe
+public class KeySessionEnvelope {
+
+	/** The first four bytes of a key session envelope, "PGKS". */
+	public static final int MAGIC = 0x50474B53;
+
+	static final String TRANSFORMATION = "AES/GCM/NoPadding";
+	static final int NONCE_BYTES = 12;
+	static final int TAG_BYTES = 16;
+	static final int MAX_WRAPPED_KEY = 64 * 1024;
+
+	private static final SecureRandom random = new SecureRandom();
+
+	private KeySessionEnvelope() {
+	}
+
+	/** The fields at the start of an envelope. */
+	public static final class Header {
+		final byte[] keyId;
+		final byte[] wrappedKey;
+		final byte[] nonce;
+
+		Header(byte[] keyId, byte[] wrappedKey, byte[] nonce) {
+			this.keyId = keyId;
+			this.wrappedKey = wrappedKey;
+			this.nonce = nonce;
+		}
+
+		/** @return the id of the data key */
+		public byte[] getKeyId() {
+			return keyId;
+		}
+
+		/** @return the data key wrapped with the public key of the receiver */
+		public byte[] getWrappedKey() {
+			return wrappedKey;
+		}
+	}
+
+	/** @return a new random key id */
+	public static byte[] newKeyId() {
+		byte[] keyId = new byte[KeySession.KEY_ID_BYTES];
+		random.nextBytes(keyId);
+		return keyId;
+	}
+
+	/**
+	 * Write the header of an envelope and return the cipher that encrypts the text.
+	 * @param out receives the envelope
+	 * @param session the key session of the receiver
+	 * @return a cipher in ENCRYPT_MODE
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 */
+	public static Cipher writeHeader(DataOutputStream out, KeySession session) 
+			throws IOException, GeneralSecurityException {
+		byte[] keyId = session.getKeyId();
+		byte[] wrappedKey = session.getWrappedKey();
+		byte[] nonce = new byte[NONCE_BYTES];
+		random.nextBytes(nonce);
+		out.writeInt(MAGIC);
+		out.write(keyId);
+		out.writeInt(wrappedKey.length);
+		out.write(wrappedKey);
+		out.write(nonce);
+		return cipher(Cipher.ENCRYPT_MODE, session.getKey(), keyId, nonce);
+	}
+
+	/**
+	 * Read the rest of the header after the MAGIC. The stream is left at the first byte
+	 * of the encrypted text.
+	 * @param in the envelope
+	 * @return the header
+	 * @throws IOException if the header is not valid
+	 */
+	public static Header readHeader(DataInputStream in) throws IOException {
+		byte[] keyId = new byte[KeySession.KEY_ID_BYTES];
+		in.readFully(keyId);
+		int length = in.readInt();
+		if (length <= 0 || length > MAX_WRAPPED_KEY) {
+			throw new IOException("invalid key session envelope header");
+		}
+		byte[] wrappedKey = new byte[length];
+		in.readFully(wrappedKey);
+		byte[] nonce = new byte[NONCE_BYTES];
+		in.readFully(nonce);
+		return new Header(keyId, wrappedKey, nonce);
+	}
+
+	/**
+	 * @param header the header of an envelope
+	 * @param key the data key
+	 * @return a cipher in DECRYPT_MODE for the text of the envelope
+	 * @throws GeneralSecurityException
+	 */
+	public static Cipher decryptCipher(Header header, Key key) throws GeneralSecurityException {
+		return cipher(Cipher.DECRYPT_MODE, key, header.keyId, header.nonce);
+	}
+
+	/**
+	 * @param ch an envelope file
+	 * @return true if the file begins with MAGIC
+	 * @throws IOException
+	 */
+	public static boolean isKeySession(FileChannel ch) throws IOException {
+		if (ch.size() < 4) {
+			return false;
+		}
+		ByteBuffer buf = ByteBuffer.allocate(4);
+		while (buf.hasRemaining()) {
+			if (ch.read(buf, buf.position()) < 0) {
+				return false;
+			}
+		}
+		return buf.getInt(0) == MAGIC;
+	}
+
+	private static Cipher cipher(int mode, Key key, byte[] keyId, byte[] nonce) 
+			throws GeneralSecurityException {
+		Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+		cipher.init(mode, key, new GCMParameterSpec(8 * TAG_BYTES, nonce));
+		byte[] aad = new byte[4 + keyId.length];
+		ByteBuffer.wrap(aad).putInt(MAGIC).put(keyId);
+		cipher.updateAAD(aad);
+		return cipher;
+	}
+
+	/** The data keys that a receiver has unwrapped, found by key id. An entry is used only
+	 * for an envelope with the same wrapped key, and the cache holds a limited number of
+	 * keys for a limited time. The key used least recently is dropped first.
+	 */
+	@ThreadSafe
+	public static final class ReceivedKeys {
+
+		private static final class Entry {
+			final byte[] wrappedKey;
+			final SecretKey key;
+			final long expires;
+
+			Entry(byte[] wrappedKey, SecretKey key, long expires) {
+				this.wrappedKey = wrappedKey;
+				this.key = key;
+				this.expires = expires;
+			}
+		}
+
+		private final int capacity;
+		private final long lifetime;
+		@GuardedBy("this")
+		private final LinkedHashMap<String, Entry> keys;
+
+		/**
+		 * Create an empty cache.
+		 * @param capacity the number of keys to hold
+		 * @param lifetime the time in milliseconds for which a key is held
+		 */
+		public ReceivedKeys(int capacity, long lifetime) {
+			this.capacity = capacity;
+			this.lifetime = lifetime;
+			this.keys = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		}
+
+		/**
+		 * @param header the header of an envelope
+		 * @return the data key of the envelope or null if it is not held
+		 */
+		public synchronized SecretKey get(Header header) {
+			String id = CryptoEngine.byteArrayToHex(header.keyId);
+			Entry entry = keys.get(id);
+			if (entry == null) {
+				return null;
+			}
+			if (System.nanoTime() - entry.expires >= 0) {
+				keys.remove(id);
+				return null;
+			}
+			if (!MessageDigest.isEqual(entry.wrappedKey, header.wrappedKey)) {
+				return null;
+			}
+			return entry.key;
+		}
+
+		/**
+		 * Hold the data key of an envelope.
+		 * @param header the header of the envelope
+		 * @param key the unwrapped key
+		 */
+		public synchronized void put(Header header, SecretKey key) {
+			if (capacity <= 0) {
+				return;
+			}
+			keys.put(CryptoEngine.byteArrayToHex(header.keyId), 
+					new Entry(header.wrappedKey, key, System.nanoTime() + lifetime * 1000000L));
+			Iterator<Entry> i = keys.values().iterator();
+			while (keys.size() > capacity && i.hasNext()) {
+				i.next();
+				i.remove();
+			}
+		}
+
+		/** Drop every key. */
+		public synchronized void clear() {
+			keys.clear();
+		}
+	}
+
+}
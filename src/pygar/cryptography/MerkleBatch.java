@@ -0,0 +1,302 @@
+	/****************************************************************CopyrightNotice
+	 * Copyright (c) 2013 WWN Software LLC 
+	 * All rights reserved. This program and the accompanying materials
+	 * are made available under the terms of the Pygar Public License v1.0
+	 * which accompanies this distribution, and is available at
+	 * http://ectn.typepad.com/pygar/pygar-public-license.html
+	 *
+	 * Contributors:
+	 *    Paul Baker, WWN Software LLC
+	 *******************************************************************************/
+
+package pygar.cryptography;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+
+import net.jcip.annotations.Immutable;
+
+/** A MerkleBatch is a hash tree over a batch of texts. Signing the root of the tree signs
+ * every text of the batch with a single private key operation. Each text then carries the
+ * signature of the root together with the hashes needed to compute the root from that
+ * text, which is called the proof. A verifier that receives many texts of one batch checks
+ * the signature of the root once and the proof of each text with a few hash operations.
+ * <p>
+ * A leaf is SHA-256 of the byte 0 followed by the text and a node is SHA-256 of the byte 1
+ * followed by its two children, so a leaf can never be taken for a node. When a level has
+ * an odd number of hashes the last one moves up to the next level unchanged. The signed
+ * data is MAGIC, the number of texts and the root, so a proof is valid only for the
+ * position and batch size it was made for.
+ * </p>
+ * <p>
+ * A batch signature is written as hexadecimal text in the following form:
+ * </p>
+ * <pre>
+ *   int     MAGIC, the characters "PGMT"
+ *   int     position of the text in the batch
+ *   int     number of texts in the batch
+ *   int     length of the signature of the root
+ *   byte[]  the signature of the root
+ *   byte[]  the hashes of the proof, 32 bytes each, from the leaf upwards
+ * </pre>
+ *
+ * @author pbaker
+ *
+ */
+@Immutable
+public final class MerkleBatch {
+
+	/** The first four bytes of a batch signature, "PGMT". */
+	public static final int MAGIC = 0x50474D54;
+	/** The algorithm that signs the root. */
+	public static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+	static final String DIGEST_ALGORITHM = "SHA-256";
+	static final int HASH_BYTES = 32;
+	static final int MAX_SIGNATURE = 64 * 1024;
+
+	private static final byte LEAF = 0;
+	private static final byte NODE = 1;
+
+	// levels[0] holds the leaves and the last level holds the root
+	private final byte[][][] levels;
+
+	/**
+	 * Build the tree of a batch.
+	 * @param texts the texts, at least one
+	 * @throws GeneralSecurityException if SHA-256 is not available
+	 */
+	public MerkleBatch(List<byte[]> texts) throws GeneralSecurityException {
+		if (texts.isEmpty()) {
+			throw new IllegalArgumentException("empty batch");
+		}
+		MessageDigest md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+		int height = 1;
+		for (int n = texts.size(); n > 1; n = (n + 1) / 2) {
+			height++;
+		}
+		levels = new byte[height][][];
+		byte[][] leaves = new byte[texts.size()][];
+		for (int k = 0; k < leaves.length; k++) {
+			leaves[k] = leafHash(md, texts.get(k));
+		}
+		levels[0] = leaves;
+		for (int h = 1; h < height; h++) {
+			byte[][] below = levels[h - 1];
+			byte[][] level = new byte[(below.length + 1) / 2][];
+			for (int k = 0; k < level.length; k++) {
+				level[k] = 2 * k + 1 < below.length 
+						? nodeHash(md, below[2 * k], below[2 * k + 1]) : below[2 * k];
+			}
+			levels[h] = level;
+		}
+	}
+
+	/** @return the number of texts in the batch */
+	public int size() {
+		return levels[0].length;
+	}
+
+	/** @return the root of the tree */
+	public byte[] root() {
+		return levels[levels.length - 1][0].clone();
+	}
+
+	/** @return the data that is signed to sign the batch */
+	public byte[] signedData() {
+		return signedData(levels[levels.length - 1][0], size());
+	}
+
+	/**
+	 * @param index the position of a text in the batch
+	 * @return the hashes needed to compute the root from the text, from the leaf upwards
+	 */
+	public byte[][] proof(int index) {
+		byte[][] path = new byte[levels.length - 1][];
+		int n = 0;
+		for (int h = 0; h < levels.length - 1; h++) {
+			int sibling = index ^ 1;
+			if (sibling < levels[h].length) {
+				path[n++] = levels[h][sibling];
+			}
+			index >>>= 1;
+		}
+		return Arrays.copyOf(path, n);
+	}
+
+	/**
+	 * Compute the root of a batch from one text and its proof.
+	 * @param md a SHA-256 digest
+	 * @param text the text
+	 * @param index the position of the text in the batch
+	 * @param count the number of texts in the batch
+	 * @param path the proof of the text
+	 * @return the root or null if the proof does not fit the position and size
+	 */
+	public static byte[] rootFromProof(MessageDigest md, byte[] text, int index, int count,
+			byte[][] path) {
+		if (count <= 0 || index < 0 || index >= count) {
+			return null;
+		}
+		byte[] hash = leafHash(md, text);
+		int n = 0;
+		for (int width = count; width > 1; width = (width + 1) / 2) {
+			int sibling = index ^ 1;
+			if (sibling < width) {
+				if (n == path.length || path[n].length != HASH_BYTES) {
+					return null;
+				}
+				hash = (index & 1) == 0 ? nodeHash(md, hash, path[n]) : nodeHash(md, path[n], hash);
+				n++;
+			}
+			index >>>= 1;
+		}
+		return n == path.length ? hash : null;
+	}
+
+	/**
+	 * @param root the root of a batch
+	 * @param count the number of texts in the batch
+	 * @return the data that is signed to sign the batch
+	 */
+	public static byte[] signedData(byte[] root, int count) {
+		byte[] data = new byte[8 + root.length];
+		putInt(data, 0, MAGIC);
+		putInt(data, 4, count);
+		System.arraycopy(root, 0, data, 8, root.length);
+		return data;
+	}
+
+	/**
+	 * Write the batch signature of one text.
+	 * @param index the position of the text
+	 * @param signature the signature of the root
+	 * @return the batch signature in hexadecimal
+	 */
+	public String encode(int index, byte[] signature) {
+		try {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(buf);
+			out.writeInt(MAGIC);
+			out.writeInt(index);
+			out.writeInt(size());
+			out.writeInt(signature.length);
+			out.write(signature);
+			for (byte[] hash : proof(index)) {
+				out.write(hash);
+			}
+			out.flush();
+			return CryptoEngine.byteArrayToHex(buf.toByteArray());
+		} catch (IOException e) {
+			// a ByteArrayOutputStream does not fail
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/** The parts of a batch signature. */
+	@Immutable
+	public static final class Proof {
+		final int index;
+		final int count;
+		final byte[] signature;
+		final byte[][] path;
+
+		Proof(int index, int count, byte[] signature, byte[][] path) {
+			this.index = index;
+			this.count = count;
+			this.signature = signature;
+			this.path = path;
+		}
+
+		/**
+		 * Read a batch signature.
+		 * @param hex the batch signature in hexadecimal
+		 * @return the parts or null if the text is not a batch signature
+		 */
+		public static Proof decode(String hex) {
+			if (hex == null || hex.length() % 2 != 0) {
+				return null;
+			}
+			try {
+				byte[] bytes = CryptoEngine.hexStringToByteArray(hex);
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+				if (in.readInt() != MAGIC) {
+					return null;
+				}
+				int index = in.readInt();
+				int count = in.readInt();
+				int length = in.readInt();
+				if (length <= 0 || length > MAX_SIGNATURE) {
+					return null;
+				}
+				byte[] signature = new byte[length];
+				in.readFully(signature);
+				int rest = bytes.length - 16 - length;
+				if (rest % HASH_BYTES != 0) {
+					return null;
+				}
+				byte[][] path = new byte[rest / HASH_BYTES][HASH_BYTES];
+				for (byte[] hash : path) {
+					in.readFully(hash);
+				}
+				return new Proof(index, count, signature, path);
+			} catch (IOException e) {
+				return null;
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+
+		/** @return the position of the text in the batch */
+		public int getIndex() {
+			return index;
+		}
+
+		/** @return the number of texts in the batch */
+		public int getCount() {
+			return count;
+		}
+
+		/** @return the signature of the root */
+		public byte[] getSignature() {
+			return signature.clone();
+		}
+
+		/**
+		 * @param md a SHA-256 digest
+		 * @param text the text
+		 * @return the root computed from the text and the proof or null if the proof 
+		 * does not fit
+		 */
+		public byte[] root(MessageDigest md, byte[] text) {
+			return rootFromProof(md, text, index, count, path);
+		}
+	}
+
+	static byte[] leafHash(MessageDigest md, byte[] text) {
+		md.update(LEAF);
+		md.update(text);
+		return md.digest();
+	}
+
+	static byte[] nodeHash(MessageDigest md, byte[] left, byte[] right) {
+		md.update(NODE);
+		md.update(left);
+		md.update(right);
+		return md.digest();
+	}
+
+	private static void putInt(byte[] b, int off, int v) {
+		b[off] = (byte) (v >>> 24);
+		b[off + 1] = (byte) (v >>> 16);
+		b[off + 2] = (byte) (v >>> 8);
+		b[off + 3] = (byte) v;
+	}
+
+}
@@ -0,0 +1,133 @@
+	/****************************************************************CopyrightNotice
+	 * Copyright (c) 2013 WWN Software LLC 
+	 * All rights reserved. This program and the accompanying materials
+	 * are made available under the terms of the Pygar Public License v1.0
+	 * which accompanies this distribution, and is available at
+	 * http://ectn.typepad.com/pygar/pygar-public-license.html
+	 *
+	 * Contributors:
+	 *    Paul Baker, WWN Software LLC
+	 *******************************************************************************/
+
+package pygar.cryptography;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import net.jcip.annotations.ThreadSafe;
+
+/** The MultiRecipientEnvelope carries one encrypted text to several receivers. The text
+ * is encrypted once under a random symmetric key, and the header holds a copy of that key
+ * wrapped with the public key of each receiver. Sending the same text to N parties then
+ * costs one bulk encryption and N key wraps rather than N bulk encryptions.
+ * <p>
+ * The envelope is written as follows. All numbers are big endian as written by
+ * DataOutputStream.
+ * </p>
+ * <pre>
+ *   int     MAGIC, the characters "PGMR"
+ *   int     number of receivers
+ *   one entry for each receiver:
+ *     UTF     the name of the receiver, as written by DataOutputStream.writeUTF
+ *     int     length of the wrapped key
+ *     byte[]  the wrapped key
+ *   byte[]  the text encrypted as in a version 1 envelope
+ * </pre>
+ * <p>
+ * A receiver finds its entry by name, without regard to case, and then decrypts the 
+ * text exactly as in a version 1 envelope.
+ * </p>
+ *
+ * @author pbaker
+ *
+ */
+@ThreadSafe
+public class MultiRecipientEnvelope {
+
+	/** The first four bytes of a multi-recipient envelope, "PGMR". */
+	public static final int MAGIC = 0x50474D52;
+	static final int MAX_RECIPIENTS = 4096;
+	static final int MAX_WRAPPED_KEY = 64 * 1024;
+
+	private MultiRecipientEnvelope() {
+	}
+
+	/**
+	 * Create the header of an envelope.
+	 * @param names the receivers
+	 * @param wrappedKeys the symmetric key wrapped with the public key of each receiver
+	 * @return the header, beginning with MAGIC
+	 * @throws IOException
+	 */
+	public static byte[] header(List<String> names, List<byte[]> wrappedKeys) throws IOException {
+		if (names.size() != wrappedKeys.size() || names.isEmpty() 
+				|| names.size() > MAX_RECIPIENTS) {
+			throw new IOException("invalid list of receivers");
+		}
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(buf);
+		out.writeInt(MAGIC);
+		out.writeInt(names.size());
+		for (int k = 0; k < names.size(); k++) {
+			byte[] wrappedKey = wrappedKeys.get(k);
+			out.writeUTF(names.get(k));
+			out.writeInt(wrappedKey.length);
+			out.write(wrappedKey);
+		}
+		out.flush();
+		return buf.toByteArray();
+	}
+
+	/**
+	 * Read the rest of the header after the MAGIC and return the wrapped key of a receiver.
+	 * The stream is left at the first byte of the encrypted text.
+	 * @param in the envelope
+	 * @param name the receiver
+	 * @return the wrapped key or null if the envelope has no entry for the receiver
+	 * @throws IOException if the header is not valid
+	 */
+	public static byte[] readWrappedKey(DataInputStream in, String name) throws IOException {
+		int count = in.readInt();
+		if (count <= 0 || count > MAX_RECIPIENTS) {
+			throw new IOException("invalid multi-recipient envelope header");
+		}
+		byte[] found = null;
+		for (int k = 0; k < count; k++) {
+			String receiver = in.readUTF();
+			int length = in.readInt();
+			if (length <= 0 || length > MAX_WRAPPED_KEY) {
+				throw new IOException("invalid multi-recipient envelope header");
+			}
+			byte[] wrappedKey = new byte[length];
+			in.readFully(wrappedKey);
+			if (found == null && receiver.equalsIgnoreCase(name)) {
+				found = wrappedKey;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @param ch an envelope file
+	 * @return true if the file begins with MAGIC
+	 * @throws IOException
+	 */
+	public static boolean isMultiRecipient(FileChannel ch) throws IOException {
+		if (ch.size() < 4) {
+			return false;
+		}
+		ByteBuffer buf = ByteBuffer.allocate(4);
+		while (buf.hasRemaining()) {
+			if (ch.read(buf, buf.position()) < 0) {
+				return false;
+			}
+		}
+		return buf.getInt(0) == MAGIC;
+	}
+
+}
@@ -0,0 +1,102 @@
+	/****************************************************************CopyrightNotice
+	 * Copyright (c) 2013 WWN Software LLC 
+	 * All rights reserved. This program and the accompanying materials
+	 * are made available under the terms of the Pygar Public License v1.0
+	 * which accompanies this distribution, and is available at
+	 * http://ectn.typepad.com/pygar/pygar-public-license.html
+	 *
+	 * Contributors:
+	 *    Paul Baker, WWN Software LLC
+	 *******************************************************************************/
+
+package pygar.cryptography;
+
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import net.jcip.annotations.Immutable;
+
+/** A PublicKeyCache holds the certificates and public keys of every alias in a public
+ * KeyStore. The cache is filled in one pass over the aliases when it is created and is
+ * never changed afterwards. Consequently, any number of threads may read it without a
+ * lock, and a newer KeyStore is taken up by creating a new cache and replacing the
+ * reference to the old one.
+ * <p>
+ * Most KeyStore types store aliases in lower case and find them without regard to case.
+ * A lookup that fails with the name as given is repeated with the name in lower case.
+ * </p>
+ *
+ * @author pbaker
+ *
+ */
+@Immutable
+public final class PublicKeyCache {
+
+	private final long version;
+	private final Map<String, Certificate> certificates;
+	private final Map<String, PublicKey> keys;
+
+	/**
+	 * Read every certificate of a KeyStore.
+	 * @param ks the KeyStore
+	 * @param version the version of the KeyStore reported by KeyStoreAccess
+	 * @throws KeyStoreException if the KeyStore cannot be read
+	 */
+	public PublicKeyCache(KeyStore ks, long version) throws KeyStoreException {
+		this.version = version;
+		HashMap<String, Certificate> certs = new HashMap<String, Certificate>(2 * ks.size() + 1);
+		HashMap<String, PublicKey> pks = new HashMap<String, PublicKey>(2 * ks.size() + 1);
+		Enumeration<String> aliases = ks.aliases();
+		while (aliases.hasMoreElements()) {
+			String alias = aliases.nextElement();
+			Certificate ct = ks.getCertificate(alias);
+			if (ct != null && ct.getPublicKey() != null) {
+				certs.put(alias, ct);
+				pks.put(alias, ct.getPublicKey());
+			}
+		}
+		this.certificates = certs;
+		this.keys = pks;
+	}
+
+	/** @return the version of the KeyStore that filled the cache */
+	public long getVersion() {
+		return version;
+	}
+
+	/** @return the number of aliases with a certificate */
+	public int size() {
+		return keys.size();
+	}
+
+	/**
+	 * @param alias the name of an entity
+	 * @return the public key of the entity or null if there is none
+	 */
+	public PublicKey getPublicKey(String alias) {
+		PublicKey key = keys.get(alias);
+		if (key == null) {
+			key = keys.get(alias.toLowerCase(Locale.ENGLISH));
+		}
+		return key;
+	}
+
+	/**
+	 * @param alias the name of an entity
+	 * @return the certificate of the entity or null if there is none
+	 */
+	public Certificate getCertificate(String alias) {
+		Certificate ct = certificates.get(alias);
+		if (ct == null) {
+			ct = certificates.get(alias.toLowerCase(Locale.ENGLISH));
+		}
+		return ct;
+	}
+
+}
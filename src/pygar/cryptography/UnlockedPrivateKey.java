@@ -0,0 +1,77 @@
+	/****************************************************************CopyrightNotice
+	 * Copyright (c) 2013 WWN Software LLC 
+	 * All rights reserved. This program and the accompanying materials
+	 * are made available under the terms of the Pygar Public License v1.0
+	 * which accompanies this distribution, and is available at
+	 * http://ectn.typepad.com/pygar/pygar-public-license.html
+	 *
+	 * Contributors:
+	 *    Paul Baker, WWN Software LLC
+	 *******************************************************************************/
+
+package pygar.cryptography;
+
+import java.security.PrivateKey;
+
+import javax.security.auth.DestroyFailedException;
+
+import net.jcip.annotations.ThreadSafe;
+
+/** An UnlockedPrivateKey holds a private key after it has been read from the keystore
+ * with the entry password. The password-based decryption of a keystore entry is slow, so
+ * the key is kept for a limited lifetime and then given up. Once the lifetime has passed,
+ * or destroy has been called, get returns null and the holder must be replaced by reading
+ * the keystore again.
+ * <p>
+ * On destroy the holder asks the key to erase itself. Some providers do not support this,
+ * and then the holder only drops its reference to the key.
+ * </p>
+ *
+ * @author pbaker
+ *
+ */
+@ThreadSafe
+public final class UnlockedPrivateKey {
+
+	private final long expires;
+	private volatile PrivateKey key;
+
+	/**
+	 * Hold a key.
+	 * @param key the private key read from the keystore
+	 * @param lifetime the time in milliseconds for which the key may be used
+	 */
+	public UnlockedPrivateKey(PrivateKey key, long lifetime) {
+		this.key = key;
+		this.expires = System.nanoTime() + lifetime * 1000000L;
+	}
+
+	/** @return the key or null if the lifetime has passed or the key was destroyed */
+	public PrivateKey get() {
+		PrivateKey k = key;
+		if (k == null || isExpired()) {
+			return null;
+		}
+		return k;
+	}
+
+	/** @return true if the lifetime of the key has passed */
+	public boolean isExpired() {
+		return System.nanoTime() - expires >= 0;
+	}
+
+	/** Give up the key and ask it to erase its secret material. */
+	public void destroy() {
+		PrivateKey k = key;
+		key = null;
+		if (k != null && !k.isDestroyed()) {
+			try {
+				k.destroy();
+			} catch (DestroyFailedException e) {
+				// the provider cannot erase the key, so the reference dropped above 
+				// is all that can be done
+			}
+		}
+	}
+
+}
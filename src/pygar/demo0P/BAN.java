@@ -31,15 +31,20 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.StringWriter;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.KeyStore;
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Observable;
 import java.util.Observer;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import javax.crypto.SecretKey;
 import javax.swing.*;
 import javax.xml.stream.XMLStreamException;
@@ -354,6 +359,7 @@ public class BAN extends MessageAgent {
 		// is necessary for controlling the progress bar and messages during file matching.
 		compareFiles = new CompareFiles(profile.dataDirPath);
 		compareFiles.setBAN(this);
+		compareFiles.setParallelScoring(ForkJoinPool.commonPool());
 		
 		// get access to the keystore where the PKE keys are held. 
 		try {
@@ -365,6 +371,11 @@ public class BAN extends MessageAgent {
 			while (aliases.hasMoreElements()) {
 				System.out.printf("alias:%s%n", aliases.nextElement());
 			}
+			// read the public keys into the crypto engine now rather than when the
+			// first envelope is wrapped
+			if (profile.getCrypto() != null) {
+				profile.getCrypto().preloadPublicKeys();
+			}
 		} catch (Exception e1) {
 			System.err.printf("failed to get public keystore for %s %n", name);
 			// TODO Auto-generated catch block
@@ -675,6 +686,8 @@ public class BAN extends MessageAgent {
 				// names of the two team members. The general solution involves
 				// establishing a session group and comparing each pair of group
 				// members. For demonstration 0, this would be overly complex
+				// every pair is kept, not only the 5 that are written, because the 
+				// display of similarity paints a cell for each pair
 				compareFiles.compareDocuments(compareFiles.documents.get("GreenTeam"), 
 						compareFiles.documents.get("BlueTeam"));
 				
@@ -698,16 +711,25 @@ public class BAN extends MessageAgent {
 				// we have results for the match so display it locally
 				readAllText();
 				
-				// for each team member: encrypt a copy of the matches with public key
-				// of the recipient and then send it in a message.
+				// encrypt the matches once with a copy of the key for the public key of 
+				// each team member and then send the result to each in a message.
 				showProgressMessage("sending PKE encrypted match data...");				
+				Map<String, String> toFiles = _pkeEncryptForAll(
+						new ArrayList<String>(dataReady.keySet()));
 				i = dataReady.keySet().iterator();
 				String toFile;
 				Pmessage pmsg;
 				while (i.hasNext()) {
 					tm = i.next();
-					// PKE encrypt match data for intended recipient
-					toFile = _pkeEncryptAndSend(tm);
+					toFile = toFiles.get(tm);
+					if (toFile == null) {
+						// the envelope was not made or not copied; do not send a message 
+						// without a file
+						logger.writeln("***Error: MatchResult not sent to " + tm);
+						System.err.printf("No encrypted match data, MatchResult not sent to %s %n", 
+								tm);
+						continue;
+					}
 					// send event message and file to recipient
 					pmsg = new Pmessage("ban", tm, "MatchResult");
 					pmsg.setBody(pmsg.new PmessageBody());
@@ -728,50 +750,59 @@ public class BAN extends MessageAgent {
 		
 	}
 
-	private String _pkeEncryptAndSend(String toName) {
-		InputStream in;
-		String outName;
-		outName = profile.dataDirPath +  File.separator
-		+ toName + File.separator
+	/* Encrypt the matches once for all the team members and place a copy of the 
+	 * envelope where each team member expects it. Return the file of each team member.
+	 * A team member whose public key could not be used or whose copy could not be made has
+	 * no entry, and if the encryption fails for all, no team member has an entry. */
+	private Map<String, String> _pkeEncryptForAll(List<String> toNames) {
+		Map<String, String> outNames = new HashMap<String, String>();
+		String envelope = profile.dataDirPath +  File.separator
+		+ "ban" + File.separator
 		+ "BFAmatches.blk.bin";
+		// the team members whose key was wrapped into the envelope, null if it was not made
+		List<String> addressed = null;
 		
 		try {
-			in = new FileInputStream(profile.dataDirPath +  File.separator 
-					+ "ban" + File.separator
-					+ "BFAmatches.xml");
-			try {
-				DataOutputStream out;
-				out = new DataOutputStream(
-						new FileOutputStream(outName));
-
-				profile.getCrypto().encryptStream(toName, in, out);
-				out.close();
-			
-			} catch (FileNotFoundException e) {
-				logger.writeln("***Error: FileNotFoundException");
-				e.printStackTrace();
-			} catch (KeyNotFound e) {
-				logger.writeln("***Error: KeyNotFound");
-				e.printStackTrace();
-			} catch (ConfigurationError e) {
-				logger.writeln("***Error: ConfigurationError");
-				e.printStackTrace();
-			} catch (Exception e) {
-				logger.writeln("***Error: Exception");
-				e.printStackTrace();
-			}
+			// the file is read through a memory map and encrypted in large buffers
+			addressed = profile.getCrypto().encryptFile(toNames, new File(profile.dataDirPath 
+					+  File.separator + "ban" + File.separator + "BFAmatches.xml"), 
+					new File(envelope));
 		} catch (FileNotFoundException e) {
 			logger.writeln("***Error: FileNotFoundException");
 			e.printStackTrace();
+		} catch (KeyNotFound e) {
+			logger.writeln("***Error: KeyNotFound");
+			e.printStackTrace();
+		} catch (ConfigurationError e) {
+			logger.writeln("***Error: ConfigurationError");
+			e.printStackTrace();
+		} catch (Exception e) {
+			logger.writeln("***Error: Exception");
+			e.printStackTrace();
+		}
+		if (addressed == null) {
+			return outNames;
 		}
 		
-		return outName;
+		for (String toName : addressed) {
+			String outName = profile.dataDirPath +  File.separator
+			+ toName + File.separator
+			+ "BFAmatches.blk.bin";
+			try {
+				Files.copy(new File(envelope).toPath(), new File(outName).toPath(), 
+						StandardCopyOption.REPLACE_EXISTING);
+				outNames.put(toName, outName);
+			} catch (IOException e) {
+				logger.writeln("***Error: IOException copying matches for " + toName);
+				e.printStackTrace();
+			}
+		}
+		return outNames;
 	}
 	
 	
 	private String _pkeDecrypt(String inFile, String entity) {
 		logger.writeln("   Removing PKE encryption");
-		DataInputStream in;
 		
 		String outName;
 		outName = profile.dataDirPath +  File.separator 
@@ -785,12 +816,7 @@ public class BAN extends MessageAgent {
 //		showProgressMessage("removing PKE Encryption from " + entity + "...");
 		
 			try {
-				in = new DataInputStream(
-						new FileInputStream(inFile));
-				OutputStream out = new FileOutputStream(outName);
-
-				profile.getCrypto().decryptStream(in, out);
-				out.close();
+				profile.getCrypto().decryptFile(new File(inFile), new File(outName));
 			
 			} catch (FileNotFoundException e) {
 				logger.writeln("***Error: FileNotFoundException");
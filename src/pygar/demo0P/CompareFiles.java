@@ -19,14 +19,19 @@ import java.awt.Image;
 import java.awt.image.MemoryImageSource;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.*;
 import javax.swing.JComponent;
 import javax.swing.JFrame;
@@ -53,12 +58,16 @@ public class CompareFiles {
 	private static String dataDirectory;
 	private static BAN ban;
 	
+	// the pool for the parallel scoring mode, null selects the sequential mode
+	private volatile ForkJoinPool scoringPool;
+	
 	public CompareFiles(String fileDir) {
 		dataDirectory = fileDir;
 		
 		documents = new HashMap<String, Map<String, DocStruct> >();
 
 		wordSums = new HashMap<String, Integer>();
+		scoringPool = null;
 	}
 	
 	/** save a pointer of the BAN instance so that we
@@ -68,6 +77,17 @@ public class CompareFiles {
 	public void setBAN(BAN thisBAN) {
 		ban = thisBAN;
 	}
+	
+	/**
+	 * Select the parallel mode of compareDocuments. The documents of the first set are
+	 * divided into ranges that are scored by tasks in the pool. Each task keeps its own
+	 * top pairs and the tasks are merged at the end, so the results are identical to
+	 * the sequential mode.
+	 * @param pool the pool that scores the documents or null to restore the sequential mode
+	 */
+	public void setParallelScoring(ForkJoinPool pool) {
+		scoringPool = pool;
+	}
 		
 	class CountStruct implements Comparable<CountStruct>{
 		String word;
@@ -86,13 +106,17 @@ public class CompareFiles {
 		String title;
 		String accession;
 		List<CountStruct> words;
-		Map<String, Double> wordFrequencies;
+		// the word frequency profile as a sparse vector: the ids of the words
+		// in ascending order and the frequency of each word in the document
+		int[] termIds;
+		double[] termFreqs;
 		
 		public DocStruct(String t, String a) {
 			title = t;
 			accession = a;
 			words = new LinkedList<CountStruct>();
-			wordFrequencies = new HashMap<String, Double>();
+			termIds = new int[0];
+			termFreqs = new double[0];
 		}
 	}
 	
@@ -102,6 +126,9 @@ public class CompareFiles {
 		String title2;
 		String accession1;
 		String accession2;
+		// the positions of the two documents in the order of comparison
+		int index1;
+		int index2;
 		
 		public ResultStruct(double c, String t1, String t2, String acc1, String acc2) {
 			correl = c;
@@ -133,6 +160,10 @@ public class CompareFiles {
 	static Map<String, Integer> wordSums;
 	// wordFreqs normalize the counts in 
 	static Map<String, Double> wordFreqs;
+	// terms assigns ids to the words of wordSums in the order of iteration over
+	// wordSums and termFreqs holds the value of wordFreqs for each id
+	static TermDictionary terms;
+	static double[] termFreqs;
 	
 	public List<ResultStruct> resultList;
 	double maxCorrel;
@@ -512,17 +543,21 @@ public class CompareFiles {
 		}
 		total = (double)totalWords;
 		
+		terms = new TermDictionary(wordSums.size());
+		termFreqs = new double[wordSums.size()];
 		i = wordSums.keySet().iterator();
 		while (i.hasNext()) {
 			key = i.next();
 			f = wordSums.get(key) / total;
 			wordFreqs.put(key, f);
+			termFreqs[terms.add(key)] = f;
 		}
 		
 	}
 	/** compute word frequency profiles for individual documents in a set
-	 * of documents. Frequencies are computed for all the words on the global
-	 * word list, even if they do not appear in a particular document. Note also
+	 * of documents. The profile is a sparse vector over the global word list:
+	 * a word of the global list that does not appear in a particular document 
+	 * has a frequency of zero and is not stored. Note also
 	 * that the frequency is relative to all words in the document that are also on the global
 	 * word list. Thus, common words do not count in the total, nor do we calculate
 	 * a frequency for them.
@@ -530,16 +565,14 @@ public class CompareFiles {
 	 * 1. total all words across the individual document except for the very common words.
 	 * 2. for all words in the local list of words, which are also on the global list,
 	 *    compute the frequency as the word count divided by the words in the document.
-	 * 3. for all words on the global list, verify if there is a frequency in the profile.
-	 *    if none is found, set the frequency for that word to zero. 
+	 *    If a word is listed more than once, the last count is used.
+	 * 3. sort the profile by word id and drop the words with a frequency of zero.
 	 */
 	public void computeProfileFreqs() {
 		if (wordFreqs == null) {
 			System.err.println("Program error: computing profile freqs before word freqs.");
 			// let it go forward and crash with system error messages
 		}
-		Iterator<String> w;
-		String word;
 		Iterator<String> a;
 		String acc;
 		DocStruct d;
@@ -547,6 +580,7 @@ public class CompareFiles {
 		Iterator<CountStruct> ics;
 		CountStruct cs;
 		Map<String, DocStruct> doc;
+		int id;
 
 		Iterator<String> itm = documents.keySet().iterator();
 		String tm;
@@ -570,23 +604,40 @@ public class CompareFiles {
 						totalWordsInDoc += cs.count;
 					}
 				}
-				// step 2
+				// step 2, the id of each word is paired with its position in the list
+				long[] order = new long[lcs.size()];
+				double[] freqs = new double[lcs.size()];
+				int n = 0;
 				ics = lcs.iterator();
 				while (ics.hasNext()) {
 					cs = ics.next();
-					if (wordSums.containsKey(cs.word)) {
-						d.wordFrequencies.put(cs.word, ( (double)cs.count ) / totalWordsInDoc);
+					id = terms.id(cs.word);
+					if (id >= 0) {
+						order[n] = ((long)id << 32) | n;
+						freqs[n] = ( (double)cs.count ) / totalWordsInDoc;
+						n++;
 					}
 				}
 				// step 3
-				w = wordSums.keySet().iterator();
-				while (w.hasNext()) {
-					word = w.next();
-					if ( ! d.wordFrequencies.containsKey(word) ) {
-						d.wordFrequencies.put(word, 0.0);
+				Arrays.sort(order, 0, n);
+				int[] ids = new int[n];
+				double[] values = new double[n];
+				int m = 0;
+				for (int k = 0; k < n; k++) {
+					id = (int)(order[k] >>> 32);
+					if (k + 1 < n && (int)(order[k + 1] >>> 32) == id) {
+						// a later count of the same word replaces this one
+						continue;
+					}
+					double f = freqs[(int)order[k]];
+					if (f > 0.0) {
+						ids[m] = id;
+						values[m] = f;
+						m++;
 					}
 				}
-
+				d.termIds = Arrays.copyOf(ids, m);
+				d.termFreqs = Arrays.copyOf(values, m);
 			}
 		}
 
@@ -595,85 +646,217 @@ public class CompareFiles {
 	/** Compare documents for similarity based on word counts. This is not an ideal search method,
 	 * but it is sufficient to illustrate document matching. The comparison is actually between
 	 * two files each containing a series of short documents labeled by accession and 
-	 * title. 
+	 * title. Every pair of documents is placed in the resultList.
 	 * @param doc1
 	 * @param doc2
 	 */
 	public void compareDocuments( Map<String, DocStruct> doc1, Map<String, DocStruct> doc2) {
-		Iterator<String> a1;
-		String acc1;
+		compareDocuments(doc1, doc2, 0);
+	}
+	
+	/** Compare documents for similarity based on word counts. The similarity of each pair
+	 * is the value of xcorrelate, but it is computed with an inverted index over the 
+	 * second set of documents so that only the words a pair has in common are visited.
+	 * <p>
+	 * The pairs are fed to a TopKPairs as they are scored, so only the pairs that are kept
+	 * take memory. If topK is positive, only the topK most similar pairs are kept in the 
+	 * resultList. Pairs with equal similarity are ranked by their position in the order of 
+	 * comparison, so the resultList holds exactly the last topK entries of the full, 
+	 * sorted list. The maximum similarity and the lists of titles and accessions are 
+	 * collected during the comparison.
+	 * </p>
+	 * @param doc1
+	 * @param doc2
+	 * @param topK the number of pairs to keep or zero to keep every pair
+	 */
+	public void compareDocuments( Map<String, DocStruct> doc1, Map<String, DocStruct> doc2, 
+			int topK) {
 		DocStruct d1;
-		Iterator<String> a2;
-		String acc2;
-		DocStruct d2;
-		double coeff;
+		int j;
 
-		resultList = new LinkedList<ResultStruct>();
-		
-		titleSet1 = new HashSet<String>();
-		titleList1 = new LinkedList<String>();
-		titleSet2 = new HashSet<String>();
-		titleList2 = new LinkedList<String>();
-		accessionList1 = new LinkedList<String>();
-		accessionSet1 = new HashSet<String>();
-		accessionList2 = new LinkedList<String>();
-		accessionSet2 = new HashSet<String>();
-		
-		int progress = 0;
-		int goal = doc1.size();
-
-		a1 = doc1.keySet().iterator();
-		while (a1.hasNext()) {
-			acc1 = a1.next();
-			d1 = doc1.get(acc1);
-			a2 = doc2.keySet().iterator();
-			
-			if ( !titleSet1.contains(d1.title)) {
-				titleSet1.add(d1.title);
-				titleList1.add(d1.title);
-			}
-			
-			if ( !accessionSet1.contains(acc1)) {
-				accessionSet1.add(acc1);
-				accessionList1.add(acc1);
+		// the sets keep their members in order, so the lists are ready when the comparison ends
+		titleSet1 = new TreeSet<String>();
+		titleSet2 = new TreeSet<String>();
+		accessionSet1 = new TreeSet<String>();
+		accessionSet2 = new TreeSet<String>();
+		
+		// index the second set of documents
+		int n2 = doc2.size();
+		String[] acc2 = new String[n2];
+		DocStruct[] docs2 = new DocStruct[n2];
+		int[][] ids2 = new int[n2][];
+		double[][] freqs2 = new double[n2][];
+		j = 0;
+		for (String acc : doc2.keySet()) {
+			acc2[j] = acc;
+			docs2[j] = doc2.get(acc);
+			ids2[j] = docs2[j].termIds;
+			freqs2[j] = docs2[j].termFreqs;
+			if ( !doc1.isEmpty()) {
+				titleSet2.add(docs2[j].title);
+				accessionSet2.add(acc);
 			}
-			
-			while (a2.hasNext()) {
-				acc2 = a2.next();
-				d2 = doc2.get(acc2);
-				coeff = xcorrelate(d1, d2);
-				//				System.out.printf(" %f correlation of %s, %s%n       with %s, %s%n%n", 
-				//						coeff,
-				//						acc1, d1.title, acc2, d2.title);
-				resultList.add(new ResultStruct(coeff, d1.title, d2.title, acc1, acc2));
+			j++;
+		}
+		SimilarityIndex index = new SimilarityIndex(termFreqs, ids2, freqs2);
+		
+		int n1 = doc1.size();
+		String[] acc1 = new String[n1];
+		DocStruct[] docs1 = new DocStruct[n1];
+		int i = 0;
+		for (String acc : doc1.keySet()) {
+			d1 = doc1.get(acc);
+			acc1[i] = acc;
+			docs1[i] = d1;
+			titleSet1.add(d1.title);
+			accessionSet1.add(acc);
+			i++;
+		}
+		
+		long npairs = (long) n1 * n2;
+		int k = topK > 0 && topK < npairs ? topK : (int) Math.min(npairs, Integer.MAX_VALUE);
+		AtomicInteger progress = new AtomicInteger();
+		TopKPairs best;
+		ForkJoinPool pool = scoringPool;
+		if (pool != null && n1 > 1) {
+			int grain = Math.max(1, n1 / (4 * pool.getParallelism()));
+			ScoringTask task = new ScoringTask(index, docs1, 0, n1, n2, k, grain, progress);
+			pool.invoke(task);
+			best = task.best;
+			maxCorrel = task.max;
+		} else {
+			best = new TopKPairs(k);
+			maxCorrel = scoreDocuments(index, docs1, 0, n1, n2, best, k, progress);
+		}
 
-				if ( !titleSet2.contains(d2.title)) {
-					titleSet2.add(d2.title);
-					titleList2.add(d2.title);
+		// the resultList is in ascending order of similarity
+		best.sort();
+		int nkept = best.size();
+		resultList = new ArrayList<ResultStruct>(nkept);
+		for (int r = nkept - 1; r >= 0; r--) {
+			d1 = docs1[best.first(r)];
+			j = best.second(r);
+			ResultStruct rs = new ResultStruct(best.score(r), d1.title, docs2[j].title, 
+					acc1[best.first(r)], acc2[j]);
+			rs.index1 = best.first(r);
+			rs.index2 = j;
+			resultList.add(rs);
+		}
+		titleList1 = new ArrayList<String>(titleSet1);
+		titleList2 = new ArrayList<String>(titleSet2);
+		accessionList1 = new ArrayList<String>(accessionSet1);
+		accessionList2 = new ArrayList<String>(accessionSet2);
+		ndocs1 = accessionList1.size();
+		ndocs2 = accessionList2.size();
+		
+	}
+	
+	/**
+	 * Score the pairs of a range of documents of the first set with all the documents
+	 * of the second set and offer them to a TopKPairs.
+	 * @param index the index of the second set of documents
+	 * @param docs1 the first set of documents
+	 * @param from the position of the first document of the range
+	 * @param to the position after the last document of the range
+	 * @param n2 the number of documents in the second set
+	 * @param best receives the pairs
+	 * @param k the capacity of best
+	 * @param progress counts the documents scored by all threads
+	 * @return the maximum similarity of the pairs
+	 */
+	private double scoreDocuments(SimilarityIndex index, DocStruct[] docs1, int from, int to,
+			int n2, TopKPairs best, int k, AtomicInteger progress) {
+		double[] sum = new double[n2];
+		int[] count = new int[n2];
+		int[] touched = new int[n2];
+		double max = 0.0;
+		double coeff;
+		int j;
+		int goal = docs1.length;
+		
+		for (int i = from; i < to; i++) {
+			DocStruct d1 = docs1[i];
+			int nTouched = index.accumulate(d1.termIds, d1.termFreqs, sum, count, touched);
+			for (int t = 0; t < nTouched; t++) {
+				j = touched[t];
+				coeff = sum[j] / count[j];
+				if (coeff > max) {
+					max = coeff;
 				}
-				
-				if (!accessionSet2.contains(acc2)) {
-					accessionSet2.add(acc2);
-					accessionList2.add(acc2);
+				best.offer(coeff, i, j);
+			}
+			// pairs without a word in common have similarity zero. Among them, the later
+			// pairs rank higher, so no more than k from this document can be kept.
+			if ( !best.isFull() || best.minScore() <= 0.0) {
+				int nzero = 0;
+				for (j = n2 - 1; j >= 0 && nzero < k; j--) {
+					if (count[j] == 0) {
+						if ( !best.offer(0.0, i, j)) {
+							break;
+						}
+						nzero++;
+					}
 				}
 			}
-//			if (ban != null ) {
-				ban.updatePBarPercent((100 * progress++)/goal, "matching...");
-//			}
+			for (int t = 0; t < nTouched; t++) {
+				sum[touched[t]] = 0.0;
+				count[touched[t]] = 0;
+			}
+			if (ban != null ) {
+				ban.updatePBarPercent((100 * progress.getAndIncrement())/goal, "matching...");
+			}
 		}
-
-		Collections.sort(resultList);
-		Collections.sort(titleList1);
-		Collections.sort(titleList2);
-		Collections.sort(accessionList1);
-		Collections.sort(accessionList2);
-		maxCorrel = resultList.get(resultList.size() - 1).correl;
-		ndocs1 = accessionList1.size();
-		ndocs2 = accessionList2.size();
+		return max;
+	}
+	
+	/**
+	 * A ScoringTask scores a range of the first set of documents. A range larger than
+	 * the grain is split in two and the top pairs of the halves are merged.
+	 */
+	private class ScoringTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		final SimilarityIndex index;
+		final DocStruct[] docs1;
+		final int from;
+		final int to;
+		final int n2;
+		final int k;
+		final int grain;
+		final AtomicInteger progress;
+		// the results
+		TopKPairs best;
+		double max;
 		
+		ScoringTask(SimilarityIndex index, DocStruct[] docs1, int from, int to, int n2,
+				int k, int grain, AtomicInteger progress) {
+			this.index = index;
+			this.docs1 = docs1;
+			this.from = from;
+			this.to = to;
+			this.n2 = n2;
+			this.k = k;
+			this.grain = grain;
+			this.progress = progress;
+		}
+		
+		protected void compute() {
+			if (to - from <= grain) {
+				best = new TopKPairs(k);
+				max = scoreDocuments(index, docs1, from, to, n2, best, k, progress);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			ScoringTask left = new ScoringTask(index, docs1, from, mid, n2, k, grain, progress);
+			ScoringTask right = new ScoringTask(index, docs1, mid, to, n2, k, grain, progress);
+			invokeAll(left, right);
+			best = left.best;
+			best.addAll(right.best);
+			max = Math.max(left.max, right.max);
+		}
 	}
 	
-
 	/** Calculate the similarity index for a pair of documents. The function is
 	 * named "xcorrelate" because it is loosely based on the cross correlation of
 	 * two sets of statistical fluctuations. 
@@ -685,16 +868,25 @@ public class CompareFiles {
 		double coeff = 0.0;
 		double f1, f2;
 		int n = 0;
-		String word;
-		Iterator<String> words = wordSums.keySet().iterator();
-		while (words.hasNext()) {
-			word = words.next();	
-			f1 = d1.wordFrequencies.get(word);
-			f2 = d2.wordFrequencies.get(word);
-			if (f1 > 0.0 && f2 > 0.0) {
+		int[] ids1 = d1.termIds;
+		int[] ids2 = d2.termIds;
+		int i1 = 0;
+		int i2 = 0;
+		// the profiles are sorted by word id, so we merge them to find common words
+		while (i1 < ids1.length && i2 < ids2.length) {
+			if (ids1[i1] < ids2[i2]) {
+				i1++;
+			} else if (ids1[i1] > ids2[i2]) {
+				i2++;
+			} else {
+				f1 = d1.termFreqs[i1];
+				f2 = d2.termFreqs[i2];
+				double wf = termFreqs[ids1[i1]];
 				n++;
-				coeff += ( f1/wordFreqs.get(word)) *
-				( f2/wordFreqs.get(word)) ;
+				coeff += ( f1/wf) *
+				( f2/wf) ;
+				i1++;
+				i2++;
 			}
 		}
 		
@@ -0,0 +1,166 @@
+	/****************************************************************CopyrightNotice
+	 * Copyright (c) 2010 WWN Software LLC 
+	 * All rights reserved. This program and the accompanying materials
+	 * are made available under the terms of the Pygar Public License v1.1
+	 * which accompanies this distribution, and is available at
+	 * http://ectn.typepad.com/pygar/pygar-public-license.html
+	 *
+	 * Contributors:
+	 *    Paul Baker, WWN Software LLC
+	 *    
+	 * The blind-agent-mediated negotiation process implemented by this software
+	 * is the subject of U.S. Patent 7,685,073. 
+	 *******************************************************************************/
+
+package pygar.demo0P;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.SecretKey;
+
+import pygar.cryptography.CryptoConcurrent;
+import pygar.identity_authority.KeyNotFound;
+
+/**
+ * Off-line program that checks the key session envelopes of encryptSessionStream from
+ * end to end: a sender writes a series of small envelopes to one receiver, as a team 
+ * member or the BAN would in a run of messages, and the receiver decrypts each with 
+ * decryptStream. The program checks that
+ * <ul>
+ * <li>every envelope decrypts to the text that was sent,</li>
+ * <li>a session wraps one data key for all the envelopes it allows,</li>
+ * <li>a new session starts when the envelopes or the lifetime of a session run out,</li>
+ * <li>the receiver unwraps the data key of a session once and then finds it by its 
+ * key id, and</li>
+ * <li>a receiver that has forgotten its keys unwraps the key again.</li>
+ * </ul>
+ * <p>
+ * The keystores of demo0 are locked with passwords that are not distributed with the 
+ * demonstration, so the two parties use a key pair made for the run instead. Everything 
+ * else goes through CryptoConcurrent as in the demonstration. The program prints the 
+ * result of each check and exits with status 1 if any fails.
+ * </p>
+ * @author pbaker
+ *
+ */
+public class KeySessionDemo {
+	
+	private static final String SENDER = "GreenTeam";
+	private static final String RECEIVER = "BAN";
+	
+	private static boolean allPassed = true;
+
+	/** A CryptoConcurrent that holds the key pair of the run and counts the keys it
+	 * wraps and unwraps. */
+	private static class CountingCrypto extends CryptoConcurrent {
+		final KeyPair pair;
+		final AtomicInteger wraps = new AtomicInteger();
+		final AtomicInteger unwraps = new AtomicInteger();
+		
+		CountingCrypto(String name, KeyPair pair) {
+			super(name, null, null);
+			this.pair = pair;
+		}
+		
+		@Override
+		public PublicKey getPublicKey(String entityName) throws KeyNotFound {
+			if (!entityName.equals(RECEIVER)) {
+				throw new KeyNotFound(entityName);
+			}
+			return pair.getPublic();
+		}
+		
+		@Override
+		public PrivateKey getPrivateKey() throws KeyNotFound {
+			return pair.getPrivate();
+		}
+		
+		@Override
+		public byte[] wrapSecretKey(Key spec, String name) {
+			wraps.incrementAndGet();
+			return super.wrapSecretKey(spec, name);
+		}
+		
+		@Override
+		public SecretKey unwrapSecretKey(byte[] wrappedKey) {
+			unwraps.incrementAndGet();
+			return super.unwrapSecretKey(wrappedKey);
+		}
+	}
+	
+	private static void check(String what, boolean passed) {
+		System.out.printf("%-60s %s%n", what, passed ? "passed" : "FAILED");
+		allPassed &= passed;
+	}
+	
+	/* send one envelope and return true if the receiver decrypts it to the same text */
+	private static boolean roundTrip(CountingCrypto sender, CountingCrypto receiver, 
+			String text) throws Exception {
+		byte[] clear = text.getBytes("UTF-8");
+		ByteArrayOutputStream envelope = new ByteArrayOutputStream();
+		sender.encryptSessionStream(RECEIVER, new ByteArrayInputStream(clear), 
+				new DataOutputStream(envelope));
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		receiver.decryptStream(new DataInputStream(
+				new ByteArrayInputStream(envelope.toByteArray())), result);
+		return Arrays.equals(clear, result.toByteArray());
+	}
+
+	/**
+	 * @param args not used
+	 * @throws Exception if the cryptographic algorithms are not available
+	 */
+	public static void main(String[] args) throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		KeyPair pair = generator.generateKeyPair();
+		CountingCrypto sender = new CountingCrypto(SENDER, pair);
+		CountingCrypto receiver = new CountingCrypto(RECEIVER, pair);
+		
+		// a session of 4 envelopes that does not expire during the run
+		sender.setKeySessionLimits(4, 60L * 60 * 1000);
+		boolean same = true;
+		for (int i = 0; i < 10; i++) {
+			same &= roundTrip(sender, receiver, "<match><accession>" + i + "</accession></match>");
+		}
+		check("10 envelopes decrypt to the text sent", same);
+		check("10 envelopes of 4 per session wrap 3 data keys", sender.wraps.get() == 3);
+		check("the receiver unwraps each of the 3 data keys once", receiver.unwraps.get() == 3);
+		
+		// a session that ends by its lifetime before its envelopes run out
+		sender.endKeySessions();
+		sender.setKeySessionLimits(1000, 200);
+		int wraps = sender.wraps.get();
+		int unwraps = receiver.unwraps.get();
+		same = roundTrip(sender, receiver, "before expiry");
+		same &= roundTrip(sender, receiver, "before expiry, again");
+		check("2 envelopes within the lifetime share one data key", 
+				sender.wraps.get() == wraps + 1 && receiver.unwraps.get() == unwraps + 1);
+		Thread.sleep(400);
+		same &= roundTrip(sender, receiver, "after expiry");
+		check("an envelope after the lifetime has a new data key", 
+				sender.wraps.get() == wraps + 2 && receiver.unwraps.get() == unwraps + 2);
+		check("the envelopes around the lifetime decrypt to the text sent", same);
+		
+		// a receiver that has forgotten its keys unwraps the key of the current session
+		unwraps = receiver.unwraps.get();
+		receiver.endKeySessions();
+		same = roundTrip(sender, receiver, "after the receiver forgets");
+		check("a receiver without the key unwraps it again", 
+				same && receiver.unwraps.get() == unwraps + 1);
+		
+		System.out.println(allPassed ? "All checks passed" : "Some checks FAILED");
+		System.exit(allPassed ? 0 : 1);
+	}
+
+}
@@ -77,31 +77,16 @@ public class KeyStoreAccessDemo0 extends KeyStoreAccess {
      */
     public KeyStore getKeyStore(KeyStoreType kst) throws Exception {
 
-        String storeName;
-        switch (kst) {
-            case PRIVATE:
-                storeName = "private.keystore";
-                break;
-            case PUBLIC:
-                storeName = "public.keystore";
-                break;
-            case SESSION:
-                storeName = "session.keystore";
-                if (keystoreJavaType.equalsIgnoreCase("jks")) {
-                    System.err.println("Class KeyStoreAccessDemo0 can not implement a session keystore.");
-                    throw new CryptoException();
-                }
-                // TODO
-                break;
-            default:
-                storeName = "";
+        if (kst == KeyStoreType.SESSION && keystoreJavaType.equalsIgnoreCase("jks")) {
+            System.err.println("Class KeyStoreAccessDemo0 can not implement a session keystore.");
+            throw new CryptoException();
         }
 
         char[] passwd = keystorePassword.toCharArray();
         try {
             KeyStore ks = KeyStore.getInstance(keystoreJavaType);
 
-            String filename = keystoreDir + File.separator + storeName;
+            String filename = keystoreFileName(kst);
             System.out.println("KeyStoreAccessDemo0 openning: " + filename);
             FileInputStream fs = new FileInputStream(filename);
             ks.load(fs, passwd);
@@ -125,4 +110,35 @@ public class KeyStoreAccessDemo0 extends KeyStoreAccess {
         }
     }
 
+    /**
+     * The version of a keystore is the time its file was last modified, so a
+     * keystore file that is replaced while the application runs is read again.
+     *
+     * @param kst The type of the keystore
+     * @return the modification time of the keystore file
+     */
+    @Override
+    public long getKeyStoreVersion(KeyStoreType kst) {
+        return new File(keystoreFileName(kst)).lastModified();
+    }
+
+    private String keystoreFileName(KeyStoreType kst) {
+        String storeName;
+        switch (kst) {
+            case PRIVATE:
+                storeName = "private.keystore";
+                break;
+            case PUBLIC:
+                storeName = "public.keystore";
+                break;
+            case SESSION:
+                storeName = "session.keystore";
+                // TODO
+                break;
+            default:
+                storeName = "";
+        }
+        return keystoreDir + File.separator + storeName;
+    }
+
 }
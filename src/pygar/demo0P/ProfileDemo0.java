@@ -18,7 +18,7 @@ import java.util.Properties;
 import pygar.communication.SimpleMessageSystem;
 import pygar.configuration.ConfigurationError;
 import pygar.configuration.Profile;
-import pygar.cryptography.CryptoDefault;
+import pygar.cryptography.CryptoConcurrent;
 import pygar.cryptography.CryptoEngine;
 import pygar.documents.EncryptedFieldTable;
 import pygar.documents.EncryptedFieldTable.EFTYPE;
@@ -119,7 +119,7 @@ public class ProfileDemo0 extends Profile {
 		 */
 
 		// 1. 4/29/2015 - password was null, now try to add fixed
-		cryptoEngine = new CryptoDefault(entityName, this, "OpenBEDM");
+		cryptoEngine = new CryptoConcurrent(entityName, this, "OpenBEDM");
 		// 2. 
                 String sessionKeyStorePath = configurationDirPath + 
                         File.separator + entityName;
@@ -0,0 +1,115 @@
+	/****************************************************************CopyrightNotice
+	 * Copyright (c) 2010 WWN Software LLC 
+	 * All rights reserved. This program and the accompanying materials
+	 * are made available under the terms of the Pygar Public License v1.1
+	 * which accompanies this distribution, and is available at
+	 * http://ectn.typepad.com/pygar/pygar-public-license.html
+	 *
+	 * Contributors:
+	 *    Paul Baker, WWN Software LLC
+	 *    
+	 * The blind-agent-mediated negotiation process implemented by this software
+	 * is the subject of U.S. Patent 7,685,073. 
+	 *******************************************************************************/
+
+package pygar.demo0P;
+
+/**
+ * An inverted index over the word frequency profiles of one set of documents. For each
+ * word, the index holds a posting list of the documents that contain the word together
+ * with the weight of the word in that document. The similarity of a document from the
+ * other set with every document in this set is accumulated by walking only the posting
+ * lists of the words in that document. Thus, the cost depends on the number of words
+ * the documents have in common rather than on the size of the vocabulary.
+ * <p>
+ * Words are identified by int ids. The weight of a word in a document is the frequency
+ * of the word in the document divided by the frequency of the word in all documents,
+ * which is the factor used by CompareFiles.xcorrelate. The contributions to a pair of
+ * documents are added in ascending order of word id, so the result is identical to
+ * xcorrelate when the ids follow the order in which xcorrelate visits the words.
+ * </p>
+ * @author pbaker
+ *
+ */
+public class SimilarityIndex {
+
+	private final int nDocs;
+	private final double[] termFreq;
+	// posting lists: the postings of term t are start[t] to start[t+1]-1
+	private final int[] start;
+	private final int[] postDoc;
+	private final double[] postWeight;
+
+	/**
+	 * Build the index. The word ids of each document must be in ascending order and each
+	 * frequency must be greater than zero.
+	 * @param termFreq the frequency of each word in all documents, indexed by word id
+	 * @param ids the word ids of each document
+	 * @param freqs the frequency in the document of each word in ids
+	 */
+	public SimilarityIndex(double[] termFreq, int[][] ids, double[][] freqs) {
+		this.nDocs = ids.length;
+		this.termFreq = termFreq;
+		int nTerms = termFreq.length;
+		start = new int[nTerms + 1];
+		for (int d = 0; d < nDocs; d++) {
+			for (int t : ids[d]) {
+				start[t + 1]++;
+			}
+		}
+		for (int t = 0; t < nTerms; t++) {
+			start[t + 1] += start[t];
+		}
+		postDoc = new int[start[nTerms]];
+		postWeight = new double[start[nTerms]];
+		int[] fill = new int[nTerms];
+		System.arraycopy(start, 0, fill, 0, nTerms);
+		// documents are added in order, so each posting list is in ascending order of document
+		for (int d = 0; d < nDocs; d++) {
+			int[] di = ids[d];
+			double[] df = freqs[d];
+			for (int k = 0; k < di.length; k++) {
+				int t = di[k];
+				int p = fill[t]++;
+				postDoc[p] = d;
+				postWeight[p] = df[k] / termFreq[t];
+			}
+		}
+	}
+
+	/** @return the number of documents in the index */
+	public int size() {
+		return nDocs;
+	}
+
+	/**
+	 * Accumulate the similarity of a document with every document of the index that
+	 * shares a word with it. The caller provides the work arrays, whose entries must
+	 * be zero for every document, and must clear the entries listed in touched afterwards.
+	 * The similarity with document d is then sum[d] / count[d] when count[d] is positive
+	 * and zero otherwise.
+	 * @param ids the word ids of the document in ascending order
+	 * @param freqs the frequency in the document of each word in ids
+	 * @param sum receives the sum of the products of the weights for each document
+	 * @param count receives the number of words in common for each document
+	 * @param touched receives the documents that share at least one word
+	 * @return the number of entries in touched
+	 */
+	public int accumulate(int[] ids, double[] freqs, double[] sum, int[] count, int[] touched) {
+		int nTouched = 0;
+		for (int k = 0; k < ids.length; k++) {
+			int t = ids[k];
+			double w = freqs[k] / termFreq[t];
+			for (int p = start[t]; p < start[t + 1]; p++) {
+				int d = postDoc[p];
+				if (count[d] == 0) {
+					touched[nTouched++] = d;
+				}
+				count[d]++;
+				sum[d] += w * postWeight[p];
+			}
+		}
+		return nTouched;
+	}
+
+}
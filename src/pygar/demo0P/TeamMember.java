@@ -831,40 +831,29 @@ public class TeamMember extends MessageAgent {
 	
 	private String _pkeEncrypt() {
 		logger.writeln("   Applying PKE encryption");
-		InputStream in;
 		String outName;
 		outName = profile.dataDirPath +  File.separator 
 		+ ownName + File.separator
 		+ "NPosition.blk.bin";
 		
 		try {
-			in = new FileInputStream(profile.dataDirPath +  File.separator
-					+ ownName + File.separator
-					+ "NPosition.blk.xml");
-			try {
-				DataOutputStream out;
-				out = new DataOutputStream(
-						new FileOutputStream(outName));
-
-				profile.getCrypto().encryptStream("BAN", in, out);
-				out.close();
+			// the file is read through a memory map and encrypted in large buffers
+			profile.getCrypto().encryptFile("BAN", new File(profile.dataDirPath 
+					+  File.separator + ownName + File.separator + "NPosition.blk.xml"), 
+					new File(outName));
 			
-			} catch (FileNotFoundException e) {
-				logger.writeln("***Error: FileNotFoundException");
-				e.printStackTrace();
-			} catch (KeyNotFound e) {
-				logger.writeln("***Error: KeyNotFound");
-				e.printStackTrace();
-			} catch (ConfigurationError e) {
-				logger.writeln("***Error: ConfigurationError");
-				e.printStackTrace();
-			} catch (Exception e) {
-				logger.writeln("***Error: Exception");
-				e.printStackTrace();
-			}
 		} catch (FileNotFoundException e) {
 			logger.writeln("***Error: FileNotFoundException");
 			e.printStackTrace();
+		} catch (KeyNotFound e) {
+			logger.writeln("***Error: KeyNotFound");
+			e.printStackTrace();
+		} catch (ConfigurationError e) {
+			logger.writeln("***Error: ConfigurationError");
+			e.printStackTrace();
+		} catch (Exception e) {
+			logger.writeln("***Error: Exception");
+			e.printStackTrace();
 		}
 		
 		return outName;
@@ -959,7 +948,6 @@ public class TeamMember extends MessageAgent {
 	
 	private String _pkeDecrypt(String inFile, String entity) {
 		logger.writeln("   Removing PKE encryption");
-		DataInputStream in;
 		
 		String outName;
 		outName = profile.dataDirPath +  File.separator 
@@ -971,13 +959,7 @@ public class TeamMember extends MessageAgent {
 //		showProgressMessage("removing PKE Encryption from " + entity + "...");
 		
 			try {
-				in = new DataInputStream(
-						new FileInputStream(inFile));
-				OutputStream out = new FileOutputStream(outName);
-
-				profile.getCrypto().decryptStream(in, out);
-				out.close();
-				in.close();
+				profile.getCrypto().decryptFile(new File(inFile), new File(outName));
 			
 			} catch (FileNotFoundException e) {
 				logger.writeln("***Error: FileNotFoundException");
@@ -0,0 +1,82 @@
+	/****************************************************************CopyrightNotice
+	 * Copyright (c) 2010 WWN Software LLC 
+	 * All rights reserved. This program and the accompanying materials
+	 * are made available under the terms of the Pygar Public License v1.1
+	 * which accompanies this distribution, and is available at
+	 * http://ectn.typepad.com/pygar/pygar-public-license.html
+	 *
+	 * Contributors:
+	 *    Paul Baker, WWN Software LLC
+	 *    
+	 * The blind-agent-mediated negotiation process implemented by this software
+	 * is the subject of U.S. Patent 7,685,073. 
+	 *******************************************************************************/
+
+package pygar.demo0P;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A TermDictionary assigns an int id to each word of the global word list so that
+ * document profiles can be stored as sparse vectors of ids and frequencies rather than
+ * as maps from words to frequencies. Ids are assigned in the order words are added,
+ * starting at zero.
+ * 
+ * @author pbaker
+ *
+ */
+public class TermDictionary {
+	
+	private final Map<String, Integer> ids;
+	private String[] terms;
+	private int size;
+	
+	public TermDictionary(int expected) {
+		ids = new HashMap<String, Integer>(Math.max(16, 2 * expected));
+		terms = new String[Math.max(16, expected)];
+		size = 0;
+	}
+	
+	/**
+	 * Add a word to the dictionary if it is not present.
+	 * @param term the word
+	 * @return the id of the word
+	 */
+	public int add(String term) {
+		Integer id = ids.get(term);
+		if (id != null) {
+			return id;
+		}
+		if (size == terms.length) {
+			terms = Arrays.copyOf(terms, 2 * size);
+		}
+		terms[size] = term;
+		ids.put(term, size);
+		return size++;
+	}
+	
+	/**
+	 * @param term a word
+	 * @return the id of the word or -1 if the word is not in the dictionary
+	 */
+	public int id(String term) {
+		Integer id = ids.get(term);
+		return id == null ? -1 : id;
+	}
+	
+	/**
+	 * @param id the id of a word
+	 * @return the word
+	 */
+	public String term(int id) {
+		return terms[id];
+	}
+	
+	/** @return the number of words in the dictionary */
+	public int size() {
+		return size;
+	}
+
+}
@@ -0,0 +1,192 @@
+	/****************************************************************CopyrightNotice
+	 * Copyright (c) 2010 WWN Software LLC 
+	 * All rights reserved. This program and the accompanying materials
+	 * are made available under the terms of the Pygar Public License v1.1
+	 * which accompanies this distribution, and is available at
+	 * http://ectn.typepad.com/pygar/pygar-public-license.html
+	 *
+	 * Contributors:
+	 *    Paul Baker, WWN Software LLC
+	 *    
+	 * The blind-agent-mediated negotiation process implemented by this software
+	 * is the subject of U.S. Patent 7,685,073. 
+	 *******************************************************************************/
+
+package pygar.demo0P;
+
+import java.util.Arrays;
+
+/**
+ * TopKPairs keeps the pairs of documents with the highest scores among all the pairs
+ * offered to it. A pair is a score and the positions of the two documents in the order of
+ * comparison. Pairs with equal scores are ranked by the position of the first document
+ * and then by the position of the second, so a later pair ranks above an earlier pair with
+ * the same score. The pairs are held in a min-heap of primitive arrays, so the memory
+ * used depends on the number of pairs kept rather than the number of pairs offered.
+ * <p>
+ * After all pairs are offered, sort puts the pairs in descending order of rank and the
+ * accessor methods return them by rank.
+ * </p>
+ * @author pbaker
+ *
+ */
+public class TopKPairs {
+
+	private final int capacity;
+	private int size;
+	private double[] scores;
+	private int[] first;
+	private int[] second;
+
+	/**
+	 * Create an empty collection.
+	 * @param capacity the number of pairs to keep
+	 */
+	public TopKPairs(int capacity) {
+		this.capacity = capacity;
+		int initial = Math.max(1, Math.min(capacity, 1024));
+		scores = new double[initial];
+		first = new int[initial];
+		second = new int[initial];
+		size = 0;
+	}
+
+	/** @return the number of pairs kept */
+	public int size() {
+		return size;
+	}
+
+	/** @return true if the number of pairs kept is the capacity */
+	public boolean isFull() {
+		return size == capacity;
+	}
+
+	/** @return the score of the lowest ranked pair that is kept */
+	public double minScore() {
+		return scores[0];
+	}
+
+	/**
+	 * Offer a pair. The pair is kept if there is room or if it ranks above the lowest
+	 * ranked pair, which is then dropped.
+	 * @param score the similarity of the pair
+	 * @param i the position of the first document
+	 * @param j the position of the second document
+	 * @return true if the pair is kept
+	 */
+	public boolean offer(double score, int i, int j) {
+		if (size < capacity) {
+			if (size == scores.length) {
+				int n = (int) Math.min((long) capacity, 2L * size);
+				scores = Arrays.copyOf(scores, n);
+				first = Arrays.copyOf(first, n);
+				second = Arrays.copyOf(second, n);
+			}
+			int k = size++;
+			// sift up
+			while (k > 0) {
+				int parent = (k - 1) >>> 1;
+				if (!less(score, i, j, scores[parent], first[parent], second[parent])) {
+					break;
+				}
+				set(k, scores[parent], first[parent], second[parent]);
+				k = parent;
+			}
+			set(k, score, i, j);
+			return true;
+		}
+		if (capacity == 0 || !less(scores[0], first[0], second[0], score, i, j)) {
+			return false;
+		}
+		siftDown(0, size, score, i, j);
+		return true;
+	}
+
+	/**
+	 * Offer every pair kept by another collection. The pairs kept afterwards do not depend
+	 * on the order in which the collections are merged.
+	 * @param other the collection to merge into this one
+	 */
+	public void addAll(TopKPairs other) {
+		for (int k = 0; k < other.size; k++) {
+			offer(other.scores[k], other.first[k], other.second[k]);
+		}
+	}
+
+	/**
+	 * Put the pairs in descending order of rank. No pair may be offered afterwards.
+	 */
+	public void sort() {
+		// heap sort: the lowest ranked pair is moved to the end of the heap each time
+		for (int end = size - 1; end > 0; end--) {
+			double s = scores[end];
+			int i = first[end];
+			int j = second[end];
+			set(end, scores[0], first[0], second[0]);
+			siftDown(0, end, s, i, j);
+		}
+	}
+
+	/**
+	 * @param k the rank of a pair after sort, starting with zero for the highest
+	 * @return the score of the pair
+	 */
+	public double score(int k) {
+		return scores[k];
+	}
+
+	/**
+	 * @param k the rank of a pair after sort, starting with zero for the highest
+	 * @return the position of the first document of the pair
+	 */
+	public int first(int k) {
+		return first[k];
+	}
+
+	/**
+	 * @param k the rank of a pair after sort, starting with zero for the highest
+	 * @return the position of the second document of the pair
+	 */
+	public int second(int k) {
+		return second[k];
+	}
+
+	/* place the pair at position k of a heap of n pairs and move it down to its place */
+	private void siftDown(int k, int n, double score, int i, int j) {
+		while (true) {
+			int child = 2 * k + 1;
+			if (child >= n) {
+				break;
+			}
+			if (child + 1 < n && less(scores[child + 1], first[child + 1], second[child + 1],
+					scores[child], first[child], second[child])) {
+				child++;
+			}
+			if (!less(scores[child], first[child], second[child], score, i, j)) {
+				break;
+			}
+			set(k, scores[child], first[child], second[child]);
+			k = child;
+		}
+		set(k, score, i, j);
+	}
+
+	private void set(int k, double score, int i, int j) {
+		scores[k] = score;
+		first[k] = i;
+		second[k] = j;
+	}
+
+	/* true if the pair (s1, i1, j1) ranks below the pair (s2, i2, j2) */
+	private static boolean less(double s1, int i1, int j1, double s2, int i2, int j2) {
+		int c = Double.compare(s1, s2);
+		if (c != 0) {
+			return c < 0;
+		}
+		if (i1 != i2) {
+			return i1 < i2;
+		}
+		return j1 < j2;
+	}
+
+}
@@ -0,0 +1,324 @@
+	/****************************************************************CopyrightNotice
+	 * Copyright (c) 2013 WWN Software LLC 
+	 * All rights reserved. This program and the accompanying materials
+	 * are made available under the terms of the Pygar Public License v1.0
+	 * which accompanies this distribution, and is available at
+	 * http://ectn.typepad.com/pygar/pygar-public-license.html
+	 *
+	 * Contributors:
+	 *    Paul Baker, WWN Software LLC
+	 *******************************************************************************/
+
+package pygar.documents;
+
+import java.util.Arrays;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import pygar.cryptography.CryptoEngine;
+
+/**
+ * The CiphertextHashJoin is a hash table for joining fields that are compared for equality.
+ * Fields of type F_STRING, F_NAME_STRING and F_INT_EXACT are encrypted deterministically,
+ * so equal clear values have equal encrypted values and the fields of two members can be
+ * joined by hashing rather than by sorting.
+ * <p>
+ * The table is built from the values of one member with add and then probed with the
+ * values of the other member with find. Each value is stored in the form of 
+ * FieldColumn.encode, that is, as the raw bytes of the ciphertext, which are half the size of
+ * the hexadecimal text in the document. A value that is not hexadecimal, for example in a 
+ * document that was never encrypted, is stored as the bytes of its characters instead. 
+ * Ciphertext of exactly one block is held as a CiphertextKey of two longs, which
+ * are hashed and compared without a loop over bytes. The table uses open addressing with linear probing over
+ * primitive arrays. Values that occur more than once are chained together so that find
+ * returns the first entry and next returns the others.
+ * </p>
+ *
+ * @author pbaker
+ *
+ */
+@NotThreadSafe
+public class CiphertextHashJoin {
+
+	// entries, in the order added
+	private int nEntries;
+	private int[] ids;
+	private int[] offsets;
+	// the length of the bytes or, for a CiphertextKey, minus the form of its ciphertext
+	private int[] lengths;
+	private long[] keyHigh;
+	private long[] keyLow;
+	private int[] hashes;
+	private int[] nextEqual;
+	// bytes of all values
+	private byte[] arena;
+	private int arenaSize;
+
+	// the slots hold an entry number plus one, zero marks an empty slot
+	private int[] slots;
+	private int mask;
+
+	// the bytes of the value being added or probed
+	private byte[] scratch;
+
+	/**
+	 * Create a table.
+	 * @param expected the number of values expected to be added
+	 */
+	public CiphertextHashJoin(int expected) {
+		int capacity = Math.max(16, expected);
+		ids = new int[capacity];
+		offsets = new int[capacity];
+		lengths = new int[capacity];
+		keyHigh = new long[capacity];
+		keyLow = new long[capacity];
+		hashes = new int[capacity];
+		nextEqual = new int[capacity];
+		arena = new byte[capacity * 16];
+		scratch = new byte[64];
+		int nslots = Integer.highestOneBit(2 * capacity - 1) << 1;
+		slots = new int[nslots];
+		mask = nslots - 1;
+		nEntries = 0;
+		arenaSize = 0;
+	}
+
+	/** @return the number of values added */
+	public int size() {
+		return nEntries;
+	}
+
+	/* convert the value into bytes in the scratch buffer and return the length */
+	private int valueBytes(CharSequence value) {
+		int need = 2 * value.length() + 1;
+		if (scratch.length < need) {
+			scratch = new byte[Math.max(need, 2 * scratch.length)];
+		}
+		return FieldColumn.encode(value, scratch, 0);
+	}
+
+	private static int hash(byte[] b, int off, int len) {
+		int h = 0x811c9dc5;
+		for (int i = off; i < off + len; i++) {
+			h = (h ^ b[i]) * 0x01000193;
+		}
+		return h ^ (h >>> 16);
+	}
+
+	private boolean sameBytes(int entry, byte[] b, int boff, int len) {
+		if (lengths[entry] != len) {
+			return false;
+		}
+		int off = offsets[entry];
+		for (int i = 0; i < len; i++) {
+			if (arena[off + i] != b[boff + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Add a value to the table.
+	 * @param value the field value, usually ciphertext in hexadecimal
+	 * @param id a number chosen by the caller to identify the value
+	 */
+	public void add(CharSequence value, int id) {
+		// valueBytes may replace the scratch buffer, so it is called first
+		int len = valueBytes(value);
+		add(scratch, 0, len, id);
+	}
+
+	/**
+	 * Add a value that is already stored as bytes in the form of FieldColumn.encode.
+	 * @param b holds the value
+	 * @param off the position of the first byte
+	 * @param len the number of bytes
+	 * @param id a number chosen by the caller to identify the value
+	 */
+	public void add(byte[] b, int off, int len, int id) {
+		if (isKey(b, off, len)) {
+			addKey(b[off], CiphertextKey.high(b, off + 1), CiphertextKey.low(b, off + 1), id);
+			return;
+		}
+		if (arenaSize + len > arena.length) {
+			arena = Arrays.copyOf(arena, Math.max(arenaSize + len, 2 * arena.length));
+		}
+		int entry = newEntry(id, hash(b, off, len));
+		System.arraycopy(b, off, arena, arenaSize, len);
+		offsets[entry] = arenaSize;
+		lengths[entry] = len;
+		arenaSize += len;
+		insert(entry);
+	}
+
+	/**
+	 * Add a string value of a column.
+	 * @param column the column
+	 * @param i the index of the value in the column
+	 * @param id a number chosen by the caller to identify the value
+	 */
+	public void add(FieldColumn column, int i, int id) {
+		if (column.isKey(i)) {
+			addKey(FieldColumn.keyForm(column.arena[column.offset(i)]), 
+					column.keyHigh(i), column.keyLow(i), id);
+		} else {
+			add(column.arena, column.offset(i), column.length(i), id);
+		}
+	}
+
+	private void addKey(byte form, long high, long low, int id) {
+		int entry = newEntry(id, CiphertextKey.hash(high, low) + form);
+		keyHigh[entry] = high;
+		keyLow[entry] = low;
+		lengths[entry] = -form;
+		insert(entry);
+	}
+
+	/* true if the bytes are one block of ciphertext, which is held as a key */
+	private static boolean isKey(byte[] b, int off, int len) {
+		return len == 1 + CiphertextKey.BYTES 
+				&& (b[off] == FieldColumn.FORM_HEX || b[off] == FieldColumn.FORM_BASE64);
+	}
+
+	private int newEntry(int id, int h) {
+		if (nEntries == ids.length) {
+			int capacity = 2 * ids.length;
+			ids = Arrays.copyOf(ids, capacity);
+			offsets = Arrays.copyOf(offsets, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+			keyHigh = Arrays.copyOf(keyHigh, capacity);
+			keyLow = Arrays.copyOf(keyLow, capacity);
+			hashes = Arrays.copyOf(hashes, capacity);
+			nextEqual = Arrays.copyOf(nextEqual, capacity);
+		}
+		int entry = nEntries++;
+		ids[entry] = id;
+		hashes[entry] = h;
+		nextEqual[entry] = -1;
+		return entry;
+	}
+
+	/* place a new entry in a slot or chain it after the first entry with the same value */
+	private void insert(int entry) {
+		if (2 * nEntries > slots.length) {
+			rehash();
+		}
+		int h = hashes[entry];
+		int slot = h & mask;
+		while (slots[slot] != 0) {
+			int other = slots[slot] - 1;
+			if (hashes[other] == h && sameEntry(other, entry)) {
+				nextEqual[entry] = nextEqual[other];
+				nextEqual[other] = entry;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		slots[slot] = entry + 1;
+	}
+
+	private boolean sameEntry(int e1, int e2) {
+		if (lengths[e1] != lengths[e2]) {
+			return false;
+		}
+		if (lengths[e1] < 0) {
+			return keyHigh[e1] == keyHigh[e2] && keyLow[e1] == keyLow[e2];
+		}
+		return sameBytes(e1, arena, offsets[e2], lengths[e2]);
+	}
+
+	private void rehash() {
+		int[] old = slots;
+		slots = new int[2 * old.length];
+		mask = slots.length - 1;
+		for (int s : old) {
+			if (s != 0) {
+				int slot = hashes[s - 1] & mask;
+				while (slots[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				slots[slot] = s;
+			}
+		}
+	}
+
+	/**
+	 * Find the first entry with a value equal to the given value.
+	 * @param value the field value to look for
+	 * @return an entry number or -1 if the value is not in the table
+	 */
+	public int find(CharSequence value) {
+		int len = valueBytes(value);
+		return find(scratch, 0, len);
+	}
+
+	/**
+	 * Find the first entry with a value equal to a value stored as bytes in the form of
+	 * FieldColumn.encode.
+	 * @param b holds the value
+	 * @param off the position of the first byte
+	 * @param len the number of bytes
+	 * @return an entry number or -1 if the value is not in the table
+	 */
+	public int find(byte[] b, int off, int len) {
+		if (isKey(b, off, len)) {
+			return findKey(b[off], CiphertextKey.high(b, off + 1), CiphertextKey.low(b, off + 1));
+		}
+		int h = hash(b, off, len);
+		int slot = h & mask;
+		while (slots[slot] != 0) {
+			int entry = slots[slot] - 1;
+			if (hashes[entry] == h && sameBytes(entry, b, off, len)) {
+				return entry;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Find the first entry with a value equal to a string value of a column.
+	 * @param column the column
+	 * @param i the index of the value in the column
+	 * @return an entry number or -1 if the value is not in the table
+	 */
+	public int find(FieldColumn column, int i) {
+		if (column.isKey(i)) {
+			return findKey(FieldColumn.keyForm(column.arena[column.offset(i)]), 
+					column.keyHigh(i), column.keyLow(i));
+		}
+		return find(column.arena, column.offset(i), column.length(i));
+	}
+
+	private int findKey(byte form, long high, long low) {
+		int h = CiphertextKey.hash(high, low) + form;
+		int slot = h & mask;
+		while (slots[slot] != 0) {
+			int entry = slots[slot] - 1;
+			if (hashes[entry] == h && lengths[entry] == -form 
+					&& keyHigh[entry] == high && keyLow[entry] == low) {
+				return entry;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param entry an entry returned by find or next
+	 * @return the next entry with the same value or -1 if there is none
+	 */
+	public int next(int entry) {
+		return nextEqual[entry];
+	}
+
+	/**
+	 * @param entry an entry returned by find or next
+	 * @return the id given when the value was added
+	 */
+	public int id(int entry) {
+		return ids[entry];
+	}
+
+}
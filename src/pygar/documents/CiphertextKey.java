@@ -0,0 +1,111 @@
+	/****************************************************************CopyrightNotice
+	 * Copyright (c) 2013 WWN Software LLC 
+	 * All rights reserved. This program and the accompanying materials
+	 * are made available under the terms of the Pygar Public License v1.0
+	 * which accompanies this distribution, and is available at
+	 * http://ectn.typepad.com/pygar/pygar-public-license.html
+	 *
+	 * Contributors:
+	 *    Paul Baker, WWN Software LLC
+	 *******************************************************************************/
+
+package pygar.documents;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * CiphertextKey holds the methods for 128 bit ciphertext keys. Most fields that are compared
+ * for equality, such as words, accession numbers and short names, are shorter than one 
+ * block of AES, so their ciphertext is exactly 16 bytes. Such a value is held as two longs
+ * in primitive arrays: the high long holds the first 8 bytes and the low long the last 8
+ * bytes, both in big endian order. Two keys are then hashed and compared with a few
+ * operations on longs instead of a loop over bytes.
+ * <p>
+ * The order of keys is the unsigned order of their bytes, so a column may hold keys and
+ * values of other lengths together and still be sorted consistently.
+ * </p>
+ *
+ * @author pbaker
+ *
+ */
+@Immutable
+public final class CiphertextKey {
+
+	/** The number of bytes in a key. */
+	public static final int BYTES = 16;
+
+	private CiphertextKey() {
+	}
+
+	/**
+	 * @param b holds the 16 bytes of a key
+	 * @param off the position of the first byte
+	 * @return the high long of the key
+	 */
+	public static long high(byte[] b, int off) {
+		return toLong(b, off);
+	}
+
+	/**
+	 * @param b holds the 16 bytes of a key
+	 * @param off the position of the first byte
+	 * @return the low long of the key
+	 */
+	public static long low(byte[] b, int off) {
+		return toLong(b, off + 8);
+	}
+
+	private static long toLong(byte[] b, int off) {
+		long x = 0;
+		for (int i = 0; i < 8; i++) {
+			x = (x << 8) | (b[off + i] & 0xff);
+		}
+		return x;
+	}
+
+	/**
+	 * @param high the high long of a key
+	 * @param low the low long of a key
+	 * @param k the position of a byte in the key, from 0 to 15
+	 * @return the byte
+	 */
+	public static byte byteAt(long high, long low, int k) {
+		return (byte) (k < 8 ? high >>> (56 - 8 * k) : low >>> (120 - 8 * k));
+	}
+
+	/**
+	 * Store the bytes of a key.
+	 * @param high the high long of the key
+	 * @param low the low long of the key
+	 * @param out receives 16 bytes
+	 * @param off the position of the first byte
+	 */
+	public static void store(long high, long low, byte[] out, int off) {
+		for (int k = 0; k < BYTES; k++) {
+			out[off + k] = byteAt(high, low, k);
+		}
+	}
+
+	/**
+	 * Compare two keys in the unsigned order of their bytes.
+	 * @return a negative number, zero or a positive number as the first key is less than,
+	 * equal to or greater than the second
+	 */
+	public static int compare(long high1, long low1, long high2, long low2) {
+		if (high1 != high2) {
+			return Long.compare(high1 ^ Long.MIN_VALUE, high2 ^ Long.MIN_VALUE);
+		}
+		return Long.compare(low1 ^ Long.MIN_VALUE, low2 ^ Long.MIN_VALUE);
+	}
+
+	/**
+	 * @return a hash of a key. The bits of ciphertext are already well mixed, but keys 
+	 * of clear text are not, so the two longs are mixed.
+	 */
+	public static int hash(long high, long low) {
+		long h = (high * 0x9E3779B97F4A7C15L) ^ low;
+		h *= 0xC2B2AE3D27D4EB4FL;
+		return (int) (h ^ (h >>> 32));
+	}
+
+}
@@ -17,6 +17,7 @@ import java.util.HashMap;
 import net.jcip.annotations.NotThreadSafe;
 
 import pygar.configuration.ConfigurationError;
+import pygar.cryptography.CiphertextEncoding;
 
 /** An EncryptedFieldTable contains a table that lists those fields of an XML document that are
  * subject to partial encryption. Fields are identified by a partially qualified name.
@@ -83,7 +84,8 @@ public class EncryptedFieldTable {
 	 * </p><p>
 	 * The preceding types: F_STRING, F_NAME_STRING, F_LIST, and F_INT_EXACT are
 	 * encrypted using standard encryption producing a hexadecimal representation of 
-	 * the output of applying encryption to the string value of the clear text value.
+	 * the output of applying encryption to the string value of the clear text value,
+	 * or another representation selected with setCiphertextEncoding.
 	 * In contrast, the remaining types: F_REAL and F_REAL_RANGE are treated as numbers. 
 	 * An F_REAL is converted to a new number using the encryption key and the pair
 	 * of numbers defining an F_REAL_RANGE value is converted to a new pair. This type of
@@ -154,6 +156,8 @@ public class EncryptedFieldTable {
 		public double vmin; 
 		/** For floating point fields, specify the estimated maximum value of the field. */
 		public double vmax;
+		/** The position of the row in the table, assigned by addRow, or -1 before then. */
+		public int id;
 		
 		/** The Row contains two required fields: name and ftype. The choiceList
 		 * can be null and the remark can be an empty string.
@@ -166,6 +170,7 @@ public class EncryptedFieldTable {
 			this.ftype = ftype;
 			this.remark = remark;
 			this.rangeSet = false;
+			this.id = -1;
 		}
 
 		public Row (String name, EFTYPE ftype, String remark, double vmin, double vmax) {
@@ -175,6 +180,7 @@ public class EncryptedFieldTable {
 			this.rangeSet = true;
 			this.vmin = vmin;
 			this.vmax = vmax;
+			this.id = -1;
 		}
 	}
 	
@@ -182,6 +188,9 @@ public class EncryptedFieldTable {
 	
 	public Row defaultRow;
 	
+	// the text form of encrypted values, see CiphertextEncoding
+	private CiphertextEncoding ciphertextEncoding;
+	
 	// The table is the main functional data structure of the object
 	private HashMap<String, Row> table;
 	// We keep a separate list of the entry names for efficiency
@@ -205,6 +214,21 @@ public class EncryptedFieldTable {
 		
 		EFTYPE_DEFAULT = f_default;
 		defaultRow = new Row("", EFTYPE_DEFAULT, "");
+		ciphertextEncoding = CiphertextEncoding.HEX;
+	}
+	
+	/** Select the text form of the encrypted values of F_STRING, F_NAME_STRING and 
+	 * F_INT_EXACT fields. The encoding must be chosen before a FieldCrypto is created
+	 * for the table, and all parties must use the same encoding. The default is HEX.
+	 * @param encoding the encoding
+	 */
+	public void setCiphertextEncoding(CiphertextEncoding encoding) {
+		ciphertextEncoding = encoding;
+	}
+	
+	/** @return the text form of encrypted values */
+	public CiphertextEncoding getCiphertextEncoding() {
+		return ciphertextEncoding;
 	}
 	
 	// the partially qualified name of a new row must not match
@@ -224,17 +248,32 @@ public class EncryptedFieldTable {
 
 	/** Extend the table with a new row. The name of the new row
 	 * must not match the name of an existing row; otherwise, an
-	 * exception is thrown.
+	 * exception is thrown. The row receives the next id, so a row 
+	 * belongs to only one table.
 	 * 
 	 * @param row
 	 * @throws pygar.configuration.ConfigurationError
 	 */
 	public void addRow( Row row) throws ConfigurationError {
 		nameVerify(row.name);
+		row.id = rowList.size();
 		table.put(row.name, row);
 		rowList.add(row.name);
 	}
 	
+	/** @return the number of rows, which is one more than the largest row id */
+	public int getRowCount() {
+		return rowList.size();
+	}
+	
+	/** 
+	 * @param id the id of a row
+	 * @return the row with the id
+	 */
+	public Row getRow(int id) {
+		return table.get(rowList.get(id));
+	}
+	
 	public String lookupName( String name) {
 		// look for the fully qualified name in the table by matching on the right side. if found,
 		// return the name in the table. Otherwise return a null string;
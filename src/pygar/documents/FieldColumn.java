@@ -0,0 +1,497 @@
+	/****************************************************************CopyrightNotice
+	 * Copyright (c) 2013 WWN Software LLC 
+	 * All rights reserved. This program and the accompanying materials
+	 * are made available under the terms of the Pygar Public License v1.0
+	 * which accompanies this distribution, and is available at
+	 * http://ectn.typepad.com/pygar/pygar-public-license.html
+	 *
+	 * Contributors:
+	 *    Paul Baker, WWN Software LLC
+	 *******************************************************************************/
+
+package pygar.documents;
+
+import java.util.Arrays;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import pygar.configuration.DocumentError;
+import pygar.cryptography.CiphertextEncoding;
+import pygar.cryptography.CryptoEngine;
+import pygar.documents.EncryptedFieldTable.EFTYPE;
+
+/**
+ * A FieldColumn holds every value of one field of one record type in a negotiation
+ * position. The values are stored in primitive arrays according to the kind of the field
+ * rather than as one object for each value.
+ * <ul>
+ * <li>STRING values (F_STRING, F_NAME_STRING, F_INT_EXACT) are packed into a single byte
+ * arena with an array of offsets. Ciphertext in lower case hexadecimal is stored as its
+ * raw bytes, which is half the size of the text. Other text is stored as its characters.
+ * The first byte of each value records which form was used. Ciphertext of exactly one
+ * block (16 bytes) is held as a CiphertextKey in two long arrays, and only its form byte is
+ * kept in the arena.
+ * <li>NUMBER values (F_INT, F_REAL) are stored in a double array.
+ * <li>RANGE values (F_INT_RANGE, F_REAL_RANGE) are stored in two double arrays that
+ * hold the lower and upper ends.
+ * </ul>
+ * <p>
+ * The record number of each value is kept in an int array. After all values are added,
+ * sort computes the order of the values as an array of indexes without moving the values.
+ * </p>
+ *
+ * @author pbaker
+ *
+ */
+@NotThreadSafe
+public class FieldColumn {
+
+	/** The KIND enumeration lists the forms of storage for the values of a column. */
+	public enum KIND {
+		STRING, NUMBER, RANGE
+	}
+
+	// the first byte of a stored string value
+	static final byte FORM_CHARS = 0;
+	static final byte FORM_HEX = 1;
+	static final byte FORM_LATIN1 = 2;
+	static final byte FORM_BASE64 = 3;
+	// the forms of a value held as a CiphertextKey
+	static final byte FORM_HEX_KEY = 4;
+	static final byte FORM_BASE64_KEY = 5;
+
+	final EFTYPE ftype;
+	final KIND kind;
+	int size;
+	int[] recordNums;
+
+	// STRING: the values are arena[offsets[i]] to arena[offsets[i+1]-1]
+	byte[] arena;
+	int[] offsets;
+	// STRING: the CiphertextKey of each value that is held as a key
+	long[] keyHigh;
+	long[] keyLow;
+
+	// NUMBER and RANGE: for a NUMBER the two arrays are the same array
+	double[] low;
+	double[] high;
+
+	// the indexes of the values in sorted order, null until sort is called
+	int[] order;
+
+	/**
+	 * Create an empty column.
+	 * @param ftype the type of the field
+	 * @param kind the kind of storage, which must be kindOf(ftype)
+	 */
+	public FieldColumn(EFTYPE ftype, KIND kind) {
+		this.ftype = ftype;
+		this.kind = kind;
+		int capacity = 16;
+		recordNums = new int[capacity];
+		switch (kind) {
+		case STRING:
+			arena = new byte[capacity * 16];
+			offsets = new int[capacity + 1];
+			keyHigh = new long[capacity];
+			keyLow = new long[capacity];
+			break;
+		case NUMBER:
+			low = new double[capacity];
+			high = low;
+			break;
+		case RANGE:
+			low = new double[capacity];
+			high = new double[capacity];
+			break;
+		}
+	}
+
+	/**
+	 * Return the kind of storage for a type of field.
+	 * @param ftype the type of the field
+	 * @return the kind or null if values of the type are not compared by the matcher
+	 */
+	public static KIND kindOf(EFTYPE ftype) {
+		switch (ftype) {
+		case F_STRING:
+		case F_NAME_STRING:
+		case F_INT_EXACT:
+			return KIND.STRING;
+		case F_INT:
+		case F_REAL:
+			return KIND.NUMBER;
+		case F_INT_RANGE:
+		case F_REAL_RANGE:
+			return KIND.RANGE;
+		default:
+			return null;
+		}
+	}
+
+	/** @return the number of values in the column */
+	public int size() {
+		return size;
+	}
+
+	/** @return the type of the field */
+	public EFTYPE getType() {
+		return ftype;
+	}
+
+	/** @return the kind of storage */
+	public KIND getKind() {
+		return kind;
+	}
+
+	/**
+	 * @param i the index of a value
+	 * @return the record number of the value
+	 */
+	public int recordNum(int i) {
+		return recordNums[i];
+	}
+
+	/**
+	 * Add a value to the column.
+	 * @param recordNum the number of the record that contains the value
+	 * @param value the text of the value
+	 * @throws DocumentError if a number or range cannot be read
+	 */
+	public void add(int recordNum, String value) throws DocumentError {
+		if (size == recordNums.length) {
+			grow();
+		}
+		try {
+			switch (kind) {
+			case STRING:
+				int need = offsets[size] + 2 * value.length() + 1;
+				if (need > arena.length) {
+					arena = Arrays.copyOf(arena, Math.max(need, 2 * arena.length));
+				}
+				int off = offsets[size];
+				int n = encode(value, arena, off);
+				if (n == 1 + CiphertextKey.BYTES 
+						&& (arena[off] == FORM_HEX || arena[off] == FORM_BASE64)) {
+					keyHigh[size] = CiphertextKey.high(arena, off + 1);
+					keyLow[size] = CiphertextKey.low(arena, off + 1);
+					arena[off] = arena[off] == FORM_HEX ? FORM_HEX_KEY : FORM_BASE64_KEY;
+					n = 1;
+				}
+				offsets[size + 1] = off + n;
+				break;
+			case NUMBER:
+				low[size] = Double.parseDouble(value);
+				break;
+			case RANGE:
+				int comma = value.indexOf(",");
+				if (comma > 0) {
+					low[size] = Double.parseDouble(value.substring(0, comma));
+					high[size] = Double.parseDouble(value.substring(comma + 1));
+				} else {
+					// there is only one value so we store a range of zero extent around value
+					low[size] = Double.parseDouble(value);
+					high[size] = low[size];
+				}
+				break;
+			}
+		} catch (NumberFormatException e) {
+			System.err.printf("FieldColumn cannot read the %s value %s %n", ftype, value);
+			throw new DocumentError();
+		}
+		recordNums[size] = recordNum;
+		size++;
+		order = null;
+	}
+
+	private void grow() {
+		int capacity = 2 * recordNums.length;
+		recordNums = Arrays.copyOf(recordNums, capacity);
+		if (offsets != null) {
+			offsets = Arrays.copyOf(offsets, capacity + 1);
+			keyHigh = Arrays.copyOf(keyHigh, capacity);
+			keyLow = Arrays.copyOf(keyLow, capacity);
+		}
+		if (low != null) {
+			boolean same = high == low;
+			low = Arrays.copyOf(low, capacity);
+			high = same ? low : Arrays.copyOf(high, capacity);
+		}
+	}
+
+	/** Release the unused capacity of the arrays once all values are added. */
+	public void trim() {
+		recordNums = Arrays.copyOf(recordNums, size);
+		if (offsets != null) {
+			offsets = Arrays.copyOf(offsets, size + 1);
+			arena = Arrays.copyOf(arena, offsets[size]);
+			keyHigh = Arrays.copyOf(keyHigh, size);
+			keyLow = Arrays.copyOf(keyLow, size);
+		}
+		if (low != null) {
+			boolean same = high == low;
+			low = Arrays.copyOf(low, size);
+			high = same ? low : Arrays.copyOf(high, size);
+		}
+	}
+
+	/**
+	 * Compute the sorted order of the values. Strings are ordered by their stored bytes,
+	 * which groups equal values together but is not the order of the text. Ranges are
+	 * ordered by their lower ends. Equal values are in the order they were added.
+	 */
+	public void sort() {
+		IndexSort.IndexOrder cmp;
+		if (kind == KIND.STRING) {
+			cmp = new IndexSort.IndexOrder() {
+				public boolean less(int a, int b) {
+					int c = compareStrings(FieldColumn.this, a, FieldColumn.this, b);
+					return c < 0 || (c == 0 && a < b);
+				}
+			};
+		} else {
+			cmp = new IndexSort.IndexOrder() {
+				public boolean less(int a, int b) {
+					int c = Double.compare(low[a], low[b]);
+					return c < 0 || (c == 0 && a < b);
+				}
+			};
+		}
+		order = IndexSort.sortedIndex(cmp, size);
+	}
+
+	/**
+	 * @return the indexes of the values in sorted order
+	 */
+	public int[] sortedOrder() {
+		if (order == null) {
+			sort();
+		}
+		return order;
+	}
+
+	/**
+	 * Compare a value of one column with a value of another column of the same kind.
+	 * Strings are compared by their stored bytes, with a key standing for its form byte 
+	 * followed by its 16 bytes, and numbers by their values.
+	 * @return a negative number, zero or a positive number as the first value is less than,
+	 * equal to or greater than the second
+	 */
+	public static int compare(FieldColumn a, int i, FieldColumn b, int j) {
+		if (a.kind == KIND.STRING) {
+			return compareStrings(a, i, b, j);
+		}
+		return Double.compare(a.low[i], b.low[j]);
+	}
+
+	private static int compareStrings(FieldColumn a, int i, FieldColumn b, int j) {
+		boolean ka = a.isKey(i);
+		boolean kb = b.isKey(j);
+		if (ka && kb) {
+			int c = keyForm(a.arena[a.offsets[i]]) - keyForm(b.arena[b.offsets[j]]);
+			if (c != 0) {
+				return c;
+			}
+			return CiphertextKey.compare(a.keyHigh[i], a.keyLow[i], b.keyHigh[j], b.keyLow[j]);
+		}
+		if (ka) {
+			return compareKeyBytes(a, i, b.arena, b.offsets[j], b.offsets[j + 1]);
+		}
+		if (kb) {
+			return -compareKeyBytes(b, j, a.arena, a.offsets[i], a.offsets[i + 1]);
+		}
+		return compareBytes(a, i, b, j);
+	}
+
+	/* compare the key at index i, as its form byte and 16 bytes, with stored bytes */
+	private static int compareKeyBytes(FieldColumn a, int i, byte[] y, int q, int qEnd) {
+		long high = a.keyHigh[i];
+		long low = a.keyLow[i];
+		int len = qEnd - q;
+		int n = Math.min(len, 1 + CiphertextKey.BYTES);
+		for (int k = 0; k < n; k++) {
+			byte x = k == 0 ? keyForm(a.arena[a.offsets[i]]) : CiphertextKey.byteAt(high, low, k - 1);
+			int c = (x & 0xff) - (y[q + k] & 0xff);
+			if (c != 0) {
+				return c;
+			}
+		}
+		return (1 + CiphertextKey.BYTES) - len;
+	}
+
+	/* the form of the ciphertext of a key */
+	static byte keyForm(byte form) {
+		return form == FORM_HEX_KEY ? FORM_HEX : FORM_BASE64;
+	}
+
+	/**
+	 * @param i the index of a string value
+	 * @return true if the value is held as a CiphertextKey
+	 */
+	boolean isKey(int i) {
+		if (offsets[i + 1] - offsets[i] != 1) {
+			return false;
+		}
+		byte form = arena[offsets[i]];
+		return form == FORM_HEX_KEY || form == FORM_BASE64_KEY;
+	}
+
+	private static int compareBytes(FieldColumn a, int i, FieldColumn b, int j) {
+		int p = a.offsets[i];
+		int pEnd = a.offsets[i + 1];
+		int q = b.offsets[j];
+		int qEnd = b.offsets[j + 1];
+		byte[] x = a.arena;
+		byte[] y = b.arena;
+		while (p < pEnd && q < qEnd) {
+			int c = (x[p++] & 0xff) - (y[q++] & 0xff);
+			if (c != 0) {
+				return c;
+			}
+		}
+		return (pEnd - p) - (qEnd - q);
+	}
+
+	/**
+	 * @param i the index of a value
+	 * @return the lower end of a range or the value of a number
+	 */
+	public double low(int i) {
+		return low[i];
+	}
+
+	/**
+	 * @param i the index of a value
+	 * @return the upper end of a range or the value of a number
+	 */
+	public double high(int i) {
+		return high[i];
+	}
+
+	/**
+	 * Return the text of a value. Strings are returned as they were added. Numbers and
+	 * ranges are returned in the format of Double.toString.
+	 * @param i the index of a value
+	 * @return the text
+	 */
+	public String stringValue(int i) {
+		switch (kind) {
+		case STRING:
+			if (isKey(i)) {
+				byte[] b = new byte[1 + CiphertextKey.BYTES];
+				b[0] = keyForm(arena[offsets[i]]);
+				CiphertextKey.store(keyHigh[i], keyLow[i], b, 1);
+				return decode(b, 0, b.length);
+			}
+			return decode(arena, offsets[i], offsets[i + 1] - offsets[i]);
+		case NUMBER:
+			return Double.toString(low[i]);
+		default:
+			return Double.toString(low[i]) + "," + Double.toString(high[i]);
+		}
+	}
+
+	/** @return the high long of a value held as a key */
+	long keyHigh(int i) {
+		return keyHigh[i];
+	}
+
+	/** @return the low long of a value held as a key */
+	long keyLow(int i) {
+		return keyLow[i];
+	}
+
+	/** @return the offset of a string value in the arena */
+	int offset(int i) {
+		return offsets[i];
+	}
+
+	/** @return the length of a string value in the arena */
+	int length(int i) {
+		return offsets[i + 1] - offsets[i];
+	}
+
+	/**
+	 * Store the text of a string value as bytes. The output array must have room for
+	 * 2 * value.length() + 1 bytes.
+	 * @param value the text
+	 * @param out receives the bytes
+	 * @param off the position of the first byte
+	 * @return the number of bytes stored
+	 */
+	public static int encode(CharSequence value, byte[] out, int off) {
+		int len = value.length();
+		boolean hex = (len & 1) == 0;
+		boolean latin1 = true;
+		for (int i = 0; i < len; i++) {
+			char c = value.charAt(i);
+			if (hex && !((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+				hex = false;
+			}
+			if (c > 0xff) {
+				latin1 = false;
+				break;
+			}
+		}
+		if (hex) {
+			out[off] = FORM_HEX;
+			return 1 + CryptoEngine.hexToByteArray(value, 0, len, out, off + 1);
+		}
+		if (latin1 && len > 0) {
+			// ciphertext written in CiphertextEncoding.BASE64URL is also stored as raw bytes
+			int n = CiphertextEncoding.BASE64URL.decode(value, 0, len, out, off + 1);
+			if (n >= 0) {
+				out[off] = FORM_BASE64;
+				return 1 + n;
+			}
+		}
+		int n = off + 1;
+		if (latin1) {
+			out[off] = FORM_LATIN1;
+			for (int i = 0; i < len; i++) {
+				out[n++] = (byte) value.charAt(i);
+			}
+		} else {
+			out[off] = FORM_CHARS;
+			for (int i = 0; i < len; i++) {
+				char c = value.charAt(i);
+				out[n++] = (byte)(c >>> 8);
+				out[n++] = (byte) c;
+			}
+		}
+		return n - off;
+	}
+
+	/**
+	 * Recover the text of a string value stored by encode.
+	 * @param b the stored bytes
+	 * @param off the position of the first byte
+	 * @param len the number of bytes
+	 * @return the text
+	 */
+	public static String decode(byte[] b, int off, int len) {
+		switch (b[off]) {
+		case FORM_HEX:
+			char[] hex = new char[2 * (len - 1)];
+			CryptoEngine.byteArrayToHex(b, off + 1, len - 1, hex, 0);
+			return new String(hex);
+		case FORM_BASE64:
+			char[] base64 = new char[CiphertextEncoding.BASE64URL.encodedLength(len - 1)];
+			CiphertextEncoding.BASE64URL.encode(b, off + 1, len - 1, base64, 0);
+			return new String(base64);
+		case FORM_LATIN1:
+			char[] latin = new char[len - 1];
+			for (int i = 0; i < latin.length; i++) {
+				latin[i] = (char)(b[off + 1 + i] & 0xff);
+			}
+			return new String(latin);
+		default:
+			char[] chars = new char[(len - 1) / 2];
+			for (int i = 0; i < chars.length; i++) {
+				chars[i] = (char)(((b[off + 1 + 2 * i] & 0xff) << 8) | (b[off + 2 + 2 * i] & 0xff));
+			}
+			return new String(chars);
+		}
+	}
+
+}
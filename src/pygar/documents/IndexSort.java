@@ -0,0 +1,127 @@
+	/****************************************************************CopyrightNotice
+	 * Copyright (c) 2013 WWN Software LLC 
+	 * All rights reserved. This program and the accompanying materials
+	 * are made available under the terms of the Pygar Public License v1.0
+	 * which accompanies this distribution, and is available at
+	 * http://ectn.typepad.com/pygar/pygar-public-license.html
+	 *
+	 * Contributors:
+	 *    Paul Baker, WWN Software LLC
+	 *******************************************************************************/
+
+package pygar.documents;
+
+/**
+ * IndexSort sorts an array of indexes by keys held in primitive arrays, so that the 
+ * matcher can order field values without creating an object for each value. The keys 
+ * are compared through an IndexOrder, which is given two indexes rather than two objects.
+ * The sort is a quicksort with median of three pivots that finishes short ranges with an 
+ * insertion sort. It is not stable, so an IndexOrder should break ties by the index if 
+ * the result must not depend on the original order of the indexes.
+ * 
+ * @author pbaker
+ *
+ */
+public class IndexSort {
+	
+	/** An IndexOrder compares the keys of two indexes. */
+	public interface IndexOrder {
+		/**
+		 * @param a an index
+		 * @param b another index
+		 * @return true if the key of a sorts before the key of b
+		 */
+		boolean less(int a, int b);
+	}
+	
+	private static final int INSERTION_LIMIT = 16;
+	
+	private IndexSort() {
+	}
+	
+	/**
+	 * Return the indexes 0 to n-1 sorted by the key with that index. Equal keys 
+	 * are in the order of their indexes.
+	 * @param key the key of each index
+	 * @param n the number of indexes
+	 * @return the sorted indexes
+	 */
+	public static int[] sortedIndex(final double[] key, int n) {
+		return sortedIndex(new IndexOrder() {
+			public boolean less(int a, int b) {
+				int c = Double.compare(key[a], key[b]);
+				return c < 0 || (c == 0 && a < b);
+			}
+		}, n);
+	}
+	
+	/**
+	 * Return the indexes 0 to n-1 sorted by an IndexOrder.
+	 * @param order compares the keys of two indexes
+	 * @param n the number of indexes
+	 * @return the sorted indexes
+	 */
+	public static int[] sortedIndex(IndexOrder order, int n) {
+		int[] index = new int[n];
+		for (int i = 0; i < n; i++) {
+			index[i] = i;
+		}
+		sort(order, index, 0, n);
+		return index;
+	}
+
+	/**
+	 * Sort part of an array of indexes in ascending order of their keys.
+	 * @param order compares the keys of two indexes
+	 * @param index the indexes to sort
+	 * @param from the first position to sort
+	 * @param to one past the last position to sort
+	 */
+	public static void sort(IndexOrder order, int[] index, int from, int to) {
+		while (to - from > INSERTION_LIMIT) {
+			int mid = (from + to) >>> 1;
+			// median of three
+			if (order.less(index[mid], index[from])) swap(index, mid, from);
+			if (order.less(index[to - 1], index[mid])) {
+				swap(index, to - 1, mid);
+				if (order.less(index[mid], index[from])) swap(index, mid, from);
+			}
+			int pivot = index[mid];
+			int i = from;
+			int j = to - 1;
+			while (i <= j) {
+				while (order.less(index[i], pivot)) i++;
+				while (order.less(pivot, index[j])) j--;
+				if (i <= j) {
+					swap(index, i, j);
+					i++;
+					j--;
+				}
+			}
+			// recurse into the smaller part to bound the depth of the stack
+			if (j - from < to - i) {
+				sort(order, index, from, j + 1);
+				from = i;
+			} else {
+				sort(order, index, i, to);
+				to = j + 1;
+			}
+		}
+		for (int i = from + 1; i < to; i++) {
+			int x = index[i];
+			int j = i - 1;
+			while (j >= from && order.less(x, index[j])) {
+				index[j + 1] = index[j];
+				j--;
+			}
+			index[j + 1] = x;
+		}
+	}
+	
+	private static void swap(int[] index, int a, int b) {
+		int t = index[a];
+		index[a] = index[b];
+		index[b] = t;
+	}
+
+}
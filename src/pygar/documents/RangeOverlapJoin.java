@@ -0,0 +1,142 @@
+	/****************************************************************CopyrightNotice
+	 * Copyright (c) 2013 WWN Software LLC 
+	 * All rights reserved. This program and the accompanying materials
+	 * are made available under the terms of the Pygar Public License v1.0
+	 * which accompanies this distribution, and is available at
+	 * http://ectn.typepad.com/pygar/pygar-public-license.html
+	 *
+	 * Contributors:
+	 *    Paul Baker, WWN Software LLC
+	 *******************************************************************************/
+
+package pygar.documents;
+
+import java.util.Arrays;
+
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ * The RangeOverlapJoin finds every pair of overlapping ranges between two sets of ranges.
+ * It serves fields of type F_REAL_RANGE and F_INT_RANGE, where the matcher must report 
+ * the overlap of two ranges (COPYRANGE) or a compromise within it (COMPROMISE). A scalar 
+ * value may take part as a range of zero extent. Ranges are closed, so two ranges that 
+ * share only an end point overlap.
+ * <p>
+ * The join sweeps a line across the lower ends of the ranges of both sets in ascending 
+ * order. Each set keeps the ranges that the line has passed and that may still overlap
+ * a later range. When the line reaches a range, the active ranges of the other set either
+ * overlap it and are reported, or end below it and are discarded. The cost is 
+ * O(n log n + k) for n ranges and k overlapping pairs. The ranges are held in primitive
+ * arrays and sorted by index.
+ * </p>
+ * 
+ * @author pbaker
+ *
+ */
+@NotThreadSafe
+public class RangeOverlapJoin {
+	
+	/** A PairSink receives each overlapping pair found by the join. */
+	public interface PairSink {
+		/**
+		 * @param a the index of a range in the first set
+		 * @param b the index of a range in the second set
+		 */
+		void pair(int a, int b);
+	}
+	
+	// the active ranges of each set
+	private int[] activeA;
+	private int nActiveA;
+	private int[] activeB;
+	private int nActiveB;
+	
+	public RangeOverlapJoin() {
+		activeA = new int[16];
+		activeB = new int[16];
+	}
+
+	/**
+	 * Report every pair of overlapping ranges between the first and second sets. A range
+	 * whose lower end is greater than its upper end is empty and never reported. 
+	 * @param lowA the lower ends of the first set
+	 * @param highA the upper ends of the first set
+	 * @param nA the number of ranges in the first set
+	 * @param lowB the lower ends of the second set
+	 * @param highB the upper ends of the second set
+	 * @param nB the number of ranges in the second set
+	 * @param sink receives the pairs
+	 */
+	public void join(double[] lowA, double[] highA, int nA, 
+			double[] lowB, double[] highB, int nB, PairSink sink) {
+		join(lowA, highA, IndexSort.sortedIndex(lowA, nA), nA, 
+				lowB, highB, IndexSort.sortedIndex(lowB, nB), nB, sink);
+	}
+	
+	/**
+	 * Report every pair of overlapping ranges between the first and second sets when 
+	 * the order of the lower ends of each set is already known.
+	 * @param lowA the lower ends of the first set
+	 * @param highA the upper ends of the first set
+	 * @param orderA the indexes of the first set in ascending order of the lower ends
+	 * @param nA the number of ranges in the first set
+	 * @param lowB the lower ends of the second set
+	 * @param highB the upper ends of the second set
+	 * @param orderB the indexes of the second set in ascending order of the lower ends
+	 * @param nB the number of ranges in the second set
+	 * @param sink receives the pairs
+	 */
+	public void join(double[] lowA, double[] highA, int[] orderA, int nA, 
+			double[] lowB, double[] highB, int[] orderB, int nB, PairSink sink) {
+		nActiveA = 0;
+		nActiveB = 0;
+		int i = 0;
+		int j = 0;
+		while (i < nA || j < nB) {
+			// on equal lower ends take the first set first; the second then sees it as active
+			if (j >= nB || (i < nA && lowA[orderA[i]] <= lowB[orderB[j]])) {
+				int a = orderA[i++];
+				if (lowA[a] > highA[a]) {
+					continue;
+				}
+				nActiveB = sweep(lowA[a], a, activeB, nActiveB, highB, sink, true);
+				if (nActiveA == activeA.length) {
+					activeA = Arrays.copyOf(activeA, 2 * nActiveA);
+				}
+				activeA[nActiveA++] = a;
+			} else {
+				int b = orderB[j++];
+				if (lowB[b] > highB[b]) {
+					continue;
+				}
+				nActiveA = sweep(lowB[b], b, activeA, nActiveA, highA, sink, false);
+				if (nActiveB == activeB.length) {
+					activeB = Arrays.copyOf(activeB, 2 * nActiveB);
+				}
+				activeB[nActiveB++] = b;
+			}
+		}
+	}
+	
+	/* report the active ranges that reach the lower end x of range r and discard 
+	 * the others, returning the new number of active ranges */
+	private static int sweep(double x, int r, int[] active, int nActive, double[] high, 
+			PairSink sink, boolean rIsA) {
+		int k = 0;
+		while (k < nActive) {
+			int other = active[k];
+			if (high[other] < x) {
+				active[k] = active[--nActive];
+			} else {
+				if (rIsA) {
+					sink.pair(r, other);
+				} else {
+					sink.pair(other, r);
+				}
+				k++;
+			}
+		}
+		return nActive;
+	}
+
+}
@@ -47,6 +47,48 @@ import pygar.documents.EncryptedFieldTable.Row;
 @NotThreadSafe
 public class SimpleFieldMatchList implements FieldMatchList {
 	
+	/** The JOINMETHOD enumeration lists the procedures the matcher may use to find
+	 * matching values of a MatchItem.
+	 * <p>
+	 * SORT_MERGE - sort the values of both members and merge the sorted lists. This works
+	 * for any values that can be sorted. </p>
+	 * <p>
+	 * HASH - place the values of the smaller member in a hash table keyed on the ciphertext
+	 * and probe it with the values of the larger member. This works only for equality
+	 * between values that are encrypted deterministically. </p>
+	 * <p>
+	 * RANGE_SWEEP - sweep across the lower ends of the ranges of both members and report the
+	 * ranges that overlap. This works for ranges and for numbers, which are treated as ranges
+	 * of zero extent. </p>
+	 */
+	public enum JOINMETHOD {
+		SORT_MERGE, HASH, RANGE_SWEEP
+	}
+	
+	/** Choose the join method for a comparison between fields of the given types.
+	 * @param typeA the type of the first field
+	 * @param typeB the type of the second field
+	 * @return the join method
+	 */
+	public static JOINMETHOD chooseJoin(EFTYPE typeA, EFTYPE typeB) {
+		if (isCiphertext(typeA) && isCiphertext(typeB)) {
+			return JOINMETHOD.HASH;
+		}
+		if (isRange(typeA) || isRange(typeB)) {
+			return JOINMETHOD.RANGE_SWEEP;
+		}
+		return JOINMETHOD.SORT_MERGE;
+	}
+	
+	private static boolean isRange(EFTYPE ftype) {
+		return ftype == EFTYPE.F_REAL_RANGE || ftype == EFTYPE.F_INT_RANGE;
+	}
+	
+	private static boolean isCiphertext(EFTYPE ftype) {
+		return ftype == EFTYPE.F_STRING || ftype == EFTYPE.F_NAME_STRING 
+				|| ftype == EFTYPE.F_INT_EXACT;
+	}
+	
 	public class MatchItem {
 		public String resultName;
 		public boolean required;
@@ -55,6 +97,7 @@ public class SimpleFieldMatchList implements FieldMatchList {
 		public EFTYPE typeA;
 		public String fieldB;
 		public EFTYPE typeB;
+		public JOINMETHOD join;
 		
 		
 		public MatchItem( 
@@ -86,6 +129,7 @@ public class SimpleFieldMatchList implements FieldMatchList {
 				throw new ConfigurationError();
 			}
 			this.typeB = row.ftype;
+			this.join = chooseJoin(typeA, typeB);
 		}
 		
 	}
@@ -13,6 +13,7 @@ package pygar.documents;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -22,16 +23,21 @@ import java.util.Set;
 import java.util.Stack;
 
 import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 
 import net.jcip.annotations.NotThreadSafe;
 
 
 import pygar.configuration.ConfigurationError;
 import pygar.configuration.DocumentError;
+import pygar.documents.EncryptedFieldTable.EFTYPE;
 import pygar.documents.EncryptedFieldTable.Row;
+import pygar.documents.FieldMatchList.MATCHACTION;
+import pygar.documents.SimpleFieldMatchList.MatchItem;
 
 /** 
  * The SimpleXmlMatcher looks for matching records in XML documents according to a 
@@ -56,11 +62,14 @@ import pygar.documents.EncryptedFieldTable.Row;
  * currently supported by this class!</b>
  * </ol>
  * <p>Internally, the class operates fully in-memory. It creates and then sorts lists of 
- * field values for rapid evaluation of the match criteria. 
+ * field values for rapid evaluation of the match criteria. The compare method joins the
+ * lists of two members one MatchItem at a time. Fields compared for equality are joined 
+ * by hashing their ciphertext or by merging the two sorted lists. Range fields are joined by 
+ * sweeping across the lower ends of the ranges with a RangeOverlapJoin. Thus, the cost of a comparison grows as n log n rather 
+ * than as the product of the sizes of the two positions.
  * </p>
- * <p><b>This module is under active development.</b> It is incomplete and the parts that work
- * need to be re-engineered to sort as efficiently as possible. The matching part remains to 
- * be written. Also, thread safety has not been considered.</p>
+ * <p><b>This module is under active development.</b> The inclusion of fields in the basis is not 
+ * yet supported. Also, thread safety has not been considered.</p>
  * 
  * @author pbaker
  *
@@ -80,38 +89,24 @@ public class SimpleXmlMatcher implements Matcher<InputStream, OutputStream> {
 		}
 
 		public int compareTo(FieldHolder x) {
-			// TODO
-			// works fine but it is ridiculous to perform all this casting deeply nested
-			// in the sorting procedures. We must figure out how to segregate by field name
-			// and then directly invoke sort with the appropriate Comparator object. TBD for
-			// December. 
+			// The matcher no longer sorts FieldHolders; the values of a field are kept
+			// in a FieldColumn and sorted by index. This ordering remains for other users.
 			
 			// can't compare if sort value is null
 			if ( x.sortValue == null || this.sortValue == null) {
 				return 0;
 			}
-			
-			try {
-				String s1 = (String)this.sortValue;
-				String s2 = (String)x.sortValue;
-				return s1.compareTo(s2);
-			} catch (Exception e) {
-				try {
-					Double x1 = (Double)this.sortValue;
-					Double x2 = (Double)x.sortValue;
-					return x1.compareTo(x2);
-				} catch (Exception e2) {
-					try {
-						ComparableRange f1 = (ComparableRange)this.sortValue;
-						ComparableRange f2 = (ComparableRange)x.sortValue;
-						return f1.compareTo(f2);
-
-					} catch (Exception e3){
-						// can't compare these.
-						return 0;
-					}
-				}
+			if (this.sortValue instanceof String && x.sortValue instanceof String) {
+				return ((String)this.sortValue).compareTo((String)x.sortValue);
+			}
+			if (this.sortValue instanceof Double && x.sortValue instanceof Double) {
+				return ((Double)this.sortValue).compareTo((Double)x.sortValue);
 			}
+			if (this.sortValue instanceof ComparableRange && x.sortValue instanceof ComparableRange) {
+				return ((ComparableRange)this.sortValue).compareTo((ComparableRange)x.sortValue);
+			}
+			// can't compare these.
+			return 0;
 		}
 
 
@@ -131,11 +126,11 @@ public class SimpleXmlMatcher implements Matcher<InputStream, OutputStream> {
 	
 	public class MemberData {
 		// fields is a map keyed on the record name followed by a second
-		// key on the field name. The map holds a list of field values.
-		HashMap<String, HashMap<String, List<FieldHolder>>> fields;
+		// key on the field name. The map holds a column of field values.
+		HashMap<String, HashMap<String, FieldColumn>> fields;
 		
 		public MemberData() {
-			fields = new HashMap<String, HashMap<String, List<FieldHolder>>>();
+			fields = new HashMap<String, HashMap<String, FieldColumn>>();
 		}
 	}
 
@@ -153,18 +148,12 @@ public class SimpleXmlMatcher implements Matcher<InputStream, OutputStream> {
 			String fieldname;
 			while ( fIter.hasNext()) {
 				fieldname = fIter.next();
+				FieldColumn column = md.fields.get(recName).get(fieldname);
 				System.out.printf("     field: %s with %d values %n", 
-						fieldname, md.fields.get(recName).get(fieldname).size());
-				// now sort the list
-				List<FieldHolder> ll = md.fields.get(recName).get(fieldname);
-				Collections.sort(ll);
-				 
-//				Iterator<FieldHolder> lfIter = md.fields.get(recName).get(fieldname).iterator();
-				Iterator<FieldHolder> lfIter = ll.iterator();
-				while (lfIter.hasNext()) {
-					FieldHolder fh = lfIter.next();
-					System.out.printf("             %s%n", fh.stringValue);
-				}
+						fieldname, column.size());
+				// now sort the column
+				column.trim();
+				column.sort();
 			}
 		}
 		
@@ -188,6 +177,9 @@ public class SimpleXmlMatcher implements Matcher<InputStream, OutputStream> {
 	String[] memberNames;
 	DocLevelInclude[] docIncludes;
 	MemberData[] memberData;
+	// the matches found by compare
+	List<MatchResult> results;
+	RangeOverlapJoin rangeJoin = new RangeOverlapJoin();
 
 	public void open(int nMembers, boolean inclusive) {
 		sizeMatchGroup = nMembers;
@@ -201,33 +193,37 @@ public class SimpleXmlMatcher implements Matcher<InputStream, OutputStream> {
 			docIncludes[i] = new DocLevelInclude(i);
 			memberData[i] = new MemberData();
 		}
+		results = null;
 		isOpen = true;
 		
 	}
 	
-	private void add_fieldvalue(MemberData md, int recordNum, Comparable<?> sortval, 
-			String recordName, String fieldName, String fieldValue) {
-		// TODO
-		System.out.printf("add_fieldvalue %d, %s, %s, %s %n", recordNum, recordName, fieldName, fieldValue);
-		HashMap<String, List<FieldHolder>> fh;
-		if ( !md.fields.containsKey(recordName))  {
-			md.fields.put(recordName, new HashMap<String, List<FieldHolder>>());
-		}
-		fh = md.fields.get(recordName);
-		if ( ! fh.containsKey(fieldName)) {
-			fh.put(fieldName, new LinkedList<FieldHolder>());		
-		}
-		List<FieldHolder> ph;
-		ph = fh.get(fieldName);
-		ph.add( new FieldHolder(recordNum, sortval, fieldValue ));
-		
+	private void add_fieldvalue(MemberData md, int recordNum, EFTYPE ftype, 
+			String recordName, String fieldName, String fieldValue) throws DocumentError {
+//		System.out.printf("add_fieldvalue %d, %s, %s, %s %n", recordNum, recordName, fieldName, fieldValue);
+		FieldColumn.KIND kind = FieldColumn.kindOf(ftype);
+		if (kind == null) {
+			// cannot sort, do not keep
+			return;
+		}
+		HashMap<String, FieldColumn> fh = md.fields.get(recordName);
+		if (fh == null) {
+			fh = new HashMap<String, FieldColumn>();
+			md.fields.put(recordName, fh);
+		}
+		FieldColumn column = fh.get(fieldName);
+		if (column == null) {
+			column = new FieldColumn(ftype, kind);
+			fh.put(fieldName, column);
+		}
+		column.add(recordNum, fieldValue);
 	}
 	
-	/** The ComparableRange class describes ranges of real value and introduces
-	 * the idea of comparison based on overlap. Two ranges compare as "equal"
-	 * if they overlap. Otherwise we return the order of the ranges along the
-	 * real line. <b>Note that this interpretation of equality is different than
-	 * one expects for scalar values.</b>
+	/** The ComparableRange class describes ranges of real value. Ranges are ordered
+	 * by their lower ends and then by their upper ends, which is consistent with
+	 * equals, so lists of ranges can be sorted safely. Overlap is tested separately 
+	 * with the overlaps method. Earlier versions treated overlapping ranges as "equal",
+	 * which is not a valid ordering for a sort.
 	 * @param low
 	 * @param high
 	 */
@@ -242,15 +238,32 @@ public class SimpleXmlMatcher implements Matcher<InputStream, OutputStream> {
 		}
 
 		public int compareTo(ComparableRange o) {
-			if (o.xhigh < this.xlow) {
-				// o is completely below this
-				return 1;
-			} else if ( o.xlow > this.xhigh) {
-				// o is completely above this
-				return -1;
+			int c = Double.compare(this.xlow, o.xlow);
+			if (c != 0) {
+				return c;
 			}
-			// this and o overlap and we interpret that as "equality"
-			return 0;
+			return Double.compare(this.xhigh, o.xhigh);
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof ComparableRange)) {
+				return false;
+			}
+			return compareTo((ComparableRange)o) == 0;
+		}
+		
+		@Override
+		public int hashCode() {
+			return Double.valueOf(xlow).hashCode() * 31 + Double.valueOf(xhigh).hashCode();
+		}
+		
+		/**
+		 * @param o another range
+		 * @return true if the two ranges share at least one point
+		 */
+		public boolean overlaps(ComparableRange o) {
+			return !(o.xhigh < this.xlow || o.xlow > this.xhigh);
 		}
 		
 	}
@@ -268,10 +281,11 @@ public class SimpleXmlMatcher implements Matcher<InputStream, OutputStream> {
 		switch (ftype) {
 		case F_STRING:
 		case F_NAME_STRING:
+		case F_INT_EXACT:
+			// F_INT_EXACT is encrypted like a string and compared for equality
 			return value;
 			
 		case F_INT:
-		case F_INT_EXACT:
 		case F_REAL:
 			return new Double(value);
 			
@@ -354,7 +368,7 @@ public class SimpleXmlMatcher implements Matcher<InputStream, OutputStream> {
 					}
 					sb.append(element);
 					currentPath = sb.toString();
-					System.out.printf("depth %d, start element %s path %s\n", depth, parser.getLocalName(), currentPath);
+//					System.out.printf("depth %d, start element %s path %s\n", depth, parser.getLocalName(), currentPath);
 					// check outer layer
 					if (depth == 1 && ! element.endsWith("position")) {
 						System.err.printf("Document error, level one tag is %s not 'position' %n", element);
@@ -407,12 +421,12 @@ public class SimpleXmlMatcher implements Matcher<InputStream, OutputStream> {
 						if (text2.length() > 0) {
 							if (recordOfInterest != null ) {
 								add_fieldvalue(memberData[memberNumber], recordNum, 
-										returnComparable(row.ftype, text2), recordOfInterest, element, text2);
+										row.ftype, recordOfInterest, element, text2);
 
 							} else if (openInclude != null) {
 								System.out.printf("overlooked include %n ");
 							} else {
-								System.out.printf("do nothing with %s in %s and %s %n", text2, recordOfInterest, element);
+//								System.out.printf("do nothing with %s in %s and %s %n", text2, recordOfInterest, element);
 							}
 
 						}
@@ -433,9 +447,303 @@ public class SimpleXmlMatcher implements Matcher<InputStream, OutputStream> {
 		
 	}
 
-	public void compare() {
-		// TODO Auto-generated method stub
+	/** The MatchResult class records a pair of records, one from each of two members,
+	 * that satisfied the MatchItems for their record names. The values array has one
+	 * entry for each MatchItem in the order of the match list. An entry is null if the 
+	 * item did not match.
+	 */
+	public class MatchResult {
+		int memberA;
+		String recordA;
+		int recordNumA;
+		int memberB;
+		String recordB;
+		int recordNumB;
+		List<MatchItem> items;
+		String[] values;
 		
+		MatchResult(int memberA, String recordA, int recordNumA, 
+				int memberB, String recordB, int recordNumB, 
+				List<MatchItem> items, String[] values) {
+			this.memberA = memberA;
+			this.recordA = recordA;
+			this.recordNumA = recordNumA;
+			this.memberB = memberB;
+			this.recordB = recordB;
+			this.recordNumB = recordNumB;
+			this.items = items;
+			this.values = values;
+		}
+	}
+	
+	/** A JoinSink receives each pair of field values found by a join. */
+	interface JoinSink {
+		/**
+		 * @param a the column of the first member
+		 * @param i the index of the value in the first column
+		 * @param b the column of the second member
+		 * @param j the index of the value in the second column
+		 */
+		void pair(FieldColumn a, int i, FieldColumn b, int j);
+	}
+	
+	/** Return the column of values of a field or null if the member has no values. */
+	private FieldColumn column(int member, String recordName, String fieldName) {
+		HashMap<String, FieldColumn> recordFields = memberData[member].fields.get(recordName);
+		if (recordFields == null) {
+			return null;
+		}
+		return recordFields.get(fieldName);
+	}
+	
+	/** Join two sorted columns of the same kind, reporting each pair of equal values.
+	 * Runs of equal values on both sides produce every pair from the two runs. 
+	 */
+	private void sortMergeJoin(FieldColumn a, FieldColumn b, JoinSink sink) {
+		int[] oa = a.sortedOrder();
+		int[] ob = b.sortedOrder();
+		int i = 0;
+		int j = 0;
+		while (i < oa.length && j < ob.length) {
+			int c = FieldColumn.compare(a, oa[i], b, ob[j]);
+			if (c < 0) {
+				i++;
+			} else if (c > 0) {
+				j++;
+			} else {
+				int iEnd = i + 1;
+				while (iEnd < oa.length && FieldColumn.compare(a, oa[i], a, oa[iEnd]) == 0) {
+					iEnd++;
+				}
+				int jEnd = j + 1;
+				while (jEnd < ob.length && FieldColumn.compare(b, ob[j], b, ob[jEnd]) == 0) {
+					jEnd++;
+				}
+				for (int p = i; p < iEnd; p++) {
+					for (int q = j; q < jEnd; q++) {
+						sink.pair(a, oa[p], b, ob[q]);
+					}
+				}
+				i = iEnd;
+				j = jEnd;
+			}
+		}
+	}
+	
+	/** Join two columns of strings by placing the smaller column in a hash table of 
+	 * ciphertext and probing the table with the larger column. 
+	 */
+	private void hashJoin(FieldColumn a, FieldColumn b, JoinSink sink) {
+		boolean buildA = a.size() <= b.size();
+		FieldColumn build = buildA ? a : b;
+		FieldColumn probe = buildA ? b : a;
+		CiphertextHashJoin table = new CiphertextHashJoin(build.size());
+		for (int i = 0; i < build.size(); i++) {
+			table.add(build, i, i);
+		}
+		for (int p = 0; p < probe.size(); p++) {
+			for (int e = table.find(probe, p); e >= 0; 
+					e = table.next(e)) {
+				if (buildA) {
+					sink.pair(a, table.id(e), b, p);
+				} else {
+					sink.pair(a, p, b, table.id(e));
+				}
+			}
+		}
+	}
+	
+	/** Join two columns of ranges or numbers, reporting each pair of overlapping ranges. 
+	 * A number is treated as a range of zero extent. 
+	 */
+	private void rangeJoin(final FieldColumn a, final FieldColumn b, final JoinSink sink) {
+		rangeJoin.join(a.low, a.high, a.sortedOrder(), a.size(), 
+				b.low, b.high, b.sortedOrder(), b.size(), new RangeOverlapJoin.PairSink() {
+			public void pair(int i, int j) {
+				sink.pair(a, i, b, j);
+			}
+		});
+	}
+	
+	/** Join the values of the fields named by the MatchItem for two members. 
+	 * @return false if the values of the fields cannot be compared
+	 */
+	private boolean join(MatchItem item, int memberA, String recordA, int memberB, String recordB,
+			JoinSink sink) {
+		FieldColumn a = column(memberA, recordA, item.fieldA);
+		FieldColumn b = column(memberB, recordB, item.fieldB);
+		if (a == null || b == null) {
+			// one member has no values, so nothing matches
+			return true;
+		}
+		FieldColumn.KIND ka = a.getKind();
+		FieldColumn.KIND kb = b.getKind();
+		switch (item.join) {
+		case RANGE_SWEEP:
+			if (ka == FieldColumn.KIND.STRING || kb == FieldColumn.KIND.STRING) {
+				return false;
+			}
+			rangeJoin(a, b, sink);
+			return true;
+		case HASH:
+			if (ka != FieldColumn.KIND.STRING || kb != FieldColumn.KIND.STRING) {
+				return false;
+			}
+			hashJoin(a, b, sink);
+			return true;
+		default:
+			if (ka != kb || ka == FieldColumn.KIND.RANGE) {
+				return false;
+			}
+			sortMergeJoin(a, b, sink);
+			return true;
+		}
+	}
+	
+	/** Compute the value reported for a MatchItem when the two field values match and
+	 * combine it with the value reported for an earlier match of the same records. */
+	private String matchValue(MatchItem item, String previous, FieldColumn a, int i, 
+			FieldColumn b, int j) {
+		switch (item.report) {
+		case NOCOPY:
+			return "";
+		case TRUEONLY:
+			return "true";
+		case COPYEQUALS:
+			return previous != null ? previous : a.stringValue(i);
+		case COPYMATCH:
+			// repeated fields yield the intersection of their values
+			String value = a.stringValue(i);
+			if (previous == null) {
+				return value;
+			}
+			for (String v : previous.split(",")) {
+				if (v.equals(value)) {
+					return previous;
+				}
+			}
+			return previous + "," + value;
+		case COPYRANGE:
+		case COMPROMISE:
+			if (previous != null) {
+				return previous;
+			}
+			if (a.getKind() == FieldColumn.KIND.STRING) {
+				return a.stringValue(i);
+			}
+			double lo = Math.max(a.low(i), b.low(j));
+			double hi = Math.min(a.high(i), b.high(j));
+			if (item.report == MATCHACTION.COMPROMISE) {
+				return Double.toString(lo + (hi - lo) / 2.0);
+			}
+			return Double.toString(lo) + "," + Double.toString(hi);
+		default:
+			return "";
+		}
+	}
+	
+	private static long pairKey(int recordNumA, int recordNumB) {
+		return ((long)recordNumA << 32) | (recordNumB & 0xffffffffL);
+	}
+	
+	/** Find the pairs of records that match between two members for one pair of record names.
+	 * The required items are joined first. Each one keeps only the pairs of records that 
+	 * matched every earlier required item. The optional items then report values for the 
+	 * surviving pairs. When no item is required, a match on any item is sufficient.
+	 */
+	private void compareRecords(int memberA, String recordA, int memberB, String recordB,
+			List<MatchItem> items) {
+		final int nItems = items.size();
+		boolean anyRequired = false;
+		for (MatchItem item : items) {
+			anyRequired = anyRequired || item.required;
+		}
+		HashMap<Long, String[]> candidates = new HashMap<Long, String[]>();
+		boolean restricted = false;
+		
+		for (int pass = 0; pass < 2; pass++) {
+			int k = -1;
+			for (MatchItem it : items) {
+				k++;
+				// required items on the first pass, optional items on the second
+				if (it.required != (pass == 0)) {
+					continue;
+				}
+				if (restricted && candidates.isEmpty()) {
+					break;
+				}
+				final MatchItem item = it;
+				final int index = k;
+				final HashMap<Long, String[]> prior = restricted ? candidates : null;
+				final HashMap<Long, String[]> target = item.required ? 
+						new HashMap<Long, String[]>() : candidates;
+				final boolean annotateOnly = !item.required && anyRequired;
+				boolean ok = join(item, memberA, recordA, memberB, recordB, new JoinSink() {
+					public void pair(FieldColumn a, int i, FieldColumn b, int j) {
+						Long key = pairKey(a.recordNum(i), b.recordNum(j));
+						String[] values = target.get(key);
+						if (values == null) {
+							if (prior != null) {
+								values = prior.get(key);
+								if (values == null) {
+									return;
+								}
+							} else if (annotateOnly) {
+								return;
+							} else {
+								values = new String[nItems];
+							}
+							target.put(key, values);
+						}
+						values[index] = matchValue(item, values[index], a, i, b, j);
+					}
+				});
+				if (!ok) {
+					System.err.printf("SimpleXmlMatcher cannot compare %s.%s (%s) with %s.%s (%s) %n",
+							recordA, item.fieldA, item.typeA, recordB, item.fieldB, item.typeB);
+				}
+				if (item.required) {
+					candidates = target;
+					restricted = true;
+				}
+			}
+		}
+		
+		// report the pairs in the order of the record numbers
+		long[] keys = new long[candidates.size()];
+		int n = 0;
+		for (Long key : candidates.keySet()) {
+			keys[n++] = key;
+		}
+		Arrays.sort(keys);
+		for (long key : keys) {
+			results.add(new MatchResult(memberA, recordA, (int)(key >>> 32), 
+					memberB, recordB, (int)key, items, candidates.get(key)));
+		}
+	}
+
+	public void compare() {
+		if (! isOpen) {
+			System.err.println("Error - open SimpleXmlMatcher before calling compare");
+			return;
+		}
+		results = new LinkedList<MatchResult>();
+		for (String recordA : matchList.lookup.keySet()) {
+			HashMap<String, List<MatchItem>> inner = matchList.lookup.get(recordA);
+			for (String recordB : inner.keySet()) {
+				List<MatchItem> items = inner.get(recordB);
+				// try the records in both directions between every pair of members
+				for (int m1 = 0; m1 < sizeMatchGroup; m1++) {
+					for (int m2 = 0; m2 < sizeMatchGroup; m2++) {
+						if (m1 == m2 || (recordA.equals(recordB) && m1 > m2)) {
+							continue;
+						}
+						compareRecords(m1, recordA, m2, recordB, items);
+					}
+				}
+			}
+		}
+		System.out.printf("SimpleXmlMatcher found %d matching pairs of records %n", results.size());
 	}
 	
 	/**
@@ -449,12 +757,60 @@ public class SimpleXmlMatcher implements Matcher<InputStream, OutputStream> {
 	
 	/**
 	 * Return an XML document containing the basis of agreement determined for the memberNumber
-	 * placing the document on the OutputStream.
+	 * placing the document on the OutputStream. Unless the group is inclusive, a member
+	 * receives only the matches to which they contributed a record. 
 	 * @param memberNumber number of the member who receives the basis
 	 * @param out stream where the basis document is written 
+	 * @throws ConfigurationError if compare was not called
+	 * @throws DocumentError if the document cannot be written
 	 */
-	public void writeBasis(int memberNumber, OutputStream out) {
-		// TODO Auto-generated method stub
+	public void writeBasis(int memberNumber, OutputStream out) throws ConfigurationError, DocumentError {
+		if (results == null) {
+			System.err.println("Error - call SimpleXmlMatcher.compare before writeBasis");
+			throw new ConfigurationError();
+		}
+		XMLOutputFactory factory = XMLOutputFactory.newInstance();
+		try {
+			XMLStreamWriter writer = factory.createXMLStreamWriter(out);
+			writer.writeStartDocument();
+			writer.writeStartElement("basis");
+			if (memberNames[memberNumber] != null) {
+				writer.writeAttribute("member", memberNames[memberNumber]);
+			}
+			for (MatchResult r : results) {
+				if (!inclusiveGroup && r.memberA != memberNumber && r.memberB != memberNumber) {
+					continue;
+				}
+				writer.writeStartElement("match");
+				writeMatchSide(writer, "A", r.memberA, r.recordA, r.recordNumA);
+				writeMatchSide(writer, "B", r.memberB, r.recordB, r.recordNumB);
+				int k = 0;
+				for (MatchItem item : r.items) {
+					String value = r.values[k++];
+					if (value == null || item.report == MATCHACTION.NOCOPY) {
+						continue;
+					}
+					writer.writeStartElement(item.resultName);
+					writer.writeCharacters(value);
+					writer.writeEndElement();
+				}
+				writer.writeEndElement();
+			}
+			writer.writeEndElement();
+			writer.writeEndDocument();
+			writer.flush();
+		} catch (XMLStreamException e) {
+			e.printStackTrace();
+			throw new DocumentError();
+		}
+	}
+	
+	private void writeMatchSide(XMLStreamWriter writer, String side, int member, String record, 
+			int recordNum) throws XMLStreamException {
+		writer.writeAttribute("member" + side, 
+				memberNames[member] != null ? memberNames[member] : Integer.toString(member));
+		writer.writeAttribute("record" + side, record);
+		writer.writeAttribute("number" + side, Integer.toString(recordNum));
 	}
 	
 	public void close() {
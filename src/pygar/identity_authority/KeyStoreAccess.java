@@ -33,6 +33,17 @@ public abstract class KeyStoreAccess {
 	 */
 	abstract public KeyStore getKeyStore(KeyStoreType kst) throws Exception;
 	
+	/** Return a number that changes whenever the KeyStore is replaced or updated, so that 
+	 * a copy of its entries held by the caller can be refreshed. The default implementation
+	 * reports a KeyStore that never changes.
+	 * 
+	 * @param kst The type of the keystore
+	 * @return the version of the keystore
+	 */
+	public long getKeyStoreVersion(KeyStoreType kst) {
+		return 0L;
+	}
+	
 	
 	
 	
@@ -11,20 +11,20 @@
 
 package pygar.zoneable;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.InvalidKeyException;
 import java.security.Key;
+import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Stack;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
-import javax.crypto.ShortBufferException;
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamConstants;
@@ -35,15 +35,18 @@ import javax.xml.stream.XMLStreamWriter;
 import net.jcip.annotations.ThreadSafe;
 
 import pygar.configuration.DocumentError;
+import pygar.cryptography.CiphertextEncoding;
 import pygar.cryptography.CryptoEngine;
 import pygar.cryptography.CryptoException;
+import pygar.cryptography.FieldCodec;
 import pygar.documents.EncryptedFieldTable;
 import pygar.documents.EncryptedFieldTable.*;
 
 /** Perform the innermost encryption step: the encryption of fields but not the
  * semantic tags of the statements. This specialization of class FieldCrypto 
  * operates on XML documents in textual form. Encrypted text is represented
- * in hexadecimal. This is the earliest version; it was written for demo0.
+ * in hexadecimal unless the EncryptedFieldTable selects another CiphertextEncoding. 
+ * This is the earliest version; it was written for demo0.
  * 
  * Most operations on the XML fields are fairly stable and insensitive to the 
  * application. The one source of variability is the choice of an order preserving
@@ -51,6 +54,12 @@ import pygar.documents.EncryptedFieldTable.*;
  * order comparison. For that reason, particular 
  * applications may supply a subclass that contains an override for particular
  * encryption operations.
+ * <p>
+ * Field encryption uses a cipher confined to the calling thread so that several threads
+ * may encrypt fields at once. A parallel mode for partiallyEncryptStream is selected
+ * with setParallelEncryption; it produces output that is byte for byte identical to 
+ * the sequential mode.
+ * </p>
 
  * @author pbaker
  *
@@ -72,8 +81,47 @@ public class FieldCryptoXmlTxt0 extends FieldCrypto {
 		}
 	}
 
+	/** The concealment factors of the F_REAL and F_REAL_RANGE rows of a table, held in
+	 * arrays indexed by the row id. The arrays are filled when the FieldCryptoXmlTxt0 is 
+	 * created and are not changed afterwards. A row that has no factors, for example one 
+	 * added to the table later, has a null entry in rows. */
+	private static final class RealPlan {
+		final Row[] rows;
+		final double[] scale;
+		final double[] offset;
+		final boolean[] useOffset;
+
+		RealPlan(int n) {
+			rows = new Row[n];
+			scale = new double[n];
+			offset = new double[n];
+			useOffset = new boolean[n];
+		}
+	}
+
+	/** The default number of records (level 2 elements) gathered into one chunk
+	 * by the parallel mode of partiallyEncryptStream. */
+	public static final int DEFAULT_CHUNK_RECORDS = 256;
+
 	private volatile ConcealReal realHandler;
 	private volatile ConcurrentHashMap<String, RealDetail> detailMap;
+	private final RealPlan realPlan;
+	
+	// each thread that encrypts or decrypts fields receives its own cipher context
+	private final FieldCodec codec;
+	// the text form of encrypted values, taken from the table
+	private final CiphertextEncoding encoding;
+	// true if string fields may be encrypted in batches by the codec, which is so 
+	// unless a subclass overrides encodeField or encodeString
+	private final boolean batchStrings;
+	
+	// the results of the encryption and decryption of string fields, null if not cached
+	private volatile FieldValueCache encodeCache;
+	private volatile FieldValueCache decodeCache;
+	
+	// the pool for the parallel mode, null selects the sequential mode
+	private volatile ForkJoinPool encryptPool;
+	private volatile int chunkRecords;
 
 	public FieldCryptoXmlTxt0(CryptoEngine crypto, Key key,
 			EncryptedFieldTable table) throws NoSuchAlgorithmException,
@@ -83,8 +131,145 @@ public class FieldCryptoXmlTxt0 extends FieldCrypto {
 
 		realHandler = new ConcealReal();
 		detailMap = new ConcurrentHashMap<String, RealDetail>();
+		try {
+			codec = new FieldCodec(crypto.crypt_algorithm, key);
+		} catch (GeneralSecurityException e) {
+			// the superclass has already accepted the algorithm, so the key is at fault
+			e.printStackTrace();
+			throw new InvalidKeyException();
+		}
+		encoding = table.getCiphertextEncoding();
+		batchStrings = !overridden("encodeField", Row.class, String.class)
+				&& !overridden("encodeString", String.class);
+		realPlan = compileRealPlan(table);
+		encryptPool = null;
+		chunkRecords = DEFAULT_CHUNK_RECORDS;
+		encodeCache = null;
+		decodeCache = null;
+	}
+	
+	/* true if a subclass between this class and the class of the object declares the method */
+	private boolean overridden(String name, Class<?>... parameterTypes) {
+		for (Class<?> c = getClass(); c != FieldCryptoXmlTxt0.class; c = c.getSuperclass()) {
+			try {
+				c.getDeclaredMethod(name, parameterTypes);
+				return true;
+			} catch (NoSuchMethodException e) {
+				// look in the superclass
+			}
+		}
+		return false;
+	}
+	
+	/* Compute the concealment factors of every F_REAL and F_REAL_RANGE row of the table. */
+	private RealPlan compileRealPlan(EncryptedFieldTable table) {
+		int n = table.getRowCount();
+		RealPlan plan = new RealPlan(n);
+		for (int id = 0; id < n; id++) {
+			Row row = table.getRow(id);
+			if (row.id != id 
+					|| (row.ftype != EFTYPE.F_REAL && row.ftype != EFTYPE.F_REAL_RANGE)) {
+				continue;
+			}
+			try {
+				RealDetail detail = realHandler.makeDetail(row);
+				plan.rows[id] = row;
+				plan.scale[id] = detail.scale;
+				plan.offset[id] = detail.offset;
+				plan.useOffset[id] = detail.useOffset;
+			} catch (CryptoException e) {
+				// leave the row to makeDetail, which will report the error when the row is used
+			} catch (NumberFormatException e) {
+				// as above
+			}
+		}
+		return plan;
 	}
 	
+	/**
+	 * Keep the results of the encryption and decryption of F_STRING and F_INT_EXACT fields
+	 * in caches, so that a value that repeats is encrypted or decrypted once. The result 
+	 * for such a field depends only on the value and the key, not on the row, so the caches
+	 * are keyed by the text alone. This object holds one key for its lifetime and a new
+	 * session key is given to a new object, so the caches never mix the results of two keys.
+	 * 
+	 * @param capacity the number of values held by each cache, or zero to stop caching
+	 */
+	public void setFieldCache(int capacity) {
+		if (capacity > 0) {
+			encodeCache = new FieldValueCache(capacity);
+			decodeCache = new FieldValueCache(capacity);
+		} else {
+			encodeCache = null;
+			decodeCache = null;
+		}
+	}
+	
+	/** @return the cache of encrypted field values, which reports its hit rate, or null */
+	public FieldValueCache getEncodeCache() {
+		return encodeCache;
+	}
+	
+	/** @return the cache of decrypted field values, which reports its hit rate, or null */
+	public FieldValueCache getDecodeCache() {
+		return decodeCache;
+	}
+	
+	/** Discard the values held by the caches. */
+	public void clearFieldCache() {
+		FieldValueCache cache = encodeCache;
+		if (cache != null) {
+			cache.clear();
+		}
+		cache = decodeCache;
+		if (cache != null) {
+			cache.clear();
+		}
+	}
+	
+	/* encrypt the text of a string field, using the cache if there is one */
+	private String encodeCached(String s) throws CryptoException {
+		FieldValueCache cache = encodeCache;
+		if (cache == null) {
+			return encodeString(s);
+		}
+		String coded = cache.get(s);
+		if (coded == null) {
+			coded = encodeString(s);
+			cache.put(s, coded);
+		}
+		return coded;
+	}
+	
+	/* decrypt the text of a string field, using the cache if there is one */
+	private String decodeCached(String s) throws CryptoException {
+		FieldValueCache cache = decodeCache;
+		if (cache == null) {
+			return decodeString(s);
+		}
+		String clear = cache.get(s);
+		if (clear == null) {
+			clear = decodeString(s);
+			cache.put(s, clear);
+		}
+		return clear;
+	}
+	
+	/**
+	 * Select the parallel mode of partiallyEncryptStream. The document is divided into 
+	 * chunks at the boundaries of the level 2 elements (the records) and the fields of
+	 * each chunk are encrypted by a task in the pool. The chunks are written in their
+	 * original order so that the output is identical to the sequential mode.
+	 * 
+	 * @param pool the pool that encrypts the chunks or null to restore the sequential mode
+	 * @param recordsPerChunk the number of records in a chunk, the default is used if less than one
+	 */
+	public void setParallelEncryption(ForkJoinPool pool, int recordsPerChunk) {
+		chunkRecords = recordsPerChunk > 0 ? recordsPerChunk : DEFAULT_CHUNK_RECORDS;
+		encryptPool = pool;
+	}
+	
+	
 	/**
 	 * This class contains the algorithm for concealing or revealing real numbers. In Java,
 	 * there are two real number types: double and float. We use double exclusively to avoid
@@ -113,8 +298,23 @@ public class FieldCryptoXmlTxt0 extends FieldCrypto {
 	 */
 	public class ConcealReal {
 		
+		/* Return the factors of a row that is not in the plan of the table. When two 
+		 * threads make the factors at once, both use the factors stored first. */
+		private RealDetail detail(Row row) throws CryptoException {
+			RealDetail detail = detailMap.get(row.name);
+			if (detail == null) {
+				detail = makeDetail(row);
+				RealDetail first = detailMap.putIfAbsent(row.name, detail);
+				if (first != null) {
+					detail = first;
+				}
+			}
+			return detail;
+		}
+		
 		private RealDetail makeDetail(Row row) throws CryptoException {
-			String codeString = encodeString(row.name);
+			// the factors are always taken from the hexadecimal form
+			String codeString = encodeText(row.name, CiphertextEncoding.HEX);
 			if (codeString.length() < 32) {
 				throw new CryptoException();
 			}
@@ -226,15 +426,14 @@ public class FieldCryptoXmlTxt0 extends FieldCrypto {
 		 * @throws CryptoException 
 		 */
 		public String concealReal(Row row, double xvalue) throws CryptoException {
-			String name = row.name;
-			RealDetail detail;
-			
-			if (detailMap.containsKey(name)) {
-				detail = detailMap.get(name);
-			} else {
-				detail = makeDetail(row);
-				detailMap.putIfAbsent(name, detail);
+			RealPlan plan = realPlan;
+			int id = row.id;
+			if (id >= 0 && id < plan.rows.length && plan.rows[id] == row) {
+				double yvalue = plan.useOffset[id] 
+						? plan.scale[id] * (xvalue + plan.offset[id]) : plan.scale[id] * xvalue;
+				return String.valueOf(yvalue);
 			}
+			RealDetail detail = detail(row);
 			
 			double yvalue;
 			
@@ -258,15 +457,14 @@ public class FieldCryptoXmlTxt0 extends FieldCrypto {
 		 * @throws CryptoException 
 		 */
 		public String revealReal(Row row, double xvalue) throws CryptoException {
-			String name = row.name;
-			RealDetail detail;
-			
-			if (detailMap.containsKey(name)) {
-				detail = detailMap.get(name);
-			} else {
-				detail = makeDetail(row);
-				detailMap.putIfAbsent(name, detail);
+			RealPlan plan = realPlan;
+			int id = row.id;
+			if (id >= 0 && id < plan.rows.length && plan.rows[id] == row) {
+				double yvalue = plan.useOffset[id] 
+						? (xvalue / plan.scale[id]) - plan.offset[id] : xvalue / plan.scale[id];
+				return String.valueOf(yvalue);
 			}
+			RealDetail detail = detail(row);
 			
 			double yvalue;
 			
@@ -363,69 +561,17 @@ public class FieldCryptoXmlTxt0 extends FieldCrypto {
 	 * @throws CryptoException if any problem occurs with decryption
 	 */
 	@Override
-	public synchronized String decodeField(EFTYPE ftype, String name, byte[] value) throws CryptoException {
-		// allocate a place for the output as it is returned by the cipher
-		ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-
-		int outlength;
-//		try {
-//			cipher.init(Cipher.DECRYPT_MODE, key);
-//		} catch (InvalidKeyException e) {
-//			e.printStackTrace();
-//			throw new CryptoException();
-//		}
-		cipherOutputSize = cipherDecrypt.getOutputSize(cipherBlockSize);
-
-		try {
-			switch (ftype) {
-			case F_STRING:
-			case F_INT_EXACT:
-			case F_NAME_STRING:
-				byte[] outBytes = new byte[cipherOutputSize];
-//				System.out.printf("decoding started on %d bytes, output size %d %n",
-//						value.length, cipherOutputSize);
-				boolean finalized = false;
-
-				for (int i = 0; i < value.length; i += cipherBlockSize) {
-					int k = Math.min( cipherBlockSize, value.length - i);
-					if ( k == cipherBlockSize) {
-						outlength = cipherDecrypt.update(value, i, cipherBlockSize, outBytes);
-						outStream.write(outBytes, 0, outlength);
-					} else {
-						if ( k > 0) {
-							outBytes = cipherDecrypt.doFinal(value, i, k);
-						} else {
-							outBytes = cipherDecrypt.doFinal();
-						}
-						finalized = true;
-						outStream.write(outBytes);
-					}
-				}
-
-				if (!finalized) {
-					outBytes = cipherDecrypt.doFinal();
-					outStream.write(outBytes);
-					finalized = true;
-				}
-				return outStream.toString();
-
-			default:
-				System.err.println("not implemented for " + ftype);
-				throw new CryptoException();
+	public String decodeField(EFTYPE ftype, String name, byte[] value) throws CryptoException {
+		switch (ftype) {
+		case F_STRING:
+		case F_INT_EXACT:
+		case F_NAME_STRING:
+			return codec.decodeBytes(value, 0, value.length);
 
-			}
-		} catch (ShortBufferException e) {
-			e.printStackTrace();
-			throw new CryptoException();
-		} catch (IllegalBlockSizeException e) {
-			e.printStackTrace();
-			throw new CryptoException();
-		} catch (BadPaddingException e) {
-			e.printStackTrace();
-			throw new CryptoException();
-		} catch (IOException e) {
-			e.printStackTrace();
+		default:
+			System.err.println("not implemented for " + ftype);
 			throw new CryptoException();
+
 		}
 	}
 
@@ -446,50 +592,20 @@ public class FieldCryptoXmlTxt0 extends FieldCrypto {
 	
 	/** 
 	 * Encode a string with a symmetric session key and return it
-	 * as a string representation in hexadecimal.  	 *
+	 * as a string in the CiphertextEncoding of the EncryptedFieldTable.
 	 * @param s - clear text string
 	 * @return encoded string
 	 * @throws CryptoException 
 	 */
-	protected synchronized String encodeString(String s) throws CryptoException {
-
-		cipherOutputSize = cipherEncrypt.getOutputSize(cipherBlockSize); 
-
-		byte[] valueBytes = s.getBytes();
-		ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-		int outlength;
-		byte[] outBytes = new byte[cipherOutputSize];
-		try {
-			for (int i = 0; i < valueBytes.length; i += cipherBlockSize) {
-				int k = Math.min( cipherBlockSize, valueBytes.length - i);
-				if ( k == cipherBlockSize) {
-					outlength = cipherEncrypt.update(valueBytes, i, cipherBlockSize, outBytes);
-					outStream.write(outBytes, 0, outlength);
-				} else {
-					if ( k > 0) {
-						outBytes = cipherEncrypt.doFinal(valueBytes, i, k);
-					} else {
-						outBytes = cipherEncrypt.doFinal();
-					}
-					outStream.write(outBytes);
-				}
-			}
-		} catch (ShortBufferException e) {
-			e.printStackTrace();
-			throw new CryptoException();
-		} catch (IllegalBlockSizeException e) {
-			e.printStackTrace();
-			throw new CryptoException();
-		} catch (BadPaddingException e) {
-			e.printStackTrace();
-			throw new CryptoException();
-		} catch (IOException e) {
-			e.printStackTrace();
-			throw new CryptoException();
-		}
-
-		return CryptoEngine.byteArrayToHex(outStream.toByteArray());
-
+	protected String encodeString(String s) throws CryptoException {
+		return encodeText(s, encoding);
+	}
+	
+	/* Encrypt text and write it in an encoding. encodeString and the concealment factors 
+	 * of real fields both encrypt through this method, which is private so that the 
+	 * constructor may call it before a subclass is ready. */
+	private String encodeText(String s, CiphertextEncoding textEncoding) throws CryptoException {
+		return codec.encodeString(s, textEncoding);
 	}
 
 	@Override
@@ -552,7 +668,7 @@ public class FieldCryptoXmlTxt0 extends FieldCrypto {
 			case F_STRING:
 			case F_INT_EXACT:
 				// easy case, expanded value is same a given value
-				return encodeString(value.trim());
+				return encodeCached(value.trim());
 				
 			case F_REAL:
 				return realHandler.concealReal(row, value);
@@ -572,49 +688,14 @@ public class FieldCryptoXmlTxt0 extends FieldCrypto {
 
 	
 	}
-	public synchronized String decodeString(String value) throws CryptoException {
-		// where do we get the correct cipher??
-		byte [] inBytes = CryptoEngine.hexStringToByteArray(value);
-		byte[] outBytes = new byte[cipherOutputSize];
-		boolean finalized = false;
-		int outlength;
-		StringBuilder sb = new StringBuilder();
-		try {
-			for (int i = 0; i < inBytes.length; i += cipherBlockSize) {
-				int k = Math.min( cipherBlockSize, value.length() - i);
-				if ( k == cipherBlockSize) {
-					outlength = cipherDecrypt.update(inBytes, i, cipherBlockSize, outBytes);
-					sb.append( outBytes.toString().substring(0, outlength));
-					//				outStream.write(outBytes, 0, outlength);
-				} else {
-					if ( k > 0) {
-						outBytes = cipherDecrypt.doFinal(inBytes, i, k);
-					} else {
-						outBytes = cipherDecrypt.doFinal();
-					}
-					finalized = true;
-					sb.append( new String(outBytes));
-					//				outStream.write(outBytes);
-				}
-			}
-
-			if (!finalized) {
-				outBytes = cipherDecrypt.doFinal();
-				sb.append( new String(outBytes));
-				//			outStream.write(outBytes);
-				finalized = true;
-			}
-		} catch (ShortBufferException e) {
-			e.printStackTrace();
-			throw new CryptoException();
-		} catch (IllegalBlockSizeException e) {
-			e.printStackTrace();
-			throw new CryptoException();
-		} catch (BadPaddingException e) {
-			e.printStackTrace();
-			throw new CryptoException();
-		}
-		return sb.toString();
+	/** 
+	 * Decode a string produced by encodeString.
+	 * @param value the encrypted string in the CiphertextEncoding of the table
+	 * @return the clear text
+	 * @throws CryptoException 
+	 */
+	public String decodeString(String value) throws CryptoException {
+		return codec.decodeString(value, encoding);
 	}
 
 	@Override
@@ -629,7 +710,7 @@ public class FieldCryptoXmlTxt0 extends FieldCrypto {
 			case F_STRING:
 			case F_INT_EXACT:
 				// easy case, expanded value is same a given value
-				return decodeString(value.trim());
+				return decodeCached(value.trim());
 				
 			case F_REAL:
 				return realHandler.revealReal(row, value);
@@ -647,13 +728,157 @@ public class FieldCryptoXmlTxt0 extends FieldCrypto {
 	}
 	
 	/** Partially encrypt the input stream according to the specifications of the 
-	 * EncryptedFieldTable and using the current session key.
+	 * EncryptedFieldTable and using the current session key. The work is divided
+	 * among the threads of a pool if setParallelEncryption has selected the parallel mode.
+	 * Otherwise, each record is gathered and its fields are encrypted together on the 
+	 * calling thread before the record is written.
 	 * @throws XMLStreamException 
 	 * @throws CryptoException 
 	 */
 	public void partiallyEncryptStream(InputStream inStream, OutputStream outStream,
 			EncryptedFieldTable table) throws XMLStreamException, CryptoException {
 		
+		ForkJoinPool pool = encryptPool;
+		partiallyEncryptChunks(inStream, outStream, table, pool, pool != null ? chunkRecords : 1);
+	}
+	
+	
+	/**
+	 * A Chunk holds the events of a run of consecutive records in the order that
+	 * they were read. The fields that require encryption hold clear text until the chunk
+	 * is encrypted and then they hold the encrypted value.
+	 */
+	private static final class Chunk {
+		static final byte START = 0;
+		static final byte END = 1;
+		static final byte TEXT = 2;
+		static final byte FIELD = 3;
+		
+		byte[] kinds = new byte[64];
+		String[] values = new String[64];
+		Row[] rows = new Row[64];
+		int size = 0;
+		int records = 0;
+		// the string fields gathered for encryption in one call and their positions
+		String[] batch = new String[16];
+		int[] batchIndex = new int[16];
+		
+		void add(byte kind, String value, Row row) {
+			if (size == kinds.length) {
+				kinds = Arrays.copyOf(kinds, 2 * size);
+				values = Arrays.copyOf(values, 2 * size);
+				rows = Arrays.copyOf(rows, 2 * size);
+			}
+			kinds[size] = kind;
+			values[size] = value;
+			rows[size] = row;
+			size++;
+		}
+		
+		// forget the events so that the chunk can gather the next record
+		void clear() {
+			Arrays.fill(values, 0, size, null);
+			Arrays.fill(rows, 0, size, null);
+			size = 0;
+			records = 0;
+		}
+		
+		// replay the events with the same writer calls as the sequential mode
+		void write(XMLStreamWriter writer) throws XMLStreamException {
+			for (int i = 0; i < size; i++) {
+				switch (kinds[i]) {
+				case START:
+					writer.writeStartElement(values[i]);
+					break;
+				case END:
+					writer.writeEndElement();
+					break;
+				default:
+					writer.writeCharacters(values[i]);
+					break;
+				}
+			}
+		}
+	}
+	
+	/** Encrypt the fields of one chunk on a thread of the pool. */
+	@SuppressWarnings("serial")
+	private final class ChunkTask extends RecursiveAction {
+		final Chunk chunk;
+		CryptoException failure;
+		
+		ChunkTask(Chunk chunk) {
+			this.chunk = chunk;
+		}
+		
+		protected void compute() {
+			try {
+				encodeChunk(chunk);
+			} catch (CryptoException e) {
+				failure = e;
+			}
+		}
+	}
+	
+	/** Encrypt the fields of a chunk. The F_STRING and F_INT_EXACT fields that are not
+	 * in the cache are gathered and encrypted by the codec in one call; the other fields 
+	 * go through encodeField. If a subclass overrides encodeField or encodeString, every 
+	 * field goes through encodeField so that the override is honored.
+	 */
+	private void encodeChunk(Chunk chunk) throws CryptoException {
+		FieldValueCache cache = encodeCache;
+		int n = 0;
+		for (int i = 0; i < chunk.size; i++) {
+			if (chunk.kinds[i] != Chunk.FIELD) {
+				continue;
+			}
+			EFTYPE ftype = chunk.rows[i].ftype;
+			if (batchStrings && (ftype == EFTYPE.F_STRING || ftype == EFTYPE.F_INT_EXACT)) {
+				// as encodeField does
+				String clear = chunk.values[i].trim();
+				String coded = cache != null ? cache.get(clear) : null;
+				if (coded != null) {
+					chunk.values[i] = coded;
+					continue;
+				}
+				if (n == chunk.batch.length) {
+					chunk.batch = Arrays.copyOf(chunk.batch, 2 * n);
+					chunk.batchIndex = Arrays.copyOf(chunk.batchIndex, 2 * n);
+				}
+				chunk.values[i] = clear;
+				chunk.batch[n] = clear;
+				chunk.batchIndex[n] = i;
+				n++;
+			} else {
+				chunk.values[i] = encodeField(chunk.rows[i], chunk.values[i]);
+			}
+		}
+		if (n > 0) {
+			codec.encodeStrings(chunk.batch, 0, n, encoding, chunk.batch, 0);
+			for (int k = 0; k < n; k++) {
+				int i = chunk.batchIndex[k];
+				if (cache != null) {
+					cache.put(chunk.values[i], chunk.batch[k]);
+				}
+				chunk.values[i] = chunk.batch[k];
+				chunk.batch[k] = null;
+			}
+		}
+	}
+	
+	/**
+	 * The body of partiallyEncryptStream. The parser runs on the calling thread and 
+	 * decides the path, the table row, and the suppression of each element. It collects
+	 * the events into chunks that end at the close of a level 2 element. If there is a
+	 * pool, the pool encrypts the chunks while the calling thread writes the finished 
+	 * chunks in their original order, and no more than two chunks per thread of the pool
+	 * are held in memory at any time. Without a pool, the calling thread encrypts and
+	 * writes each chunk as soon as it is complete.
+	 */
+	private void partiallyEncryptChunks(InputStream inStream, OutputStream outStream,
+			EncryptedFieldTable table, ForkJoinPool pool, int recordsPerChunk) 
+			throws XMLStreamException, CryptoException {
+		
 		XMLInputFactory factory = XMLInputFactory.newInstance();
 		XMLStreamReader parser = factory.createXMLStreamReader(inStream);
 		XMLOutputFactory outfact = XMLOutputFactory.newInstance();
@@ -670,7 +895,6 @@ public class FieldCryptoXmlTxt0 extends FieldCrypto {
 		Stack<Boolean> suppressState = new Stack<Boolean>();
 		Stack<Row> currentRow = new Stack<Row>();
 		
-		
 		String currentPath = new String();
 		xmlPath.push(currentPath);
 		suppressState.push(false);
@@ -678,6 +902,10 @@ public class FieldCryptoXmlTxt0 extends FieldCrypto {
 		currentRow.push(row);
 		boolean suppressp;
 		
+		int window = pool != null ? 2 * pool.getParallelism() : 0;
+		ArrayDeque<ChunkTask> pending = new ArrayDeque<ChunkTask>();
+		Chunk chunk = new Chunk();
+		
 		while (parser.hasNext()) {
 			event = parser.next();
 			switch (event) {
@@ -690,60 +918,54 @@ public class FieldCryptoXmlTxt0 extends FieldCrypto {
 				}
 				sb.append(element);
 				currentPath = sb.toString();
-//				System.out.printf("start element %s path %s\n", parser.getLocalName(), currentPath);
 				
-				// find field in table if possible
 				row = table.getRow(currentPath);
-				
 				if (row == null) {
 					row = table.defaultRow;
 				}
 				currentRow.add(row);
 				
-				// find out if we are working or not
 				if (suppressState.peek() ) {
-					// once the XML processing is suppressed, we suppress
-					// all the subelements from here down the document tree
 					suppressp = true;
 				} else {
-					// if we are running normally, see if suppress flag
-					// is raised for the current element
 					suppressp = row.ftype == EFTYPE.F_SUPPRESS;
 				}
-				// stack our suppression state
 				suppressState.push(suppressp);
 				
 				if (!suppressp) {
-					writer.writeStartElement(element);
-				}				
+					chunk.add(Chunk.START, element, null);
+				}
 				break;
-			case XMLStreamConstants.END_ELEMENT:				
+			case XMLStreamConstants.END_ELEMENT:
 				suppressp = suppressState.peek();
 				if (!suppressp) {
-					writer.writeEndElement();
+					chunk.add(Chunk.END, null, null);
 				}
 				suppressState.pop();
 				currentPath = xmlPath.pop();
 				currentRow.pop();
+				// a record is complete when the path returns to level 1
+				if (xmlPath.size() == 2 && ++chunk.records >= recordsPerChunk) {
+					if (pool == null) {
+						encodeChunk(chunk);
+						chunk.write(writer);
+						chunk.clear();
+					} else {
+						submitChunk(chunk, pending, pool, window, writer);
+						chunk = new Chunk();
+					}
+				}
 				break;
 			case XMLStreamConstants.CHARACTERS:
 				suppressp = suppressState.peek();
 				text = parser.getText();
 				row = currentRow.peek();
-				// the text returned by the parser could be data or just whitespace
-				// we need to distinguish the two and avoid encrypting white space
 				if (!suppressp ) {
 					text2 = text.trim();
 					if (text2.length() > 0) {
-						// show the text that must be encrypted
-						writer.writeCharacters(encodeField(row, text2));
-//						String text3 = encodeField(row, text2);
-//						writer.writeCharacters(text3);
-//						writer.writeCharacters("||");
-//						writer.writeCharacters(decodeField(row, text3));
+						chunk.add(Chunk.FIELD, text2, row);
 					} else {
-						// show whitespace that provides document formatting
-						writer.writeCharacters(text);
+						chunk.add(Chunk.TEXT, text, null);
 					}
 				} 
 				break;
@@ -751,15 +973,36 @@ public class FieldCryptoXmlTxt0 extends FieldCrypto {
 				break;
 			}
 		}
-
+		
+		if (pool == null) {
+			encodeChunk(chunk);
+			chunk.write(writer);
+		} else {
+			submitChunk(chunk, pending, pool, 0, writer);
+		}
+		
 		writer.writeEndDocument();
-
-		writer.close();
-
-//		System.out.println("end of partiallyEncryptStream");
 		
+		writer.close();
 	}
 	
+	/** Start the encryption of a chunk and then write the oldest chunks until no 
+	 * more than "window" chunks are waiting.
+	 */
+	private void submitChunk(Chunk chunk, ArrayDeque<ChunkTask> pending, ForkJoinPool pool,
+			int window, XMLStreamWriter writer) throws XMLStreamException, CryptoException {
+		ChunkTask task = new ChunkTask(chunk);
+		pool.execute(task);
+		pending.addLast(task);
+		while (pending.size() > window) {
+			task = pending.removeFirst();
+			task.join();
+			if (task.failure != null) {
+				throw task.failure;
+			}
+			task.chunk.write(writer);
+		}
+	}
 	
 	/**
 	 * Decrypt the document on the inStream assuming it was partially encrypted with the current
@@ -0,0 +1,229 @@
+	/****************************************************************CopyrightNotice
+	 * Copyright (c) 2011 WWN Software LLC 
+	 * All rights reserved. This program and the accompanying materials
+	 * are made available under the terms of the Pygar Public License v1.0
+	 * which accompanies this distribution, and is available at
+	 * http://ectn.typepad.com/pygar/pygar-public-license.html
+	 *
+	 * Contributors:
+	 *    Paul Baker, WWN Software LLC
+	 *******************************************************************************/
+
+package pygar.zoneable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * A FieldValueCache remembers the results of field encryption or decryption so that a 
+ * value that repeats many times in a position, such as a word or a country code, is
+ * encrypted once. The cache holds a bounded number of values and discards the others 
+ * with the segmented LRU policy: a new value enters a probationary segment and moves to
+ * a protected segment when it is used again. The least recently used values of the
+ * protected segment fall back to the probationary segment, and values leave the cache
+ * from the probationary segment. Thus a run of values that occur once does not push out
+ * the values that repeat.
+ * <p>
+ * The cache is divided into stripes by the hash of the value and each stripe has its own
+ * lock, so that the threads of the parallel encryption mode rarely wait for each other.
+ * The counts of hits, misses and evictions are kept for each stripe under its lock
+ * and summed when they are read.
+ * </p>
+ * 
+ * @author pbaker
+ *
+ */
+@ThreadSafe
+public class FieldValueCache {
+
+	/** The share of the capacity of a stripe given to the probationary segment, in percent. */
+	public static final int PROBATION_PERCENT = 20;
+
+	private static final class Stripe {
+		private final int probationCapacity;
+		private final int protectedCapacity;
+		@GuardedBy("this")
+		private final LinkedHashMap<String, String> probation;
+		@GuardedBy("this")
+		private final LinkedHashMap<String, String> protectedSegment;
+		@GuardedBy("this")
+		long hits;
+		@GuardedBy("this")
+		long misses;
+		@GuardedBy("this")
+		long evictions;
+
+		Stripe(int capacity) {
+			probationCapacity = Math.max(1, capacity * PROBATION_PERCENT / 100);
+			protectedCapacity = Math.max(1, capacity - probationCapacity);
+			probation = new LinkedHashMap<String, String>(16, 0.75f, true);
+			protectedSegment = new LinkedHashMap<String, String>(16, 0.75f, true);
+		}
+
+		synchronized String get(String key) {
+			String value = protectedSegment.get(key);
+			if (value != null) {
+				hits++;
+				return value;
+			}
+			value = probation.remove(key);
+			if (value == null) {
+				misses++;
+				return null;
+			}
+			hits++;
+			// the second use promotes the value
+			protectedSegment.put(key, value);
+			if (protectedSegment.size() > protectedCapacity) {
+				Iterator<Map.Entry<String, String>> it = 
+						protectedSegment.entrySet().iterator();
+				Map.Entry<String, String> eldest = it.next();
+				it.remove();
+				probation.put(eldest.getKey(), eldest.getValue());
+				trimProbation();
+			}
+			return value;
+		}
+
+		synchronized void put(String key, String value) {
+			if (protectedSegment.containsKey(key)) {
+				protectedSegment.put(key, value);
+				return;
+			}
+			probation.put(key, value);
+			trimProbation();
+		}
+
+		@GuardedBy("this")
+		private void trimProbation() {
+			while (probation.size() > probationCapacity) {
+				Iterator<String> it = probation.keySet().iterator();
+				it.next();
+				it.remove();
+				evictions++;
+			}
+		}
+
+		synchronized void clear() {
+			probation.clear();
+			protectedSegment.clear();
+		}
+
+		synchronized int size() {
+			return probation.size() + protectedSegment.size();
+		}
+	}
+
+	private final int capacity;
+	private final Stripe[] stripes;
+	private final int mask;
+
+	/**
+	 * Create an empty cache.
+	 * @param capacity the number of values held
+	 */
+	public FieldValueCache(int capacity) {
+		this.capacity = Math.max(1, capacity);
+		// stripes of at least 64 values and no more than 16 stripes
+		int n = Integer.highestOneBit(Math.max(1, Math.min(16, this.capacity / 64)));
+		stripes = new Stripe[n];
+		for (int i = 0; i < n; i++) {
+			stripes[i] = new Stripe((this.capacity + n - 1) / n);
+		}
+		mask = n - 1;
+	}
+
+	private Stripe stripe(String key) {
+		int h = key.hashCode();
+		return stripes[(h ^ (h >>> 16)) & mask];
+	}
+
+	/**
+	 * @param key the clear or encrypted text of a field
+	 * @return the result held for the text or null if there is none
+	 */
+	public String get(String key) {
+		return stripe(key).get(key);
+	}
+
+	/**
+	 * Hold the result for a text.
+	 * @param key the clear or encrypted text of a field
+	 * @param value the result of encryption or decryption
+	 */
+	public void put(String key, String value) {
+		stripe(key).put(key, value);
+	}
+
+	/** Discard every value. The counts are kept. */
+	public void clear() {
+		for (Stripe s : stripes) {
+			s.clear();
+		}
+	}
+
+	/** @return the number of values that can be held */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/** @return the number of values held */
+	public int size() {
+		int n = 0;
+		for (Stripe s : stripes) {
+			n += s.size();
+		}
+		return n;
+	}
+
+	/** @return the number of calls to get that found a value */
+	public long getHits() {
+		long n = 0;
+		for (Stripe s : stripes) {
+			synchronized (s) {
+				n += s.hits;
+			}
+		}
+		return n;
+	}
+
+	/** @return the number of calls to get that found no value */
+	public long getMisses() {
+		long n = 0;
+		for (Stripe s : stripes) {
+			synchronized (s) {
+				n += s.misses;
+			}
+		}
+		return n;
+	}
+
+	/** @return the number of values discarded to make room for others */
+	public long getEvictions() {
+		long n = 0;
+		for (Stripe s : stripes) {
+			synchronized (s) {
+				n += s.evictions;
+			}
+		}
+		return n;
+	}
+
+	/** @return the fraction of calls to get that found a value, or zero before any call */
+	public double getHitRate() {
+		long hits = getHits();
+		long total = hits + getMisses();
+		return total == 0 ? 0.0 : (double) hits / total;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("FieldValueCache size %d of %d, hit rate %.3f, evictions %d", 
+				size(), capacity, getHitRate(), getEvictions());
+	}
+
+}
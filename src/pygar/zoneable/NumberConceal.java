@@ -10,22 +10,21 @@
 	 *******************************************************************************/
 package pygar.zoneable;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.DoubleBuffer;
+import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
-import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.ShortBufferException;
 
 import net.jcip.annotations.ThreadSafe;
 
 import pygar.configuration.ConfigurationError;
 import pygar.cryptography.CryptoEngine;
 import pygar.cryptography.CryptoException;
+import pygar.cryptography.FieldCodec;
 
 /**
  * @author pbaker
@@ -47,9 +46,15 @@ public class NumberConceal {
 		volatile double vdelta;
 		volatile double afactor;
 		volatile double pwlf[];
+		/* inverse[b] is the segment that holds the start of bucket b of the concealed range */
+		volatile int inverse[];
+		volatile double inverseScale;
 		
 	}
 	
+	/* number of buckets of the inverse segment table for each segment */
+	private static final int INVERSE_BUCKETS = 4;
+	
 	private volatile ConcurrentMap<String, NameParams> nameMap;
 	
 	/** Instances of this class provide a method to conceal the value of real numbers using 
@@ -126,6 +131,151 @@ public class NumberConceal {
 		
 	}
 	
+	/** Conceal a column of values that share a name. The result for each value is the
+	 * same as the result of {@link #conceal(String, double)}, but the name is looked up once
+	 * and the piecewise linear function is evaluated in a loop without branches.
+	 * @param name name of the values
+	 * @param values the values to conceal
+	 * @param offset position of the first value
+	 * @param length number of values
+	 * @param out array that receives the concealed values, which may be the values array
+	 * @param outOffset position of the first concealed value
+	 * @throws ConfigurationError if the name is unknown
+	 */
+	public void conceal(String name, double[] values, int offset, int length,
+			double[] out, int outOffset) throws ConfigurationError {
+		NameParams p = nameMap.get(name);
+		if (p == null) {
+			System.err.printf("Unknown name provided to NumberConceal.conceal: %s %n", name);
+			throw new ConfigurationError();
+		}
+		final double[] pwlf = p.pwlf;
+		final double vmin = p.vmin;
+		final double vdelta = p.vdelta;
+		for (int k = 0; k < length; k++) {
+			double xindex = (values[offset + k] - vmin) / vdelta;
+			int i1 = (int) Math.floor(xindex);
+			int i2 = (int) Math.ceil(xindex);
+			out[outOffset + k] = pwlf[i1] + (pwlf[i2] - pwlf[i1]) * (xindex - (double) i1);
+		}
+	}
+	
+	/** Conceal the remaining values of a buffer and put the results in another buffer.
+	 * The position of each buffer is advanced by the number of values.
+	 * @param name name of the values
+	 * @param values the values to conceal
+	 * @param out buffer that receives the concealed values
+	 * @throws ConfigurationError if the name is unknown
+	 */
+	public void conceal(String name, DoubleBuffer values, DoubleBuffer out) throws ConfigurationError {
+		int n = values.remaining();
+		if (out.remaining() < n) {
+			throw new BufferOverflowException();
+		}
+		if (values.hasArray() && out.hasArray()) {
+			conceal(name, values.array(), values.arrayOffset() + values.position(), n,
+					out.array(), out.arrayOffset() + out.position());
+		} else {
+			double[] column = new double[n];
+			values.duplicate().get(column);
+			conceal(name, column, 0, n, column, 0);
+			out.duplicate().put(column);
+		}
+		values.position(values.position() + n);
+		out.position(out.position() + n);
+	}
+	
+	/** Reveal a column of concealed values that share a name. The result for each value is 
+	 * the same as the result of {@link #reveal(String, double)}. Instead of a binary search
+	 * of the piecewise linear function for each value, the segment is found in a table
+	 * that divides the concealed range into buckets, and at most a step or two corrects it.
+	 * @param name name of the values
+	 * @param values the concealed values
+	 * @param offset position of the first value
+	 * @param length number of values
+	 * @param out array that receives the revealed values, which may be the values array
+	 * @param outOffset position of the first revealed value
+	 * @throws ConfigurationError if the name is unknown
+	 */
+	public void reveal(String name, double[] values, int offset, int length,
+			double[] out, int outOffset) throws ConfigurationError {
+		NameParams p = nameMap.get(name);
+		if (p == null) {
+			System.err.printf("Unknown name provided to reveal: %s %n", name);
+			throw new ConfigurationError();
+		}
+		final double[] pwlf = p.pwlf;
+		final int[] inverse = p.inverse;
+		final double scale = p.inverseScale;
+		final double vmin = p.vmin;
+		final double vdelta = p.vdelta;
+		final int last = pwlf.length - 2;
+		final int top = inverse.length - 1;
+		final double base = pwlf[0];
+		for (int k = 0; k < length; k++) {
+			double value = values[offset + k];
+			// bucket of the value, clamped to the table; NaN falls in bucket 0
+			double b = (value - base) * scale;
+			int bucket = (int) Math.min(Math.max(b, 0.0), (double) top);
+			int i1 = inverse[bucket];
+			while (i1 < last && pwlf[i1 + 1] <= value) {
+				i1++;
+			}
+			while (i1 > 0 && value < pwlf[i1]) {
+				i1--;
+			}
+			double x = (double)i1 + (value - pwlf[i1]) / (pwlf[i1 + 1] - pwlf[i1]);
+			out[outOffset + k] = vmin + x * vdelta;
+		}
+	}
+	
+	/** Reveal the remaining values of a buffer and put the results in another buffer.
+	 * The position of each buffer is advanced by the number of values.
+	 * @param name name of the values
+	 * @param values the concealed values
+	 * @param out buffer that receives the revealed values
+	 * @throws ConfigurationError if the name is unknown
+	 */
+	public void reveal(String name, DoubleBuffer values, DoubleBuffer out) throws ConfigurationError {
+		int n = values.remaining();
+		if (out.remaining() < n) {
+			throw new BufferOverflowException();
+		}
+		if (values.hasArray() && out.hasArray()) {
+			reveal(name, values.array(), values.arrayOffset() + values.position(), n,
+					out.array(), out.arrayOffset() + out.position());
+		} else {
+			double[] column = new double[n];
+			values.duplicate().get(column);
+			reveal(name, column, 0, n, column, 0);
+			out.duplicate().put(column);
+		}
+		values.position(values.position() + n);
+		out.position(out.position() + n);
+	}
+	
+	/* Divide the range of the piecewise linear function into buckets of equal width and
+	 * record the segment that holds the start of each bucket. The segment is the one that
+	 * the binary search in reveal finds: the number of interior points not above the value. */
+	private void makeInverse(NameParams np) {
+		double[] pwlf = np.pwlf;
+		int n = pwlf.length - 1;
+		int buckets = INVERSE_BUCKETS * n;
+		double span = pwlf[n] - pwlf[0];
+		double scale = (span > 0.0) ? buckets / span : 0.0;
+		int[] inverse = new int[buckets];
+		int seg = 0;
+		for (int b = 0; b < buckets; b++) {
+			double start = (scale > 0.0) ? pwlf[0] + b / scale : pwlf[0];
+			while (seg < n - 1 && pwlf[seg + 1] <= start) {
+				seg++;
+			}
+			inverse[b] = seg;
+		}
+		np.inverse = inverse;
+		np.inverseScale = scale;
+	}
+	
 	/** Add the name of a value that will later be concealed by the conceal function
 	 * @param name name of the value
 	 * @param value_min smallest value expected for the named value
@@ -164,6 +314,7 @@ public class NumberConceal {
 			System.out.printf("pwlf %d = %g %n", i+ 1, np.pwlf[i+1]);
 		}
 		System.out.printf("cmin/max = %g %g cdelta %g reduced range %g %n", cmin, cmax, cdelta, np.afactor * sum);
+		makeInverse(np);
 		
 		nameMap.put(name, np);
 	}
@@ -177,45 +328,31 @@ public class NumberConceal {
 		return nameMap.containsKey(name);
 	}
 
+	/** Encrypt a string with the cipher and return the result in hexadecimal. The 
+	 * cipher may be shared with other objects, so we hold its lock while it is in use.
+	 * @param s the clear text
+	 * @return the encrypted text in hexadecimal
+	 * @throws CryptoException
+	 */
 	public String encodeString(String s) throws CryptoException {
-		int cipherBlockSize = cipher.getBlockSize();
-		int cipherOutputSize = cipher.getOutputSize(cipherBlockSize); 
-		
 		byte[] valueBytes = s.getBytes();
-		ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-		int outlength = 0;
-		byte[] outBytes = new byte[cipherOutputSize];
+		byte[] outBytes;
+		int outlength;
 		try {
-			for (int i = 0; i < valueBytes.length; i += cipherOutputSize) {
-				int k = Math.min( cipherOutputSize, valueBytes.length - i);
-				if ( k == cipherOutputSize) {
-					outlength = cipher.update(valueBytes, i, cipherOutputSize, outBytes);
-					outStream.write(outBytes, 0, outlength);
-				} else {
-					if ( k > 0) {
-						outBytes = cipher.doFinal(valueBytes, i, k);
-					} else {
-						outBytes = cipher.doFinal();
-					}
-					outStream.write(outBytes);
-				}
+			synchronized (cipher) {
+				int cipherBlockSize = cipher.getBlockSize();
+				int cipherOutputSize = cipher.getOutputSize(cipherBlockSize); 
+				outBytes = new byte[valueBytes.length + 2 * cipherBlockSize];
+				outlength = FieldCodec.encrypt(cipher, valueBytes, 0, valueBytes.length, 
+						outBytes, 0, cipherOutputSize);
 			}
-		} catch (ShortBufferException e) {
-			e.printStackTrace();
-			throw new CryptoException();
-		} catch (IllegalBlockSizeException e) {
-			e.printStackTrace();
-			throw new CryptoException();
-		} catch (BadPaddingException e) {
-			e.printStackTrace();
-			throw new CryptoException();
-		} catch (IOException e) {
+		} catch (GeneralSecurityException e) {
 			e.printStackTrace();
 			throw new CryptoException();
 		}
-
-		return CryptoEngine.byteArrayToHex(outStream.toByteArray());
-
+		char[] hex = new char[2 * outlength];
+		CryptoEngine.byteArrayToHex(outBytes, 0, outlength, hex, 0);
+		return new String(hex);
 	}
 
 }